@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A pool of preview callback buffers, keyed by buffer size, that adapts the
+ * number of buffers queued with the camera to how long the app holds on to
+ * each one.
+ *
+ * Buffers are kept across callback reconfigurations, so switching between a
+ * few preview sizes stops allocating after the first pass through each.
+ * Free buffers of sizes not currently in use are released once the pool
+ * holds more than its byte budget.
+ *
+ * A frame counts as starved when its buffer is held for more than half the
+ * slack the other queued buffers give the camera, or when the gap since the
+ * previous frame suggests the camera skipped one. Any starved frame in a
+ * window of GROW_WINDOW frames adds a buffer; SHRINK_WINDOW frames in a row
+ * with plenty of slack removes one.
+ *
+ * Buffers taken back by reclaimAll() aren't reused straight away, since
+ * onPreviewFrame calls already queued on the callback thread can still carry
+ * them; they return to the pool once those calls have been delivered.
+ *
+ * Not thread-safe; the pool must be created on, and all calls are expected
+ * on, the thread that receives preview callbacks.
+ */
+class CallbackBufferPool {
+    private static final int GROW_WINDOW = 30; // frames
+    private static final int SHRINK_WINDOW = 300; // frames
+    private static final float DROPPED_FRAME_INTERVAL_FACTOR = 1.5f;
+    private static final float MEAN_INTERVAL_HISTORY_COEFF = 0.9f;
+    private static final float MEAN_INTERVAL_MEASUREMENT_COEFF = 0.1f;
+
+    private final int mMinBuffers;
+    private final int mMaxBuffers;
+    private final long mMaxPooledBytes;
+
+    private final SparseArray<ArrayList<byte[]>> mFreeBuffers =
+            new SparseArray<ArrayList<byte[]>>();
+    private long mPooledBytes = 0;
+    private final Set<byte[]> mInFlight =
+            Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+    // Taken back by reclaimAll(), waiting for stale callbacks to be delivered
+    private final Set<byte[]> mReclaimed =
+            Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+    private final Handler mHandler = new Handler();
+    private boolean mReleaseReclaimedPosted = false;
+
+    private int mSize = 0;
+    private int mTargetCount;
+    private int mPendingShrinks = 0;
+
+    private float mAvgIntervalNs = 0;
+    private int mWindowFrames = 0;
+    private boolean mWindowStarved = false;
+    private int mSlackFrames = 0;
+
+    private long mAllocatedBytes = 0;
+
+    /**
+     * @param minBuffers fewest buffers to keep queued with the camera
+     * @param maxBuffers most buffers to keep queued with the camera
+     * @param maxPooledBytes budget for free buffers kept for reuse
+     */
+    public CallbackBufferPool(int minBuffers, int maxBuffers, long maxPooledBytes) {
+        if (minBuffers < 1 || maxBuffers < minBuffers) {
+            throw new IllegalArgumentException("Bad buffer count range " + minBuffers +
+                    " to " + maxBuffers);
+        }
+        mMinBuffers = minBuffers;
+        mMaxBuffers = maxBuffers;
+        mMaxPooledBytes = maxPooledBytes;
+        mTargetCount = minBuffers;
+    }
+
+    /**
+     * Queue the current target number of size-byte buffers with the camera,
+     * reusing pooled buffers where possible. Call reclaimAll() first if
+     * buffers from an earlier configuration may still be queued.
+     */
+    public void configure(Camera camera, int size) {
+        mSize = size;
+        mPendingShrinks = 0;
+        mAvgIntervalNs = 0;
+        resetWindows();
+        for (int i = 0; i < mTargetCount; i++) {
+            queueBuffer(camera, obtain(size));
+        }
+        trim();
+    }
+
+    /**
+     * Take back every buffer queued with the camera. Only valid once the
+     * camera's buffer queue has been cleared, by passing null to
+     * Camera.setPreviewCallbackWithBuffer or by releasing the camera.
+     */
+    public void reclaimAll() {
+        mReclaimed.addAll(mInFlight);
+        mInFlight.clear();
+        mSize = 0;
+        if (!mReleaseReclaimedPosted && !mReclaimed.isEmpty()) {
+            // Runs after every callback already queued on this thread
+            mHandler.post(mReleaseReclaimed);
+            mReleaseReclaimedPosted = true;
+        }
+    }
+
+    private final Runnable mReleaseReclaimed = new Runnable() {
+        @Override
+        public void run() {
+            mReleaseReclaimedPosted = false;
+            for (byte[] buffer : mReclaimed) {
+                recycle(buffer);
+            }
+            mReclaimed.clear();
+            trim();
+        }
+    };
+
+    /**
+     * @return false if the buffer was queued before the last reclaimAll(),
+     * so its callback is stale and should be dropped
+     */
+    public boolean isCurrent(byte[] data) {
+        return mInFlight.contains(data);
+    }
+
+    /**
+     * Hand a buffer delivered by onPreviewFrame back to the camera, unless
+     * the pool is shrinking or the buffer is left over from an earlier
+     * configuration, in which case it's kept for reuse instead.
+     */
+    public void returnBuffer(Camera camera, byte[] data) {
+        if (!mInFlight.remove(data)) {
+            // Queued before the last reclaimAll(); it goes back to the pool
+            // once all such stale callbacks have been delivered.
+            return;
+        }
+        if (data.length != mSize || mPendingShrinks > 0) {
+            if (data.length == mSize) mPendingShrinks--;
+            recycle(data);
+            trim();
+            return;
+        }
+        queueBuffer(camera, data);
+    }
+
+    /**
+     * Update the buffer count target after a frame's buffer has been
+     * returned.
+     *
+     * @param turnaroundNs time from onPreviewFrame being called to its
+     *            buffer being returned to the camera
+     * @param intervalNs time since the previous onPreviewFrame, or -1 for the
+     *            first frame
+     * @return the change in the target buffer count: -1, 0 or 1
+     */
+    public int onFrameDone(Camera camera, long turnaroundNs, long intervalNs) {
+        if (mSize == 0) return 0;
+        boolean droppedFrame = false;
+        if (intervalNs > 0) {
+            droppedFrame = mAvgIntervalNs > 0 &&
+                    intervalNs > mAvgIntervalNs * DROPPED_FRAME_INTERVAL_FACTOR;
+            if (mAvgIntervalNs == 0) {
+                mAvgIntervalNs = intervalNs;
+            } else if (!droppedFrame) {
+                mAvgIntervalNs = mAvgIntervalNs * MEAN_INTERVAL_HISTORY_COEFF +
+                        intervalNs * MEAN_INTERVAL_MEASUREMENT_COEFF;
+            }
+        }
+        if (mAvgIntervalNs == 0) return 0;
+
+        int queued = mTargetCount - 1;
+        boolean starved = droppedFrame || turnaroundNs > mAvgIntervalNs * queued / 2;
+        // Would this frame still have had enough slack with one buffer fewer?
+        boolean slack = turnaroundNs < mAvgIntervalNs * (queued - 1) / 2;
+
+        mWindowStarved |= starved;
+        mWindowFrames++;
+        mSlackFrames = (slack && !starved) ? mSlackFrames + 1 : 0;
+
+        if (mWindowFrames >= GROW_WINDOW) {
+            boolean windowStarved = mWindowStarved;
+            mWindowFrames = 0;
+            mWindowStarved = false;
+            if (windowStarved && mTargetCount < mMaxBuffers) {
+                mTargetCount++;
+                if (mPendingShrinks > 0) {
+                    mPendingShrinks--;
+                } else {
+                    queueBuffer(camera, obtain(mSize));
+                }
+                mSlackFrames = 0;
+                return 1;
+            }
+        }
+        if (mSlackFrames >= SHRINK_WINDOW && mTargetCount > mMinBuffers) {
+            mTargetCount--;
+            mPendingShrinks++;
+            resetWindows();
+            return -1;
+        }
+        return 0;
+    }
+
+    public int getTargetCount() {
+        return mTargetCount;
+    }
+
+    /** Total bytes allocated for buffers over the life of the pool */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    private void resetWindows() {
+        mWindowFrames = 0;
+        mWindowStarved = false;
+        mSlackFrames = 0;
+    }
+
+    private void queueBuffer(Camera camera, byte[] buffer) {
+        mInFlight.add(buffer);
+        camera.addCallbackBuffer(buffer);
+    }
+
+    private byte[] obtain(int size) {
+        ArrayList<byte[]> free = mFreeBuffers.get(size);
+        if (free != null && !free.isEmpty()) {
+            mPooledBytes -= size;
+            return free.remove(free.size() - 1);
+        }
+        mAllocatedBytes += size;
+        return new byte[size];
+    }
+
+    private void recycle(byte[] buffer) {
+        ArrayList<byte[]> free = mFreeBuffers.get(buffer.length);
+        if (free == null) {
+            free = new ArrayList<byte[]>();
+            mFreeBuffers.put(buffer.length, free);
+        }
+        free.add(buffer);
+        mPooledBytes += buffer.length;
+    }
+
+    /**
+     * Drop free buffers until back within budget, starting with sizes that
+     * aren't in use and keeping enough of the current size to grow to the
+     * maximum buffer count.
+     */
+    private void trim() {
+        for (int i = mFreeBuffers.size() - 1; i >= 0 && mPooledBytes > mMaxPooledBytes; i--) {
+            int size = mFreeBuffers.keyAt(i);
+            if (size == mSize) continue;
+            mPooledBytes -= (long) size * mFreeBuffers.valueAt(i).size();
+            mFreeBuffers.removeAt(i);
+        }
+        ArrayList<byte[]> current = mFreeBuffers.get(mSize);
+        int keep = mMaxBuffers - mInFlight.size();
+        while (current != null && current.size() > keep && mPooledBytes > mMaxPooledBytes) {
+            current.remove(current.size() - 1);
+            mPooledBytes -= mSize;
+        }
+    }
+}
@@ -3,8 +3,6 @@ package com.android.testingcamera;
 import android.content.res.Resources;
 import android.graphics.ImageFormat;
 import android.graphics.PixelFormat;
-import android.os.AsyncTask;
-import android.os.SystemClock;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.Matrix4f;
@@ -23,8 +21,14 @@ import android.view.SurfaceView;
  *  the first of which converts from various YUV formats to 8bpp YUV, and
  *  the second of which converts from YUV to RGB.
  *
- *  The processing is done in a background thread, and the result is produced
- *  into an Allocation that's backed by a SurfaceView
+ *  Incoming frames are copied into a ring of input Allocations, and a
+ *  dedicated worker thread converts them in arrival order, producing the
+ *  result into an Allocation that's backed by a SurfaceView.
+ *
+ *  If every slot is in use when a frame arrives, the oldest frame still
+ *  waiting for the worker is dropped in favor of the new one, which bounds
+ *  display latency to at most slotCount frames. With a single slot, new
+ *  frames are dropped while the worker is busy instead.
  */
 class CallbackProcessor {
     private SurfaceView mCallbackView;
@@ -33,8 +37,9 @@ class CallbackProcessor {
     private Object mTaskLock = new Object();
 
     private RenderScript mRS;
-    private Allocation mAllocationIn;
+    private Allocation[] mAllocationsIn;
     private Allocation mAllocationOut;
+    private ScriptC_callback mSwizzleScript;
     private ScriptGroup mConverter;
 
     private int mWidth;
@@ -42,7 +47,26 @@ class CallbackProcessor {
     private int mFormat;
 
     private boolean mDone = false;
-    private boolean mTaskInProgress = false;
+
+    // Ring state, guarded by mTaskLock. Slots from mPendingHead onwards,
+    // mPendingCount of them, hold frames waiting for the worker; mBusySlot is
+    // the slot the worker is converting, or -1.
+    private final int[] mPendingSlots;
+    private final long[] mSlotTimestamps;
+    private int mPendingHead = 0;
+    private int mPendingCount = 0;
+    private int mBusySlot = -1;
+
+    private final Thread mWorker;
+
+    // Counters, guarded by mTaskLock
+    private long mProcessedCount = 0;
+    private long mDroppedCount = 0;
+    private long mTotalLatencyNs = 0;
+    private long mMaxLatencyNs = 0;
+    private long mLastLatencyNs = 0;
+
+    private volatile LatencyHistogram mLatencyHistogram;
 
     static final private int kStopTimeout = 2000; // ms
 
@@ -51,16 +75,24 @@ class CallbackProcessor {
     public CallbackProcessor(int width, int height, int format,
             Resources res, SurfaceView callbackView,
             int viewWidth, int viewHeight,
-            RenderScript rs) {
+            RenderScript rs, int slotCount) {
         mWidth = width;
         mHeight = height;
         mFormat = format;
         mRS = rs;
         mCallbackView = callbackView;
 
+        if (slotCount < 1) {
+            throw new IllegalArgumentException("Need at least one slot, got " + slotCount);
+        }
         int inputSize = TestingCamera.getCallbackBufferSize(mWidth, mHeight,
                 mFormat);
-        mAllocationIn = Allocation.createSized(mRS, Element.U8(mRS), inputSize);
+        mAllocationsIn = new Allocation[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            mAllocationsIn[i] = Allocation.createSized(mRS, Element.U8(mRS), inputSize);
+        }
+        mPendingSlots = new int[slotCount];
+        mSlotTimestamps = new long[slotCount];
 
         Type.Builder tb = new Type.Builder(mRS, Element.RGBA_8888(mRS));
         tb.setX(viewWidth);
@@ -70,25 +102,25 @@ class CallbackProcessor {
         mAllocationOut = Allocation.createTyped(mRS, outType,
                 Allocation.USAGE_IO_OUTPUT | Allocation.USAGE_SCRIPT);
 
-        ScriptC_callback swizzleScript = new ScriptC_callback(mRS);
-        swizzleScript.bind_yuv_in(mAllocationIn);
-        swizzleScript.invoke_init_convert(mWidth, mHeight,
+        mSwizzleScript = new ScriptC_callback(mRS);
+        mSwizzleScript.bind_yuv_in(mAllocationsIn[0]);
+        mSwizzleScript.invoke_init_convert(mWidth, mHeight,
             mFormat, viewWidth, viewHeight);
         Script.KernelID swizzleId;
 
         switch (mFormat) {
         case ImageFormat.NV21:
-            swizzleId = swizzleScript.getKernelID_convert_semiplanar();
+            swizzleId = mSwizzleScript.getKernelID_convert_semiplanar();
             break;
         case ImageFormat.YV12:
-            swizzleId = swizzleScript.getKernelID_convert_planar();
+            swizzleId = mSwizzleScript.getKernelID_convert_planar();
             break;
         case ImageFormat.YUY2:
-            swizzleId = swizzleScript.getKernelID_convert_interleaved();
+            swizzleId = mSwizzleScript.getKernelID_convert_interleaved();
             break;
         case ImageFormat.UNKNOWN:
         default:
-            swizzleId = swizzleScript.getKernelID_convert_unknown();
+            swizzleId = mSwizzleScript.getKernelID_convert_unknown();
         }
 
         ScriptGroup.Builder b = new ScriptGroup.Builder(rs);
@@ -96,62 +128,178 @@ class CallbackProcessor {
         mConverter = b.create();
 
         mConverter.setOutput(swizzleId, mAllocationOut);
+
+        mWorker = new Thread(mProcessLoop, TAG);
+        mWorker.start();
     }
 
     public boolean stop() {
         synchronized(mTaskLock) {
             mDone = true;
-            long startTime = SystemClock.elapsedRealtime();
-            while (mTaskInProgress) {
-                try {
-                    mTaskLock.wait(kStopTimeout);
-                } catch (InterruptedException e) {
-                    // ignored, keep waiting
-                }
-                long endTime = SystemClock.elapsedRealtime();
-                if (endTime - startTime > kStopTimeout) {
-                    return false;
-                }
-            }
+            mPendingCount = 0;
+            mTaskLock.notifyAll();
+        }
+        try {
+            mWorker.join(kStopTimeout);
+        } catch (InterruptedException e) {
+            // ignored, checked below
+        }
+        if (mWorker.isAlive()) {
+            return false;
         }
         mAllocationOut.setSurface(null);
         return true;
     }
 
+    /**
+     * Queue a preview frame for display. The data is copied before this
+     * returns, so the buffer can be handed straight back to the camera.
+     */
     public void displayCallback(byte[] data) {
-        synchronized(mTaskLock) {
-            if (mTaskInProgress || mDone) return;
-            mTaskInProgress = true;
-        }
         if (mCallbackSurface == null) {
             mCallbackView.getHolder().setFormat(PixelFormat.RGBA_8888);
             mCallbackSurface = mCallbackView.getHolder().getSurface();
             if (mCallbackSurface == null) return;
             mAllocationOut.setSurface(mCallbackSurface);
         }
-        new ProcessCallbackTask().execute(data);
+        long timestamp = System.nanoTime();
+        int slot;
+        synchronized(mTaskLock) {
+            if (mDone) return;
+            slot = claimSlotLocked();
+            if (slot < 0) {
+                mDroppedCount++;
+                return;
+            }
+        }
+        // Only this thread writes into a claimed slot, and the worker can't
+        // see it until it's published below.
+        mAllocationsIn[slot].copyFrom(data);
+        synchronized(mTaskLock) {
+            if (mDone) return;
+            mSlotTimestamps[slot] = timestamp;
+            mPendingSlots[(mPendingHead + mPendingCount) % mPendingSlots.length] = slot;
+            mPendingCount++;
+            mTaskLock.notifyAll();
+        }
     }
 
-    private class ProcessCallbackTask extends AsyncTask<byte[], Void, Boolean> {
+    /**
+     * Find a slot for an incoming frame: a free one if possible, otherwise
+     * the oldest pending frame's slot, which is then dropped. Returns -1 if
+     * nothing can be reclaimed.
+     */
+    private int claimSlotLocked() {
+        int slotCount = mAllocationsIn.length;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (slot != mBusySlot && !isPendingLocked(slot)) {
+                return slot;
+            }
+        }
+        if (mPendingCount == 0) {
+            return -1;
+        }
+        int slot = mPendingSlots[mPendingHead];
+        mPendingHead = (mPendingHead + 1) % slotCount;
+        mPendingCount--;
+        mDroppedCount++;
+        return slot;
+    }
 
-        @Override
-        protected Boolean doInBackground(byte[]... datas) {
-            byte[] data = datas[0];
+    private boolean isPendingLocked(int slot) {
+        for (int i = 0; i < mPendingCount; i++) {
+            if (mPendingSlots[(mPendingHead + i) % mPendingSlots.length] == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            mAllocationIn.copyFrom(data);
-            mConverter.execute();
-            mAllocationOut.ioSend();
+    public long getProcessedCount() {
+        synchronized(mTaskLock) {
+            return mProcessedCount;
+        }
+    }
 
-            synchronized(mTaskLock) {
-                mTaskInProgress = false;
-                mTaskLock.notify();
-            }
-            return true;
+    public long getDroppedCount() {
+        synchronized(mTaskLock) {
+            return mDroppedCount;
         }
+    }
 
-        @Override
-        protected void onPostExecute(Boolean result) {
+    /**
+     * @return mean time from displayCallback to the converted frame being
+     *         sent to the display, in ms
+     */
+    public float getAverageLatencyMs() {
+        synchronized(mTaskLock) {
+            if (mProcessedCount == 0) return 0;
+            return mTotalLatencyNs / 1e6f / mProcessedCount;
         }
     }
 
+    public float getMaxLatencyMs() {
+        synchronized(mTaskLock) {
+            return mMaxLatencyNs / 1e6f;
+        }
+    }
+
+    public float getLastLatencyMs() {
+        synchronized(mTaskLock) {
+            return mLastLatencyNs / 1e6f;
+        }
+    }
+
+    /**
+     * Also record each frame's conversion latency into the given histogram,
+     * or stop doing so if null.
+     */
+    public void setLatencyHistogram(LatencyHistogram histogram) {
+        mLatencyHistogram = histogram;
+    }
+
+    private Runnable mProcessLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                int slot;
+                long timestamp;
+                synchronized(mTaskLock) {
+                    while (mPendingCount == 0 && !mDone) {
+                        try {
+                            mTaskLock.wait();
+                        } catch (InterruptedException e) {
+                            // ignored, keep waiting
+                        }
+                    }
+                    if (mDone) return;
+                    slot = mPendingSlots[mPendingHead];
+                    mPendingHead = (mPendingHead + 1) % mPendingSlots.length;
+                    mPendingCount--;
+                    mBusySlot = slot;
+                    timestamp = mSlotTimestamps[slot];
+                }
+
+                mSwizzleScript.bind_yuv_in(mAllocationsIn[slot]);
+                mConverter.execute();
+                mAllocationOut.ioSend();
+
+                long latency = System.nanoTime() - timestamp;
+                LatencyHistogram histogram = mLatencyHistogram;
+                if (histogram != null) {
+                    histogram.record(latency / 1000);
+                }
+                synchronized(mTaskLock) {
+                    mBusySlot = -1;
+                    mProcessedCount++;
+                    mTotalLatencyNs += latency;
+                    mLastLatencyNs = latency;
+                    if (latency > mMaxLatencyNs) {
+                        mMaxLatencyNs = latency;
+                    }
+                }
+            }
+        }
+    };
+
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations that can be recorded into from any thread without
+ * locking.
+ *
+ * Values are in microseconds, and are kept in log-linear buckets: 16 buckets
+ * per power of two, so each reported percentile is within about 6% of the
+ * true value. The maximum is tracked exactly.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Enough octaves for durations of well over a day
+    private static final int MAX_SHIFT = 32;
+    private static final int BUCKET_COUNT = (MAX_SHIFT + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record one duration, in microseconds. Negative values count as zero.
+     */
+    public void record(long valueUs) {
+        if (valueUs < 0) valueUs = 0;
+        mCounts.incrementAndGet(bucketIndex(valueUs));
+        mTotal.addAndGet(valueUs);
+        long max = mMax.get();
+        while (valueUs > max && !mMax.compareAndSet(max, valueUs)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Take a snapshot of everything recorded since the last snapshot, and
+     * start over. Values recorded concurrently with this call land in either
+     * this snapshot or the next one.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.getAndSet(i, 0);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mTotal.getAndSet(0), mMax.getAndSet(0));
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift > MAX_SHIFT) return BUCKET_COUNT - 1;
+        return (shift + 1) * SUB_BUCKET_COUNT +
+                (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+    }
+
+    /** The largest value that lands in the given bucket */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * An immutable view of a histogram's contents over one reporting period
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+
+        private Snapshot(long[] counts, long count, long total, long max) {
+            mCounts = counts;
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxUs() {
+            return mMax;
+        }
+
+        public double getMeanUs() {
+            return (mCount == 0) ? 0 : (double) mTotal / mCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the smallest bucket bound that at least that percentage of
+         *         values fall under, capped at the exact maximum
+         */
+        public long getPercentileUs(double percentile) {
+            if (mCount == 0) return 0;
+            long target = (long) Math.ceil(mCount * percentile / 100.0);
+            if (target < 1) target = 1;
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= target) {
+                    return Math.min(bucketUpperBound(i), mMax);
+                }
+            }
+            return mMax;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Adapter for the on-screen log, holding only the most recent log entries.
+ *
+ * Entries live in a fixed-size ring, so adding one is constant time and the
+ * log uses constant memory no matter how long the app runs; the list view
+ * only lays out the rows that are visible. Optionally, every entry is also
+ * written to a file, so the full log survives entries scrolling out of the
+ * ring.
+ *
+ * Must only be used from the UI thread.
+ */
+class LogAdapter extends BaseAdapter {
+    private static final String TAG = "TestingCamera";
+
+    private final LayoutInflater mInflater;
+    private final String[] mEntries;
+    private int mHead = 0;
+    private int mCount = 0;
+
+    private BufferedWriter mLogWriter;
+
+    public LogAdapter(Context context, int capacity) {
+        mInflater = LayoutInflater.from(context);
+        mEntries = new String[capacity];
+    }
+
+    public void add(String entry) {
+        if (mCount == mEntries.length) {
+            mEntries[mHead] = entry;
+            mHead = (mHead + 1) % mEntries.length;
+        } else {
+            mEntries[(mHead + mCount) % mEntries.length] = entry;
+            mCount++;
+        }
+        if (mLogWriter != null) {
+            try {
+                mLogWriter.write(entry);
+                mLogWriter.newLine();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write to log file, no longer saving log", e);
+                stopSaving();
+            }
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Start appending every new log entry to the given file, beginning with
+     * the entries currently held.
+     */
+    public void startSaving(File logFile) throws IOException {
+        stopSaving();
+        mLogWriter = new BufferedWriter(new FileWriter(logFile, true));
+        for (int i = 0; i < mCount; i++) {
+            mLogWriter.write(getItem(i));
+            mLogWriter.newLine();
+        }
+    }
+
+    public void stopSaving() {
+        if (mLogWriter == null) return;
+        try {
+            mLogWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close log file", e);
+        }
+        mLogWriter = null;
+    }
+
+    /** Push any buffered entries out to the log file, if saving */
+    public void flush() {
+        if (mLogWriter == null) return;
+        try {
+            mLogWriter.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to flush log file", e);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mEntries[(mHead + position) % mEntries.length];
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(R.layout.log_item, parent, false);
+        }
+        view.setText(getItem(position));
+        return view;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Jitter and latency statistics for the preview callback path.
+ *
+ * Tracks histograms of the interval between successive preview callbacks,
+ * of how long each callback buffer is held before being returned to the
+ * camera, and of CallbackProcessor conversion latency. Recording is
+ * lock-free and safe from any thread; report() is called periodically to
+ * dump the percentiles for the period to logcat and, optionally, append
+ * them to a CSV file.
+ *
+ * report() only snapshots the histograms; the logging and file I/O run on
+ * a worker thread, so they don't add jitter to the callback thread being
+ * measured.
+ */
+class PreviewCallbackMetrics {
+    private static final String TAG = "PreviewCallbackMetrics";
+
+    private static final String CSV_HEADER =
+            "elapsed_ms,metric,count,p50_us,p95_us,p99_us,max_us,mean_us";
+
+    private final LatencyHistogram mFrameInterval = new LatencyHistogram();
+    private final LatencyHistogram mBufferTurnaround = new LatencyHistogram();
+    private final LatencyHistogram mConversionLatency = new LatencyHistogram();
+
+    private final long mStartTimeNs = System.nanoTime();
+    private final HandlerThread mWriterThread;
+    private final Handler mWriterHandler;
+    // Only touched on the writer thread
+    private PrintWriter mCsvWriter;
+
+    /**
+     * @param csvFile file to append each report to, or null for logcat only
+     */
+    public PreviewCallbackMetrics(final File csvFile) {
+        mWriterThread = new HandlerThread("PreviewCallbackMetrics");
+        mWriterThread.start();
+        mWriterHandler = new Handler(mWriterThread.getLooper());
+        if (csvFile != null) {
+            mWriterHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    openCsv(csvFile);
+                }
+            });
+        }
+    }
+
+    public LatencyHistogram getFrameInterval() {
+        return mFrameInterval;
+    }
+
+    public LatencyHistogram getBufferTurnaround() {
+        return mBufferTurnaround;
+    }
+
+    public LatencyHistogram getConversionLatency() {
+        return mConversionLatency;
+    }
+
+    /**
+     * Reset the statistics for the period since the last report, and queue
+     * them to be dumped.
+     *
+     * @return a one-line summary of the frame interval, for the on-screen log
+     */
+    public String report() {
+        final long elapsedMs = (System.nanoTime() - mStartTimeNs) / 1000000;
+        final LatencyHistogram.Snapshot interval = mFrameInterval.snapshotAndReset();
+        final LatencyHistogram.Snapshot turnaround = mBufferTurnaround.snapshotAndReset();
+        final LatencyHistogram.Snapshot conversion = mConversionLatency.snapshotAndReset();
+        mWriterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dump(elapsedMs, "frame_interval", interval);
+                dump(elapsedMs, "buffer_turnaround", turnaround);
+                dump(elapsedMs, "conversion_latency", conversion);
+                if (mCsvWriter != null) {
+                    mCsvWriter.flush();
+                }
+            }
+        });
+        return String.format(Locale.US,
+                "Frame interval ms: p50 %.1f, p95 %.1f, p99 %.1f, max %.1f",
+                interval.getPercentileUs(50) / 1e3, interval.getPercentileUs(95) / 1e3,
+                interval.getPercentileUs(99) / 1e3, interval.getMaxUs() / 1e3);
+    }
+
+    /**
+     * Close the CSV file once any queued reports are written. The metrics
+     * can't be reported again afterwards.
+     */
+    public void close() {
+        mWriterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCsvWriter != null) {
+                    mCsvWriter.close();
+                    mCsvWriter = null;
+                }
+                // Quit from here, after the queued reports; quitSafely needs API 18
+                mWriterThread.quit();
+            }
+        });
+    }
+
+    private void openCsv(File csvFile) {
+        try {
+            boolean newFile = csvFile.length() == 0;
+            mCsvWriter = new PrintWriter(new FileWriter(csvFile, true));
+            if (newFile) {
+                mCsvWriter.println(CSV_HEADER);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open metrics file " + csvFile, e);
+        }
+    }
+
+    private void dump(long elapsedMs, String name, LatencyHistogram.Snapshot s) {
+        Log.i(TAG, String.format(Locale.US,
+                "%s: n=%d p50=%dus p95=%dus p99=%dus max=%dus mean=%.0fus",
+                name, s.getCount(), s.getPercentileUs(50), s.getPercentileUs(95),
+                s.getPercentileUs(99), s.getMaxUs(), s.getMeanUs()));
+        if (mCsvWriter != null) {
+            mCsvWriter.println(String.format(Locale.US, "%d,%s,%d,%d,%d,%d,%d,%.0f",
+                    elapsedMs, name, s.getCount(), s.getPercentileUs(50),
+                    s.getPercentileUs(95), s.getPercentileUs(99), s.getMaxUs(),
+                    s.getMeanUs()));
+        }
+    }
+}
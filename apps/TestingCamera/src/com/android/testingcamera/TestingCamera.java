@@ -31,6 +31,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.view.View;
 import android.view.Surface;
@@ -44,13 +45,12 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.LinearLayout;
 import android.widget.LinearLayout.LayoutParams;
+import android.widget.ListView;
 import android.widget.SeekBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.ToggleButton;
 import android.renderscript.RenderScript;
-import android.text.Layout;
-import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -111,7 +111,11 @@ public class TestingCamera extends Activity
     private Spinner mColorEffectSpinner;
     private SeekBar mZoomSeekBar;
 
-    private TextView mLogView;
+    private ListView mLogView;
+    private LogAdapter mLogAdapter;
+    private CheckBox mSaveLogCheckBox;
+    // Entries kept for display; older ones are only in the saved log, if any
+    private static final int LOG_DISPLAY_LINES = 1000;
 
     private Set<View> mOpenOnlyControls = new HashSet<View>();
     private Set<View> mPreviewOnlyControls = new HashSet<View>();
@@ -151,13 +155,22 @@ public class TestingCamera extends Activity
 
     private boolean mCallbacksEnabled = false;
     private CallbackProcessor mCallbackProcessor = null;
+    private PreviewCallbackMetrics mCallbackMetrics = null;
     long mLastCallbackTimestamp = -1;
+    long mLastCallbackTimestampNs = -1;
     float mCallbackAvgFrameDuration = 30;
     int mCallbackFrameCount = 0;
     private static final float MEAN_FPS_HISTORY_COEFF = 0.9f;
     private static final float MEAN_FPS_MEASUREMENT_COEFF = 0.1f;
     private static final int   FPS_REPORTING_PERIOD = 200; // frames
     private static final int CALLBACK_BUFFER_COUNT = 3;
+    private static final int MAX_CALLBACK_BUFFER_COUNT = 8;
+    private static final long MAX_POOLED_CALLBACK_BYTES = 64 * 1024 * 1024;
+    private final CallbackBufferPool mCallbackBufferPool = new CallbackBufferPool(
+            CALLBACK_BUFFER_COUNT, MAX_CALLBACK_BUFFER_COUNT, MAX_POOLED_CALLBACK_BYTES);
+    // Input slots in the callback processor's ring; a frame waits behind at
+    // most this many others before being displayed or dropped.
+    private static final int CALLBACK_PROCESSOR_SLOTS = 3;
 
     private static final int CAMERA_UNINITIALIZED = 0;
     private static final int CAMERA_OPEN = 1;
@@ -193,6 +206,9 @@ public class TestingCamera extends Activity
 
         mKeepOpenCheckBox = (CheckBox) findViewById(R.id.keep_open_checkbox);
 
+        mSaveLogCheckBox = (CheckBox) findViewById(R.id.save_log_checkbox);
+        mSaveLogCheckBox.setOnClickListener(mSaveLogListener);
+
         mInfoButton = (Button) findViewById(R.id.info_button);
         mInfoButton.setOnClickListener(mInfoButtonListener);
         mOpenOnlyControls.add(mInfoButton);
@@ -287,8 +303,9 @@ public class TestingCamera extends Activity
         mColorEffectSpinner.setOnItemSelectedListener(mColorEffectListener);
         mOpenOnlyControls.add(mColorEffectSpinner);
 
-        mLogView = (TextView) findViewById(R.id.log);
-        mLogView.setMovementMethod(new ScrollingMovementMethod());
+        mLogAdapter = new LogAdapter(this, LOG_DISPLAY_LINES);
+        mLogView = (ListView) findViewById(R.id.log);
+        mLogView.setAdapter(mLogAdapter);
 
         mOpenOnlyControls.addAll(mPreviewOnlyControls);
 
@@ -348,9 +365,18 @@ public class TestingCamera extends Activity
 
             if (mCamera != null) {
                 mCamera.release();
+                mCallbackBufferPool.reclaimAll();
             }
+            closeCallbackMetrics();
             mState = CAMERA_UNINITIALIZED;
         }
+        mLogAdapter.flush();
+    }
+
+    @Override
+    public void onDestroy() {
+        mLogAdapter.stopSaving();
+        super.onDestroy();
     }
 
     /** SurfaceHolder.Callback methods */
@@ -516,6 +542,31 @@ public class TestingCamera extends Activity
         }
     };
 
+    private View.OnClickListener mSaveLogListener =
+            new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            if (mSaveLogCheckBox.isChecked()) {
+                File logFile = getOutputMediaFile(MEDIA_TYPE_LOG);
+                if (logFile == null) {
+                    logE("Unable to create log file");
+                    mSaveLogCheckBox.setChecked(false);
+                    return;
+                }
+                try {
+                    mLogAdapter.startSaving(logFile);
+                    log("Saving log to " + logFile);
+                } catch (IOException e) {
+                    logE("Unable to open log file " + logFile + ": " + e.getMessage());
+                    mSaveLogCheckBox.setChecked(false);
+                }
+            } else {
+                log("No longer saving log to file");
+                mLogAdapter.stopSaving();
+            }
+        }
+    };
+
     private AdapterView.OnItemSelectedListener mPreviewFrameRateListener =
                 new AdapterView.OnItemSelectedListener() {
         @Override
@@ -895,6 +946,7 @@ public class TestingCamera extends Activity
             if (mCallbacksEnabled) {
                 log("Disabling preview callbacks");
                 stopCallbacks();
+                closeCallbackMetrics();
                 mCallbacksEnabled = false;
                 resizePreview();
                 mCallbackView.setVisibility(View.GONE);
@@ -1014,7 +1066,9 @@ public class TestingCamera extends Activity
         if (mState >= CAMERA_OPEN) {
             log("Closing old camera");
             mCamera.release();
+            mCallbackBufferPool.reclaimAll();
         }
+        closeCallbackMetrics();
         mCamera = null;
         mCameraId = NO_CAMERA_ID;
         mState = CAMERA_UNINITIALIZED;
@@ -1339,23 +1393,40 @@ public class TestingCamera extends Activity
     private void configureCallbacks(int callbackWidth, int callbackHeight) {
         if (mState >= CAMERA_OPEN && mCallbacksEnabled) {
             mCamera.setPreviewCallbackWithBuffer(null);
+            mCallbackBufferPool.reclaimAll();
             int width = mPreviewSizes.get(mPreviewSize).width;
             int height = mPreviewSizes.get(mPreviewSize).height;
             int format = mPreviewFormats.get(mPreviewFormat);
 
+            if (mCallbackProcessor != null && !mCallbackProcessor.stop()) {
+                logE("Can't stop previous preview callback processing!");
+            }
             mCallbackProcessor = new CallbackProcessor(width, height, format,
                     getResources(), mCallbackView,
-                    callbackWidth, callbackHeight, mRS);
+                    callbackWidth, callbackHeight, mRS,
+                    CALLBACK_PROCESSOR_SLOTS);
+            // One metrics file covers every reconfiguration until callbacks are turned off
+            if (mCallbackMetrics == null) {
+                File metricsFile = getOutputMediaFile(MEDIA_TYPE_METRICS);
+                if (metricsFile != null) {
+                    log("Writing callback metrics to " + metricsFile);
+                }
+                mCallbackMetrics = new PreviewCallbackMetrics(metricsFile);
+            }
+            mCallbackProcessor.setLatencyHistogram(
+                    mCallbackMetrics.getConversionLatency());
 
             int size = getCallbackBufferSize(width, height, format);
             log("Configuring callbacks:" + width + " x " + height +
                     " , format " + format);
-            for (int i = 0; i < CALLBACK_BUFFER_COUNT; i++) {
-                mCamera.addCallbackBuffer(new byte[size]);
-            }
+            mCallbackBufferPool.configure(mCamera, size);
+            log("Using " + mCallbackBufferPool.getTargetCount() + " callback buffers, " +
+                    mCallbackBufferPool.getAllocatedBytes() / 1024 +
+                    " KB allocated in total");
             mCamera.setPreviewCallbackWithBuffer(this);
         }
         mLastCallbackTimestamp = -1;
+        mLastCallbackTimestampNs = -1;
         mCallbackFrameCount = 0;
         mCallbackAvgFrameDuration = 30;
     }
@@ -1363,6 +1434,7 @@ public class TestingCamera extends Activity
     private void stopCallbacks() {
         if (mState >= CAMERA_OPEN) {
             mCamera.setPreviewCallbackWithBuffer(null);
+            mCallbackBufferPool.reclaimAll();
             if (mCallbackProcessor != null) {
                 if (!mCallbackProcessor.stop()) {
                     logE("Can't stop preview callback processing!");
@@ -1371,8 +1443,20 @@ public class TestingCamera extends Activity
         }
     }
 
+    private void closeCallbackMetrics() {
+        if (mCallbackMetrics != null) {
+            mCallbackMetrics.close();
+            mCallbackMetrics = null;
+        }
+    }
+
     @Override
     public void onPreviewFrame(byte[] data, Camera camera) {
+        if (!mCallbackBufferPool.isCurrent(data)) {
+            // Queued before the callbacks were last reconfigured
+            return;
+        }
+        long timestampNs = System.nanoTime();
         long timestamp = SystemClock.elapsedRealtime();
         if (mLastCallbackTimestamp != -1) {
             long frameDuration = timestamp - mLastCallbackTimestamp;
@@ -1382,17 +1466,42 @@ public class TestingCamera extends Activity
         }
         mLastCallbackTimestamp = timestamp;
         if (mState < CAMERA_PREVIEW || !mCallbacksEnabled) {
-            mCamera.addCallbackBuffer(data);
+            mCallbackBufferPool.returnBuffer(mCamera, data);
             return;
         }
+        long intervalNs = (mLastCallbackTimestampNs == -1) ? -1 :
+                timestampNs - mLastCallbackTimestampNs;
+        if (mCallbackMetrics != null && intervalNs != -1) {
+            mCallbackMetrics.getFrameInterval().record(intervalNs / 1000);
+        }
+        mLastCallbackTimestampNs = timestampNs;
         mCallbackFrameCount++;
         if (mCallbackFrameCount % FPS_REPORTING_PERIOD == 0) {
             log("Got " + FPS_REPORTING_PERIOD + " callback frames, fps "
                     + 1e3/mCallbackAvgFrameDuration);
+            if (mCallbackMetrics != null) {
+                log(mCallbackMetrics.report());
+            }
+            log(String.format("Callback processing: %d processed, %d dropped, " +
+                    "latency avg %.1f ms, max %.1f ms",
+                    mCallbackProcessor.getProcessedCount(),
+                    mCallbackProcessor.getDroppedCount(),
+                    mCallbackProcessor.getAverageLatencyMs(),
+                    mCallbackProcessor.getMaxLatencyMs()));
         }
         mCallbackProcessor.displayCallback(data);
 
-        mCamera.addCallbackBuffer(data);
+        mCallbackBufferPool.returnBuffer(mCamera, data);
+        long turnaroundNs = System.nanoTime() - timestampNs;
+        if (mCallbackMetrics != null) {
+            mCallbackMetrics.getBufferTurnaround().record(turnaroundNs / 1000);
+        }
+        int bufferCountChange = mCallbackBufferPool.onFrameDone(mCamera, turnaroundNs,
+                intervalNs);
+        if (bufferCountChange != 0) {
+            log((bufferCountChange > 0 ? "Callbacks starved, raising" : "Lowering") +
+                    " callback buffer count to " + mCallbackBufferPool.getTargetCount());
+        }
     }
 
     @Override
@@ -1417,6 +1526,8 @@ public class TestingCamera extends Activity
 
     static final int MEDIA_TYPE_IMAGE = 0;
     static final int MEDIA_TYPE_VIDEO = 1;
+    static final int MEDIA_TYPE_METRICS = 2;
+    static final int MEDIA_TYPE_LOG = 3;
     @SuppressLint("SimpleDateFormat")
     File getOutputMediaFile(int type){
         // To be safe, you should check that the SDCard is mounted
@@ -1449,6 +1560,12 @@ public class TestingCamera extends Activity
         } else if(type == MEDIA_TYPE_VIDEO) {
             mediaFile = new File(mediaStorageDir.getPath() + File.separator +
             "VID_"+ timeStamp + ".mp4");
+        } else if(type == MEDIA_TYPE_METRICS) {
+            mediaFile = new File(mediaStorageDir.getPath() + File.separator +
+            "METRICS_"+ timeStamp + ".csv");
+        } else if(type == MEDIA_TYPE_LOG) {
+            mediaFile = new File(mediaStorageDir.getPath() + File.separator +
+            "LOG_"+ timeStamp + ".txt");
         } else {
             return null;
         }
@@ -1707,18 +1824,24 @@ public class TestingCamera extends Activity
         logAndScrollToBottom(logLine, mLogIndent + "!!! ");
     }
 
-    synchronized private void logAndScrollToBottom(String logLine, String logIndent) {
-        StringBuffer logEntry = new StringBuffer(32);
-        logEntry.append("\n").append(mDateFormatter.format(new Date())).append(logIndent);
-        logEntry.append(logLine);
-        mLogView.append(logEntry);
-        final Layout layout = mLogView.getLayout();
-        if (layout != null){
-            int scrollDelta = layout.getLineBottom(mLogView.getLineCount() - 1)
-                - mLogView.getScrollY() - mLogView.getHeight();
-            if(scrollDelta > 0) {
-                mLogView.scrollBy(0, scrollDelta);
-            }
+    /**
+     * Add a line to the on-screen log, which scrolls along with new entries
+     * while it's showing the latest ones. May be called from any thread.
+     */
+    private void logAndScrollToBottom(String logLine, String logIndent) {
+        final String logEntry;
+        synchronized (mDateFormatter) {
+            logEntry = mDateFormatter.format(new Date()) + logIndent + logLine;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mLogAdapter.add(logEntry);
+        } else {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mLogAdapter.add(logEntry);
+                }
+            });
         }
     }
 }
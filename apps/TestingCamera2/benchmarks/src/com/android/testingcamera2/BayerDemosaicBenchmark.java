@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Locale;
+
+/**
+ * JVM-side benchmark for {@link BayerDemosaic}, over synthetic 12MP and 16MP 10-bit Bayer
+ * frames.
+ *
+ * <p>Runs every demosaic mode single-threaded and with one thread per core, at the display
+ * scale factors ImageReaderSubPane typically picks, and prints the time per frame.</p>
+ *
+ * <p>Usage: BayerDemosaicBenchmark [iterations]</p>
+ */
+public class BayerDemosaicBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 20;
+    private static final int WARMUP_ITERATIONS = 10;
+
+    private static final int[][] SIZES = {
+        { 4000, 3000 },
+        { 4608, 3456 }
+    };
+    private static final int[] SCALE_FACTORS = { 4, 8 };
+    /** Maps 10-bit samples to 8 bits */
+    private static final int SHIFT_FACTOR = 2;
+
+    public static void main(String[] args) {
+        int iterations = DEFAULT_ITERATIONS;
+        if (args.length >= 1) {
+            iterations = Integer.parseInt(args[0]);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = (cores > 1) ? new int[] { 1, cores } : new int[] { 1 };
+
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            ShortBuffer raw = createBayer(width, height);
+            for (int scale : SCALE_FACTORS) {
+                int[] out = new int[(width / scale) * (height / scale)];
+                for (int threads : threadCounts) {
+                    BayerDemosaic demosaic = new BayerDemosaic(threads);
+                    for (BayerDemosaic.Mode mode : BayerDemosaic.Mode.values()) {
+                        demosaic.setMode(mode);
+                        double ms = time(demosaic, raw, width, height, scale, out, iterations);
+                        System.out.println(String.format(Locale.US,
+                                "%dx%d scale=%d %-9s threads=%-2d %8.2f ms/frame",
+                                width, height, scale, mode, threads, ms));
+                    }
+                    demosaic.shutdown();
+                }
+            }
+        }
+    }
+
+    private static double time(BayerDemosaic demosaic, ShortBuffer raw, int width, int height,
+            int scale, int[] out, int iterations) {
+        long totalNs = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + iterations; i++) {
+            long start = System.nanoTime();
+            demosaic.render(raw, width, height, width, scale, 0, 0, SHIFT_FACTOR, out);
+            long elapsed = System.nanoTime() - start;
+            if (i >= WARMUP_ITERATIONS) {
+                totalNs += elapsed;
+            }
+        }
+        return totalNs / 1e6 / iterations;
+    }
+
+    /**
+     * A direct, little-endian buffer like an Image plane, filled with a smooth RGGB gradient
+     */
+    private static ShortBuffer createBayer(int width, int height) {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(width * height * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ShortBuffer raw = bytes.asShortBuffer();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value;
+                if ((y & 1) == 0 && (x & 1) == 0) {
+                    value = x * 1023 / width;
+                } else if ((y & 1) == 1 && (x & 1) == 1) {
+                    value = y * 1023 / height;
+                } else {
+                    value = (x + y) * 1023 / (width + height);
+                }
+                raw.put(y * width + x, (short) value);
+            }
+        }
+        return raw;
+    }
+}
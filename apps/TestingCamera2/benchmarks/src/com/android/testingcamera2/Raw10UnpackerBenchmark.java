@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * JVM-side benchmark and correctness check for {@link Raw10Unpacker}, over synthetic RAW10
+ * frames with and without row padding.
+ *
+ * <p>Each frame is packed from known 10-bit samples. Both the 16-bit unpack used for saving
+ * DNGs and the downsampled preview are checked against results computed directly from those
+ * samples, and then timed.</p>
+ *
+ * <p>Usage: Raw10UnpackerBenchmark [width height [iterations]]</p>
+ */
+public class Raw10UnpackerBenchmark {
+
+    private static final int DEFAULT_WIDTH = 4000;
+    private static final int DEFAULT_HEIGHT = 3000;
+    private static final int DEFAULT_ITERATIONS = 20;
+    private static final int WARMUP_ITERATIONS = 5;
+
+    private static final int[] PADDINGS = { 0, 48 };
+    private static final int PREVIEW_SCALE_FACTOR = 4;
+    /** Maps 10-bit samples to 8 bits */
+    private static final int SHIFT_FACTOR = 2;
+
+    public static void main(String[] args) {
+        int width = DEFAULT_WIDTH;
+        int height = DEFAULT_HEIGHT;
+        int iterations = DEFAULT_ITERATIONS;
+        if (args.length >= 2) {
+            width = Integer.parseInt(args[0]);
+            height = Integer.parseInt(args[1]);
+        }
+        if (args.length >= 3) {
+            iterations = Integer.parseInt(args[2]);
+        }
+        if (width % 4 != 0) {
+            throw new IllegalArgumentException("RAW10 width must be a multiple of 4");
+        }
+
+        short[] samples = createSamples(width, height);
+        Raw10Unpacker unpacker = new Raw10Unpacker();
+        ByteBuffer raw16 = ByteBuffer.allocateDirect(width * height * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        int w = width / PREVIEW_SCALE_FACTOR;
+        int h = height / PREVIEW_SCALE_FACTOR;
+        int[] preview = new int[w * h];
+
+        for (int padding : PADDINGS) {
+            int rowStride = width / 4 * 5 + padding;
+            ByteBuffer packed = pack(samples, width, height, rowStride);
+            String name = String.format(Locale.US, "%dx%d pad=%d", width, height, padding);
+
+            verifyUnpack(name, unpacker, packed, samples, width, height, rowStride, raw16);
+            verifyPreview(name, unpacker, packed, samples, width, height, rowStride, preview);
+
+            long totalNs = 0;
+            for (int i = 0; i < WARMUP_ITERATIONS + iterations; i++) {
+                raw16.clear();
+                long start = System.nanoTime();
+                unpacker.unpackToRaw16(packed, width, height, rowStride, raw16);
+                long elapsed = System.nanoTime() - start;
+                if (i >= WARMUP_ITERATIONS) {
+                    totalNs += elapsed;
+                }
+            }
+            double ms = totalNs / 1e6 / iterations;
+            System.out.println(String.format(Locale.US,
+                    "%-22s unpackToRaw16          %8.2f ms/frame %8.1f MB/s", name, ms,
+                    width * height * 2 / (1024. * 1024.) / (ms / 1e3)));
+
+            totalNs = 0;
+            for (int i = 0; i < WARMUP_ITERATIONS + iterations; i++) {
+                long start = System.nanoTime();
+                unpacker.renderPreview(packed, width, height, rowStride, PREVIEW_SCALE_FACTOR,
+                        0, 0, SHIFT_FACTOR, preview);
+                long elapsed = System.nanoTime() - start;
+                if (i >= WARMUP_ITERATIONS) {
+                    totalNs += elapsed;
+                }
+            }
+            System.out.println(String.format(Locale.US,
+                    "%-22s renderPreview scale=%d %8.2f ms/frame", name, PREVIEW_SCALE_FACTOR,
+                    totalNs / 1e6 / iterations));
+        }
+    }
+
+    private static void verifyUnpack(String name, Raw10Unpacker unpacker, ByteBuffer packed,
+            short[] samples, int width, int height, int rowStride, ByteBuffer raw16) {
+        raw16.clear();
+        unpacker.unpackToRaw16(packed, width, height, rowStride, raw16);
+        if (raw16.position() != width * height * 2) {
+            throw new AssertionError("unpackToRaw16 wrote " + raw16.position() +
+                    " bytes for " + name);
+        }
+        for (int i = 0; i < samples.length; i++) {
+            int actual = raw16.getShort(i * 2);
+            if (actual != samples[i]) {
+                throw new AssertionError(String.format(Locale.US,
+                        "unpackToRaw16 mismatch for %s at (%d, %d): expected %d, got %d",
+                        name, i % width, i / width, samples[i], actual));
+            }
+        }
+    }
+
+    private static void verifyPreview(String name, Raw10Unpacker unpacker, ByteBuffer packed,
+            short[] samples, int width, int height, int rowStride, int[] preview) {
+        unpacker.renderPreview(packed, width, height, rowStride, PREVIEW_SCALE_FACTOR, 0, 0,
+                SHIFT_FACTOR, preview);
+        int w = width / PREVIEW_SCALE_FACTOR;
+        int h = height / PREVIEW_SCALE_FACTOR;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                // RGGB: red at the quad's top left, green to its right, blue below that
+                int i = y * PREVIEW_SCALE_FACTOR * width + x * PREVIEW_SCALE_FACTOR;
+                int r = samples[i] >> SHIFT_FACTOR;
+                int g = samples[i + 1] >> SHIFT_FACTOR;
+                int b = samples[i + width + 1] >> SHIFT_FACTOR;
+                int expected = 0xFF000000 | (r << 16) | (g << 8) | b;
+                int actual = preview[y * w + x];
+                if (actual != expected) {
+                    throw new AssertionError(String.format(Locale.US,
+                            "renderPreview mismatch for %s at (%d, %d): expected %08x, got %08x",
+                            name, x, y, expected, actual));
+                }
+            }
+        }
+    }
+
+    /**
+     * Random 10-bit samples, so every bit position of the packed low-bits byte is exercised
+     */
+    private static short[] createSamples(int width, int height) {
+        Random random = new Random(0);
+        short[] samples = new short[width * height];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt(1024);
+        }
+        return samples;
+    }
+
+    /**
+     * Pack samples as RAW10 into a direct buffer like an Image plane, with each row padded out
+     * to rowStride. The padding is filled with a marker value so stray reads show up.
+     */
+    private static ByteBuffer pack(short[] samples, int width, int height, int rowStride) {
+        ByteBuffer packed = ByteBuffer.allocateDirect(rowStride * height);
+        for (int i = 0; i < packed.capacity(); i++) {
+            packed.put(i, (byte) 0xA5);
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x += 4) {
+                int group = y * rowStride + x / 4 * 5;
+                int low = 0;
+                for (int p = 0; p < 4; p++) {
+                    int sample = samples[y * width + x + p];
+                    packed.put(group + p, (byte) (sample >> 2));
+                    low |= (sample & 0x3) << (p * 2);
+                }
+                packed.put(group + 4, (byte) low);
+            }
+        }
+        return packed;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * JVM-side benchmark for {@link YuvPlaneWriter}, using synthetic YUV 4:2:0 planes.
+ *
+ * <p>Compares the old row-at-a-time writer against YuvPlaneWriter for planar and
+ * semi-planar sources, checks that planar output is byte-identical to the old writer, and
+ * prints the time per frame and throughput for each case.</p>
+ *
+ * <p>Usage: YuvPlaneWriterBenchmark [width height [iterations]]</p>
+ */
+public class YuvPlaneWriterBenchmark {
+
+    private static final int DEFAULT_WIDTH = 4000;
+    private static final int DEFAULT_HEIGHT = 3000;
+    private static final int DEFAULT_ITERATIONS = 20;
+    private static final int WARMUP_ITERATIONS = 5;
+
+    /** A synthetic image: Y, U, V planes with their strides */
+    private static class Frame {
+        final String name;
+        final int width;
+        final int height;
+        final ByteBuffer[] planes = new ByteBuffer[3];
+        final int[] rowStrides = new int[3];
+        final int[] pixelStrides = new int[3];
+
+        Frame(String name, int width, int height) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int width = DEFAULT_WIDTH;
+        int height = DEFAULT_HEIGHT;
+        int iterations = DEFAULT_ITERATIONS;
+        if (args.length >= 2) {
+            width = Integer.parseInt(args[0]);
+            height = Integer.parseInt(args[1]);
+        }
+        if (args.length >= 3) {
+            iterations = Integer.parseInt(args[2]);
+        }
+
+        Frame[] frames = {
+            createPlanar(width, height, 0),
+            createPlanar(width, height, 64),
+            createSemiPlanar(width, height, 0),
+            createSemiPlanar(width, height, 64)
+        };
+
+        File outFile = File.createTempFile("yuv_bench", ".yuv");
+        outFile.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
+            FileChannel out = raf.getChannel();
+            for (Frame frame : frames) {
+                verify(frame, out, outFile);
+                run(frame, "legacy", null, out, iterations);
+                run(frame, "planar", new YuvPlaneWriter(YuvPlaneWriter.Layout.PLANAR), out,
+                        iterations);
+                run(frame, "semi-planar",
+                        new YuvPlaneWriter(YuvPlaneWriter.Layout.SEMI_PLANAR), out, iterations);
+            }
+        }
+    }
+
+    private static void run(Frame frame, String writerName, YuvPlaneWriter writer,
+            FileChannel out, int iterations) throws IOException {
+        long bytes = 0;
+        long totalNs = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + iterations; i++) {
+            out.position(0);
+            out.truncate(0);
+            long start = System.nanoTime();
+            bytes = (writer == null) ? writeLegacy(frame, out) :
+                    writer.write(out, frame.width, frame.height, frame.planes, frame.rowStrides,
+                            frame.pixelStrides);
+            long elapsed = System.nanoTime() - start;
+            if (i >= WARMUP_ITERATIONS) {
+                totalNs += elapsed;
+            }
+        }
+        double msPerFrame = totalNs / 1e6 / iterations;
+        String format = (writer == null) ? "I420" : writer.getLastOutputFormat().toString();
+        System.out.println(String.format(Locale.US,
+                "%-28s %-12s %-5s %8.2f ms/frame %8.1f MB/s", frame.name, writerName, format,
+                msPerFrame, bytes / (1024. * 1024.) / (msPerFrame / 1e3)));
+    }
+
+    private static void verify(Frame frame, FileChannel out, File outFile) throws IOException {
+        out.position(0);
+        out.truncate(0);
+        writeLegacy(frame, out);
+        out.force(false);
+        byte[] expected = Files.readAllBytes(outFile.toPath());
+
+        out.position(0);
+        out.truncate(0);
+        new YuvPlaneWriter(YuvPlaneWriter.Layout.PLANAR).write(out, frame.width, frame.height,
+                frame.planes, frame.rowStrides, frame.pixelStrides);
+        out.force(false);
+        byte[] actual = Files.readAllBytes(outFile.toPath());
+        if (!Arrays.equals(expected, actual)) {
+            throw new AssertionError("Planar output differs from legacy output for " +
+                    frame.name);
+        }
+    }
+
+    /**
+     * The row-at-a-time writer previously used by ImageReaderSubPane.writeYuvImage
+     */
+    private static long writeLegacy(Frame frame, FileChannel out) throws IOException {
+        long written = 0;
+        for (int plane = 0; plane < 3; plane++) {
+            ByteBuffer colorData = frame.planes[plane].duplicate();
+            int subsampleFactor = (plane == 0) ? 1 : 2;
+            int colorW = frame.width / subsampleFactor;
+            int colorH = frame.height / subsampleFactor;
+            int rowStride = frame.rowStrides[plane];
+            int pixelStride = frame.pixelStrides[plane];
+            if (pixelStride == 1) {
+                for (int y = 0, rowStart = 0; y < colorH; y++, rowStart += rowStride) {
+                    colorData.limit(rowStart + colorW);
+                    colorData.position(rowStart);
+                    written += out.write(colorData);
+                }
+            } else {
+                byte[] row = new byte[(colorW - 1) * pixelStride + 1];
+                byte[] packedRow = new byte[colorW];
+                ByteBuffer packedRowBuffer = ByteBuffer.wrap(packedRow);
+                for (int y = 0, rowStart = 0; y < colorH; y++, rowStart += rowStride) {
+                    colorData.limit(rowStart + row.length);
+                    colorData.position(rowStart);
+                    colorData.get(row);
+                    for (int x = 0, i = 0; x < colorW; x++, i += pixelStride) {
+                        packedRow[x] = row[i];
+                    }
+                    packedRowBuffer.rewind();
+                    written += out.write(packedRowBuffer);
+                }
+            }
+        }
+        return written;
+    }
+
+    private static Frame createPlanar(int width, int height, int padding) {
+        Frame frame = new Frame(String.format(Locale.US, "%dx%d planar pad=%d",
+                width, height, padding), width, height);
+        frame.rowStrides[0] = width + padding;
+        frame.planes[0] = createPlane(frame.rowStrides[0] * height, 0);
+        frame.pixelStrides[0] = 1;
+        for (int plane = 1; plane < 3; plane++) {
+            frame.rowStrides[plane] = width / 2 + padding / 2;
+            frame.pixelStrides[plane] = 1;
+            frame.planes[plane] = createPlane(frame.rowStrides[plane] * height / 2, plane);
+        }
+        return frame;
+    }
+
+    /**
+     * NV21-style layout: one interleaved VU buffer, exposed as two overlapping planes the way
+     * Image.getPlanes() does.
+     */
+    private static Frame createSemiPlanar(int width, int height, int padding) {
+        Frame frame = new Frame(String.format(Locale.US, "%dx%d semi-planar pad=%d",
+                width, height, padding), width, height);
+        frame.rowStrides[0] = width + padding;
+        frame.planes[0] = createPlane(frame.rowStrides[0] * height, 0);
+        frame.pixelStrides[0] = 1;
+
+        int chromaStride = width + padding;
+        int chromaSize = chromaStride * (height / 2 - 1) + width;
+        ByteBuffer vu = createPlane(chromaSize, 1);
+        ByteBuffer v = vu.duplicate();
+        v.limit(chromaSize - 1);
+        ByteBuffer u = vu.duplicate();
+        u.position(1);
+        frame.planes[2] = v.slice();
+        frame.planes[1] = u.slice();
+        for (int plane = 1; plane < 3; plane++) {
+            frame.rowStrides[plane] = chromaStride;
+            frame.pixelStrides[plane] = 2;
+        }
+        return frame;
+    }
+
+    private static ByteBuffer createPlane(int size, int seed) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            plane.put(i, (byte) (i * 31 + seed * 17));
+        }
+        return plane;
+    }
+}
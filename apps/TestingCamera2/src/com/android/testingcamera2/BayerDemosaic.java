@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.nio.ShortBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downsampling demosaic of 16-bit Bayer data into ARGB pixels for display.
+ *
+ * <p>Each output pixel covers a scaleFactor x scaleFactor block of the sensor. The available
+ * modes trade quality for speed:</p>
+ * <ul>
+ *   <li>NEAREST: takes the single Bayer quad at the top-left of each block. Fastest, and
+ *       heavily aliased.</li>
+ *   <li>BINNED: averages every 2x2 Bayer quad in the block. Reads every source pixel, and
+ *       gives the cleanest downsampled image.</li>
+ *   <li>BILINEAR: bilinearly interpolates the missing colors at the center pixel of each
+ *       block from its 3x3 neighborhood.</li>
+ * </ul>
+ *
+ * <p>Output rows are split into bands processed in parallel, one per thread. All scratch
+ * rows and accumulators are kept between calls, so steady-state rendering allocates nothing
+ * but a latch per frame. Inner loops work on primitive arrays only, so the JIT can unroll
+ * them.</p>
+ *
+ * <p>See BayerDemosaicBenchmark for timings. render() must not be called concurrently.</p>
+ */
+public class BayerDemosaic {
+
+    public enum Mode {
+        NEAREST,
+        BINNED,
+        BILINEAR
+    }
+
+    private volatile Mode mMode = Mode.NEAREST;
+
+    private final ExecutorService mWorkers;
+    private final Band[] mBands;
+
+    /**
+     * @param threadCount number of bands to process in parallel; the calling thread
+     *            processes one of them itself
+     */
+    public BayerDemosaic(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Need at least one thread, got " + threadCount);
+        }
+        mBands = new Band[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            mBands[i] = new Band();
+        }
+        mWorkers = (threadCount > 1) ? Executors.newFixedThreadPool(threadCount - 1) : null;
+    }
+
+    public void setMode(Mode mode) {
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Stop the worker threads. The demosaic can't be used after this.
+     */
+    public void shutdown() {
+        if (mWorkers != null) {
+            mWorkers.shutdown();
+        }
+    }
+
+    /**
+     * Render a downsampled image from 16-bit Bayer data.
+     *
+     * @param src the raw samples, starting at the top-left pixel; not modified
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param rowStride distance between rows, in samples
+     * @param scaleFactor downsampling factor; must be even
+     * @param shiftRow 0 if the first row of the color filter pattern holds red, else 1
+     * @param shiftCol 0 if red is in the first column of its row, else 1
+     * @param shiftFactor right shift to map raw values into 0..255
+     * @param out destination ARGB pixels, at least (width/scale) * (height/scale) long
+     */
+    public void render(ShortBuffer src, int width, int height, int rowStride, int scaleFactor,
+            int shiftRow, int shiftCol, int shiftFactor, int[] out) {
+        if (scaleFactor < 2 || (scaleFactor & 1) != 0) {
+            throw new IllegalArgumentException("Scale factor must be even, was " + scaleFactor);
+        }
+        final int outH = height / scaleFactor;
+        final int bandCount = Math.min(mBands.length, Math.max(outH, 1));
+        final Mode mode = mMode;
+
+        for (int i = 0; i < bandCount; i++) {
+            mBands[i].set(mode, src, width, height, rowStride, scaleFactor,
+                    shiftRow, shiftCol, shiftFactor, out,
+                    outH * i / bandCount, outH * (i + 1) / bandCount);
+        }
+        if (bandCount == 1) {
+            mBands[0].run();
+            return;
+        }
+
+        CountDownLatch done = new CountDownLatch(bandCount - 1);
+        for (int i = 1; i < bandCount; i++) {
+            mBands[i].mDone = done;
+            mWorkers.execute(mBands[i]);
+        }
+        mBands[0].mDone = null;
+        mBands[0].run();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One horizontal band of output rows, with its own scratch state
+     */
+    private static class Band implements Runnable {
+        Mode mMode;
+        ShortBuffer mSrc;
+        int mWidth;
+        int mHeight;
+        int mRowStride;
+        int mScale;
+        int mShiftRow;
+        int mShiftCol;
+        int mShiftFactor;
+        int[] mOut;
+        int mStartRow;
+        int mEndRow;
+        CountDownLatch mDone;
+
+        private short[][] mRows = new short[0][];
+        private int[] mAccR = new int[0];
+        private int[] mAccG = new int[0];
+        private int[] mAccB = new int[0];
+
+        void set(Mode mode, ShortBuffer src, int width, int height, int rowStride, int scale,
+                int shiftRow, int shiftCol, int shiftFactor, int[] out, int startRow,
+                int endRow) {
+            mMode = mode;
+            // Each band positions its own view of the source
+            mSrc = src.duplicate();
+            mWidth = width;
+            mHeight = height;
+            mRowStride = rowStride;
+            mScale = scale;
+            mShiftRow = shiftRow;
+            mShiftCol = shiftCol;
+            mShiftFactor = shiftFactor;
+            mOut = out;
+            mStartRow = startRow;
+            mEndRow = endRow;
+        }
+
+        @Override
+        public void run() {
+            try {
+                switch (mMode) {
+                    case NEAREST:
+                        renderNearest();
+                        break;
+                    case BINNED:
+                        renderBinned();
+                        break;
+                    case BILINEAR:
+                        renderBilinear();
+                        break;
+                }
+            } finally {
+                mSrc = null;
+                mOut = null;
+                if (mDone != null) {
+                    mDone.countDown();
+                }
+            }
+        }
+
+        private void ensureScratch(int rowCount, int outW) {
+            if (mRows.length < rowCount || mRows[0].length < mWidth) {
+                mRows = new short[rowCount][mWidth];
+            }
+            if (mAccR.length < outW) {
+                mAccR = new int[outW];
+                mAccG = new int[outW];
+                mAccB = new int[outW];
+            }
+        }
+
+        private void readRow(int y, short[] row) {
+            mSrc.limit(mSrc.capacity());
+            mSrc.position(y * mRowStride);
+            mSrc.get(row, 0, mWidth);
+        }
+
+        private static int pack(int r, int g, int b) {
+            r = (r > 255) ? 255 : r;
+            g = (g > 255) ? 255 : g;
+            b = (b > 255) ? 255 : b;
+            return 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+
+        private void renderNearest() {
+            final int outW = mWidth / mScale;
+            ensureScratch(2, outW);
+            final short[] redRow = mRows[0];
+            final short[] blueRow = mRows[1];
+            final int scale = mScale;
+            final int shift = mShiftFactor;
+            final int redCol = mShiftCol;
+            final int greenCol = 1 - mShiftCol;
+            final int[] out = mOut;
+            for (int y = mStartRow; y < mEndRow; y++) {
+                readRow(y * scale + mShiftRow, redRow);
+                readRow(y * scale + 1 - mShiftRow, blueRow);
+                for (int x = 0, i = 0, j = y * outW; x < outW; x++, i += scale, j++) {
+                    int r = (redRow[i + redCol] & 0xFFFF) >> shift;
+                    int g = (redRow[i + greenCol] & 0xFFFF) >> shift;
+                    int b = (blueRow[i + greenCol] & 0xFFFF) >> shift;
+                    out[j] = pack(r, g, b);
+                }
+            }
+        }
+
+        private void renderBinned() {
+            final int outW = mWidth / mScale;
+            ensureScratch(1, outW);
+            final short[] row = mRows[0];
+            final int[] accR = mAccR;
+            final int[] accG = mAccG;
+            final int[] accB = mAccB;
+            final int scale = mScale;
+            final int shift = mShiftFactor;
+            final int redCol = mShiftCol;
+            final int greenCol = 1 - mShiftCol;
+            final int[] out = mOut;
+            // Each block holds (scale/2)^2 red and blue samples, and twice that many green
+            final int quads = (scale / 2) * (scale / 2);
+            for (int y = mStartRow; y < mEndRow; y++) {
+                for (int x = 0; x < outW; x++) {
+                    accR[x] = 0;
+                    accG[x] = 0;
+                    accB[x] = 0;
+                }
+                int y0 = y * scale;
+                for (int yy = 0; yy < scale; yy++) {
+                    readRow(y0 + yy, row);
+                    if ((yy & 1) == mShiftRow) {
+                        // Red/green row
+                        for (int x = 0, i = 0; x < outW; x++) {
+                            int r = 0;
+                            int g = 0;
+                            for (int end = i + scale; i < end; i += 2) {
+                                r += row[i + redCol] & 0xFFFF;
+                                g += row[i + greenCol] & 0xFFFF;
+                            }
+                            accR[x] += r;
+                            accG[x] += g;
+                        }
+                    } else {
+                        // Green/blue row
+                        for (int x = 0, i = 0; x < outW; x++) {
+                            int g = 0;
+                            int b = 0;
+                            for (int end = i + scale; i < end; i += 2) {
+                                g += row[i + redCol] & 0xFFFF;
+                                b += row[i + greenCol] & 0xFFFF;
+                            }
+                            accG[x] += g;
+                            accB[x] += b;
+                        }
+                    }
+                }
+                for (int x = 0, j = y * outW; x < outW; x++, j++) {
+                    out[j] = pack((accR[x] / quads) >> shift,
+                            (accG[x] / (2 * quads)) >> shift,
+                            (accB[x] / quads) >> shift);
+                }
+            }
+        }
+
+        private void renderBilinear() {
+            final int outW = mWidth / mScale;
+            ensureScratch(3, outW);
+            final short[] above = mRows[0];
+            final short[] center = mRows[1];
+            final short[] below = mRows[2];
+            final int scale = mScale;
+            final int half = scale / 2;
+            final int shift = mShiftFactor;
+            final int width = mWidth;
+            final int[] out = mOut;
+            for (int y = mStartRow; y < mEndRow; y++) {
+                int cy = y * scale + half;
+                readRow(reflect(cy - 1, mHeight), above);
+                readRow(cy, center);
+                readRow(reflect(cy + 1, mHeight), below);
+                boolean redRow = ((cy & 1) == mShiftRow);
+                for (int x = 0, cx = half, j = y * outW; x < outW; x++, cx += scale, j++) {
+                    int left = reflect(cx - 1, width);
+                    int right = reflect(cx + 1, width);
+                    int c = center[cx] & 0xFFFF;
+                    int horiz = ((center[left] & 0xFFFF) + (center[right] & 0xFFFF)) >> 1;
+                    int vert = ((above[cx] & 0xFFFF) + (below[cx] & 0xFFFF)) >> 1;
+                    boolean redCol = ((cx & 1) == mShiftCol);
+                    int r;
+                    int g;
+                    int b;
+                    if (redRow == redCol) {
+                        // Red or blue site: green from the 4 neighbors, other color
+                        // from the 4 diagonals
+                        int diag = ((above[left] & 0xFFFF) + (above[right] & 0xFFFF) +
+                                (below[left] & 0xFFFF) + (below[right] & 0xFFFF)) >> 2;
+                        g = (horiz + vert) >> 1;
+                        if (redRow) {
+                            r = c;
+                            b = diag;
+                        } else {
+                            r = diag;
+                            b = c;
+                        }
+                    } else {
+                        // Green site: red and blue from whichever axis carries them
+                        g = c;
+                        if (redRow) {
+                            r = horiz;
+                            b = vert;
+                        } else {
+                            r = vert;
+                            b = horiz;
+                        }
+                    }
+                    out[j] = pack(r >> shift, g >> shift, b >> shift);
+                }
+            }
+        }
+
+        /**
+         * Mirror an out-of-range coordinate back into the image, preserving its parity so
+         * it lands on the same color filter.
+         */
+        private static int reflect(int v, int size) {
+            if (v < 0) return v + 2;
+            if (v >= size) return v - 2;
+            return v;
+        }
+    }
+}
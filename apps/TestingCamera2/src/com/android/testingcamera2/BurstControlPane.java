@@ -16,13 +16,37 @@
 
 package com.android.testingcamera2;
 
+import android.content.Context;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCaptureSession.CaptureCallback;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
 import android.util.AttributeSet;
+import android.util.Range;
+import android.view.LayoutInflater;
+import android.view.Surface;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.ListView;
+import android.widget.Spinner;
+import android.widget.TextView;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
+/**
+ * Captures bursts of requests, optionally bracketing exposure time, sensitivity or focus
+ * distance across the burst, and measures how fast the camera delivers them.
+ */
 public class BurstControlPane extends ControlPane {
 
     // XML attributes
@@ -30,27 +54,471 @@ public class BurstControlPane extends ControlPane {
     /** Name of pane tag */
     private static final String PANE_NAME = "burst_pane";
 
+    /** Attribute: ID for pane (integer) */
+    private static final String PANE_ID = "id";
+    /** Attribute: Bracketing type, one of the BracketType names (String) */
+    private static final String BRACKET_TYPE = "bracket";
+    /** Attribute: Number of frames in the burst (integer) */
+    private static final String FRAME_COUNT = "count";
+
     // End XML attributes
 
+    private enum BracketType {
+        NONE,
+        EXPOSURE,
+        SENSITIVITY,
+        FOCUS
+    }
+
+    private static final Integer[] FRAME_COUNTS = { 2, 4, 8, 16, 32, 64 };
+    private static final int DEFAULT_FRAME_COUNT_INDEX = 2;
+
+    /** Bounds for exposure bracketing, in ns, so a burst doesn't take seconds */
+    private static final long MIN_BRACKET_EXPOSURE = 100000L; // 100 us
+    private static final long MAX_BRACKET_EXPOSURE = 100000000L; // 100 ms
+    /** Exposure and sensitivity held fixed while bracketing the other one */
+    private static final long FIXED_EXPOSURE = 10000000L; // 10 ms
+    private static final int FIXED_SENSITIVITY = 400;
+
+    private static final long STATUS_UPDATE_INTERVAL_NS = 250000000L; // 250 ms
+
+    private static int mBurstPaneIdCounter = 0;
+
+    private final int mPaneId;
+
+    private List<CameraControlPane> mCameraPanes;
+    private final List<TargetControlPane> mTargetPanes = new ArrayList<TargetControlPane>();
+
+    private Spinner mCameraSpinner;
+    private Spinner mTypeSpinner;
+    private Spinner mCountSpinner;
+    private ListView mOutputListView;
+    private TextView mStatusText;
+
+    private CheckableListAdapter mOutputAdapter;
+
+    private BurstTracker mCurrentBurst;
+
+    /**
+     * Constructor for tooling only
+     */
+    public BurstControlPane(Context context, AttributeSet attrs) {
+        super(context, attrs, null, null);
+
+        mPaneId = 0;
+        setUpUI(context);
+    }
+
     public BurstControlPane(TestingCamera21 tc, AttributeSet attrs, StatusListener listener) {
         super(tc, attrs, listener, tc.getPaneTracker());
 
-        this.setName(tc.getResources().getString(R.string.burst_pane_title));
+        mPaneId = mBurstPaneIdCounter++;
+        setUpUI(tc);
     }
 
     public BurstControlPane(TestingCamera21 tc, XmlPullParser configParser, StatusListener listener)
             throws XmlPullParserException, IOException {
         super(tc, null, listener, tc.getPaneTracker());
 
-        this.setName(tc.getResources().getString(R.string.request_pane_title));
-
         configParser.require(XmlPullParser.START_TAG,
                 XmlPullParser.NO_NAMESPACE, PANE_NAME);
-        // Parse attributes here
+
+        int paneId = getAttributeInt(configParser, PANE_ID, -1);
+        if (paneId == -1) {
+            mPaneId = mBurstPaneIdCounter++;
+        } else {
+            mPaneId = paneId;
+            if (mPaneId >= mBurstPaneIdCounter) {
+                mBurstPaneIdCounter = mPaneId + 1;
+            }
+        }
+
+        String bracketName = getAttributeString(configParser, BRACKET_TYPE,
+                BracketType.NONE.toString());
+        BracketType bracket;
+        try {
+            bracket = BracketType.valueOf(bracketName.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            throw new XmlPullParserException("Unknown bracket type " + bracketName,
+                    configParser, e);
+        }
+        int count = getAttributeInt(configParser, FRAME_COUNT,
+                FRAME_COUNTS[DEFAULT_FRAME_COUNT_INDEX]);
+
         configParser.next();
         configParser.require(XmlPullParser.END_TAG,
                 XmlPullParser.NO_NAMESPACE, PANE_NAME);
 
+        setUpUI(tc);
+
+        mTypeSpinner.setSelection(bracket.ordinal());
+        for (int i = 0; i < FRAME_COUNTS.length; i++) {
+            if (FRAME_COUNTS[i] == count) {
+                mCountSpinner.setSelection(i);
+            }
+        }
+    }
+
+    @Override
+    public void notifyPaneEvent(ControlPane sourcePane, PaneTracker.PaneEvent event) {
+        switch (event) {
+            case NEW_CAMERA_SELECTED:
+            case CAMERA_CONFIGURED:
+                if (mCameraPanes.size() > 0
+                        && sourcePane == mCameraPanes.get(mCameraSpinner.getSelectedItemPosition())) {
+                    updateOutputList();
+                }
+                break;
+            default:
+                super.notifyPaneEvent(sourcePane, event);
+        }
+    }
+
+    private void setUpUI(Context context) {
+        String paneName =
+                String.format(Locale.US, "%s %d",
+                        context.getResources().getString(R.string.burst_pane_title), mPaneId);
+        this.setName(paneName);
+
+        LayoutInflater inflater =
+                (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+
+        inflater.inflate(R.layout.burst_pane, this);
+
+        Button captureButton = (Button) findViewById(R.id.burst_pane_capture_button);
+        captureButton.setOnClickListener(mCaptureButtonListener);
+        Button repeatButton = (Button) findViewById(R.id.burst_pane_repeat_button);
+        repeatButton.setOnClickListener(mRepeatButtonListener);
+
+        mCameraSpinner = (Spinner) findViewById(R.id.burst_pane_camera_spinner);
+        mTypeSpinner = (Spinner) findViewById(R.id.burst_pane_type_spinner);
+        mCountSpinner = (Spinner) findViewById(R.id.burst_pane_count_spinner);
+        mOutputListView = (ListView) findViewById(R.id.burst_pane_output_listview);
+        mStatusText = (TextView) findViewById(R.id.burst_pane_status_text);
+
+        mOutputAdapter = new CheckableListAdapter(context, R.layout.checkable_list_item,
+                new ArrayList<CheckableListAdapter.CheckableItem>());
+        mOutputListView.setAdapter(mOutputAdapter);
+
+        String[] typeNames = new String[BracketType.values().length];
+        for (int i = 0; i < typeNames.length; i++) {
+            typeNames[i] = BracketType.values()[i].toString();
+        }
+        mTypeSpinner.setAdapter(new ArrayAdapter<String>(getContext(), R.layout.spinner_item,
+                typeNames));
+        mCountSpinner.setAdapter(new ArrayAdapter<Integer>(getContext(), R.layout.spinner_item,
+                FRAME_COUNTS));
+        mCountSpinner.setSelection(DEFAULT_FRAME_COUNT_INDEX);
+
+        mPaneTracker.addPaneListener(new CameraPanesListener());
+        mCameraPanes = mPaneTracker.getPanes(CameraControlPane.class);
+        updateCameraPaneList();
+    }
+
+    private class CameraPanesListener extends PaneTracker.PaneSetChangedListener<CameraControlPane> {
+        public CameraPanesListener() {
+            super(CameraControlPane.class);
+        }
+
+        @Override
+        public void onPaneAdded(ControlPane pane) {
+            mCameraPanes.add((CameraControlPane) pane);
+            updateCameraPaneList();
+        }
+
+        @Override
+        public void onPaneRemoved(ControlPane pane) {
+            mCameraPanes.remove((CameraControlPane) pane);
+            updateCameraPaneList();
+        }
+    }
+
+    private OnClickListener mCaptureButtonListener = new OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            startBurst(/*repeating*/false);
+        }
+    };
+
+    private OnClickListener mRepeatButtonListener = new OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            startBurst(/*repeating*/true);
+        }
+    };
+
+    private void startBurst(boolean repeating) {
+        if (mCameraPanes.size() == 0) {
+            TLog.e("No camera selected for burst");
+            return;
+        }
+        CameraControlPane camera = mCameraPanes.get(mCameraSpinner.getSelectedItemPosition());
+
+        List<CaptureRequest> burst = createBurst(camera);
+        if (burst == null) return;
+
+        BurstTracker tracker = new BurstTracker(camera, burst.size(), repeating);
+        int sequenceId = repeating ?
+                camera.repeatBurst(burst, tracker) :
+                camera.captureBurst(burst, tracker);
+        if (sequenceId == -1) return;
+
+        if (mCurrentBurst != null) {
+            mCurrentBurst.stopReporting();
+        }
+        mCurrentBurst = tracker;
+        TLog.i("%s: %s %d-frame %s burst, sequence %d", getPaneName(),
+                repeating ? "Repeating" : "Capturing", burst.size(),
+                mTypeSpinner.getSelectedItem(), sequenceId);
+    }
+
+    private List<CaptureRequest> createBurst(CameraControlPane camera) {
+        if (mTargetPanes.size() == 0) {
+            TLog.e("No target(s) selected for burst");
+            return null;
+        }
+        BracketType bracket = BracketType.valueOf((String) mTypeSpinner.getSelectedItem());
+        int count = (Integer) mCountSpinner.getSelectedItem();
+
+        CaptureRequest.Builder builder =
+                camera.getRequestBuilder(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        if (builder == null) return null;
+
+        List<Integer> targetPositions = mOutputAdapter.getCheckedPositions();
+        for (int i : targetPositions) {
+            TargetControlPane target = mTargetPanes.get(i);
+            Surface targetSurface = target.getTargetSurfaceForCameraPane(camera.getPaneName());
+            if (targetSurface == null) {
+                TLog.e("Target not configured for camera");
+                return null;
+            }
+            builder.addTarget(targetSurface);
+        }
+
+        CameraCharacteristics info = camera.getCharacteristics();
+        Range<Long> exposureRange = null;
+        Range<Integer> sensitivityRange = null;
+        Float minFocusDistance = null;
+        if (info != null) {
+            exposureRange = info.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+            sensitivityRange = info.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+            minFocusDistance = info.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+        }
+
+        switch (bracket) {
+            case EXPOSURE:
+            case SENSITIVITY:
+                if (exposureRange == null || sensitivityRange == null) {
+                    TLog.e("Camera %s does not support manual exposure", camera.getPaneName());
+                    return null;
+                }
+                builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+                builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposureRange.clamp(FIXED_EXPOSURE));
+                builder.set(CaptureRequest.SENSOR_SENSITIVITY,
+                        sensitivityRange.clamp(FIXED_SENSITIVITY));
+                break;
+            case FOCUS:
+                if (minFocusDistance == null || minFocusDistance == 0) {
+                    TLog.e("Camera %s has a fixed-focus lens", camera.getPaneName());
+                    return null;
+                }
+                builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_OFF);
+                break;
+            case NONE:
+                break;
+        }
+
+        List<CaptureRequest> burst = new ArrayList<CaptureRequest>(count);
+        for (int i = 0; i < count; i++) {
+            // Position of this frame in the bracket, from 0 to 1
+            double fraction = (count > 1) ? (double) i / (count - 1) : 0;
+            switch (bracket) {
+                case EXPOSURE: {
+                    // Geometric steps, so each frame is the same number of stops apart
+                    long min = Math.max(exposureRange.getLower(), MIN_BRACKET_EXPOSURE);
+                    long max = Math.min(exposureRange.getUpper(), MAX_BRACKET_EXPOSURE);
+                    long exposure = Math.round(min * Math.pow((double) max / min, fraction));
+                    builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME,
+                            exposureRange.clamp(exposure));
+                    break;
+                }
+                case SENSITIVITY: {
+                    int min = sensitivityRange.getLower();
+                    int max = sensitivityRange.getUpper();
+                    builder.set(CaptureRequest.SENSOR_SENSITIVITY,
+                            (int) Math.round(min + (max - min) * fraction));
+                    break;
+                }
+                case FOCUS:
+                    // From infinity to the closest focus distance, in diopters
+                    builder.set(CaptureRequest.LENS_FOCUS_DISTANCE,
+                            (float) (minFocusDistance * fraction));
+                    break;
+                case NONE:
+                    break;
+            }
+            burst.add(builder.build());
+        }
+        return burst;
+    }
+
+    private void updateCameraPaneList() {
+        String currentSelection = (String) mCameraSpinner.getSelectedItem();
+        int newSelectionIndex = 0;
+        String[] cameraSpinnerItems = new String[mCameraPanes.size()];
+        for (int i = 0; i < cameraSpinnerItems.length; i++) {
+            cameraSpinnerItems[i] = mCameraPanes.get(i).getPaneName();
+            if (cameraSpinnerItems[i].equals(currentSelection)) {
+                newSelectionIndex = i;
+            }
+        }
+        mCameraSpinner.setAdapter(new ArrayAdapter<String>(getContext(), R.layout.spinner_item,
+                cameraSpinnerItems));
+        mCameraSpinner.setSelection(newSelectionIndex);
+
+        updateOutputList();
     }
 
+    private void updateOutputList() {
+        if (mCameraPanes.size() > 0) {
+            CameraControlPane currentCamera =
+                    mCameraPanes.get(mCameraSpinner.getSelectedItemPosition());
+            mTargetPanes.clear();
+            List<TargetControlPane> newPanes = currentCamera.getCurrentConfiguredTargets();
+            if (newPanes != null) {
+                mTargetPanes.addAll(newPanes);
+            }
+
+            String[] outputSpinnerItems = new String[mTargetPanes.size()];
+            for (int i = 0; i < outputSpinnerItems.length; i++) {
+                outputSpinnerItems[i] = mTargetPanes.get(i).getPaneName();
+            }
+
+            mOutputAdapter.updateItems(outputSpinnerItems);
+        }
+    }
+
+    /**
+     * Counts completed, failed and dropped frames for one submitted burst, and measures
+     * sustained throughput from the first completed frame onwards. Callbacks may arrive on any
+     * thread; status updates are posted to the UI thread.
+     *
+     * <p>Each frame counts once: as failed if the camera reported an error for it, or as
+     * dropped if it was flushed or never reported at all. Unreported frames are counted when
+     * the sequence ends: for a single burst, against the burst length, and for a repeating
+     * burst, against the frames the camera reported starting.</p>
+     */
+    private class BurstTracker extends CaptureCallback {
+        private final CameraControlPane mCamera;
+        private final int mBurstLength;
+        private final boolean mRepeating;
+
+        private int mCompleted = 0;
+        private int mFailed = 0;
+        private int mDropped = 0;
+        private int mStarted = 0;
+        private long mFirstCompletedTime = -1;
+        private long mFirstCompletedBytes;
+        private long mLastCompletedTime;
+        private long mLastStatusTime = 0;
+        private volatile boolean mReporting = true;
+
+        BurstTracker(CameraControlPane camera, int burstLength, boolean repeating) {
+            mCamera = camera;
+            mBurstLength = burstLength;
+            mRepeating = repeating;
+        }
+
+        void stopReporting() {
+            mReporting = false;
+        }
+
+        @Override
+        public synchronized void onCaptureStarted(CameraCaptureSession session,
+                CaptureRequest request, long timestamp, long frameNumber) {
+            mStarted++;
+        }
+
+        @Override
+        public synchronized void onCaptureCompleted(CameraCaptureSession session,
+                CaptureRequest request, TotalCaptureResult result) {
+            long now = System.nanoTime();
+            if (mFirstCompletedTime == -1) {
+                mFirstCompletedTime = now;
+                mFirstCompletedBytes = mCamera.getOutputBytes();
+            }
+            mLastCompletedTime = now;
+            mCompleted++;
+            if (now - mLastStatusTime > STATUS_UPDATE_INTERVAL_NS) {
+                mLastStatusTime = now;
+                postStatus(getStatus());
+            }
+        }
+
+        @Override
+        public synchronized void onCaptureFailed(CameraCaptureSession session,
+                CaptureRequest request, CaptureFailure failure) {
+            if (failure.getReason() == CaptureFailure.REASON_FLUSHED) {
+                mDropped++;
+            } else {
+                mFailed++;
+            }
+        }
+
+        @Override
+        public synchronized void onCaptureSequenceCompleted(CameraCaptureSession session,
+                int sequenceId, long frameNumber) {
+            countUnreported();
+            finish("completed");
+        }
+
+        @Override
+        public synchronized void onCaptureSequenceAborted(CameraCaptureSession session,
+                int sequenceId) {
+            countUnreported();
+            finish("aborted");
+        }
+
+        /**
+         * Count frames that neither completed nor failed as dropped, once the sequence is over
+         */
+        private void countUnreported() {
+            int expected = mRepeating ? mStarted : mBurstLength;
+            mDropped += Math.max(0, expected - mCompleted - mFailed - mDropped);
+        }
+
+        private void finish(String how) {
+            String status = getStatus();
+            if (mReporting) {
+                TLog.i("%s: Burst %s. %s", getPaneName(), how, status);
+            }
+            postStatus(status);
+        }
+
+        private String getStatus() {
+            double seconds = (mLastCompletedTime - mFirstCompletedTime) / 1e9;
+            double fps = 0;
+            double mbps = 0;
+            if (mCompleted > 1 && seconds > 0) {
+                fps = (mCompleted - 1) / seconds;
+                mbps = (mCamera.getOutputBytes() - mFirstCompletedBytes) /
+                        (1024. * 1024.) / seconds;
+            }
+            return String.format(Locale.US,
+                    "%d completed, %d failed, %d dropped: %.1f frames/s, %.1f MB/s",
+                    mCompleted, mFailed, mDropped, fps, mbps);
+        }
+
+        private void postStatus(final String status) {
+            if (!mReporting) return;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mReporting) {
+                        mStatusText.setText(status);
+                    }
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.Locale;
+
+/**
+ * The threads that one camera's callbacks are delivered on.
+ *
+ * <p>Modes:</p>
+ * <ul>
+ *   <li>MAIN: everything on the main looper, alongside UI drawing.</li>
+ *   <li>CAMERA: one thread per camera for device, session and capture result callbacks.</li>
+ *   <li>CAMERA_AND_RESULT: as CAMERA, plus a separate thread for capture results, so a burst
+ *       of results can't hold up device and session state changes.</li>
+ * </ul>
+ *
+ * <p>Device and session state callbacks drive UI state, so the wrappers returned by
+ * onUiThread() receive them on the camera thread and re-post them to the main looper, in order.
+ * Capture result listeners run directly on the result thread and must be thread-safe.</p>
+ */
+public class CameraCallbackThreads {
+
+    public enum Mode {
+        MAIN,
+        CAMERA,
+        CAMERA_AND_RESULT
+    }
+
+    private final Mode mMode;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread mCameraThread;
+    private final HandlerThread mResultThread;
+    private final Handler mCameraHandler;
+    private final Handler mResultHandler;
+
+    /**
+     * @param name used to name the threads
+     * @param mode which threads to start
+     */
+    public CameraCallbackThreads(String name, Mode mode) {
+        mMode = mode;
+        if (mode == Mode.MAIN) {
+            mCameraThread = null;
+            mCameraHandler = mUiHandler;
+        } else {
+            mCameraThread = new HandlerThread(String.format(Locale.US, "%s callbacks", name));
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+        }
+        if (mode == Mode.CAMERA_AND_RESULT) {
+            mResultThread = new HandlerThread(String.format(Locale.US, "%s results", name));
+            mResultThread.start();
+            mResultHandler = new Handler(mResultThread.getLooper());
+        } else {
+            mResultThread = null;
+            mResultHandler = mCameraHandler;
+        }
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Handler for camera device and capture session state callbacks
+     */
+    public Handler getCameraHandler() {
+        return mCameraHandler;
+    }
+
+    /**
+     * Handler for capture result callbacks
+     */
+    public Handler getResultHandler() {
+        return mResultHandler;
+    }
+
+    /**
+     * Stop the threads once the callbacks already queued on them have run.
+     */
+    public void quit() {
+        if (mCameraThread != null) {
+            mCameraThread.quitSafely();
+        }
+        if (mResultThread != null) {
+            mResultThread.quitSafely();
+        }
+    }
+
+    /**
+     * Wrap a device state callback so that it runs on the main looper.
+     */
+    public CameraDevice.StateCallback onUiThread(final CameraDevice.StateCallback callback) {
+        if (mMode == Mode.MAIN) return callback;
+        return new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(final CameraDevice camera) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onOpened(camera);
+                    }
+                });
+            }
+
+            @Override
+            public void onClosed(final CameraDevice camera) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onClosed(camera);
+                    }
+                });
+            }
+
+            @Override
+            public void onDisconnected(final CameraDevice camera) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDisconnected(camera);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(final CameraDevice camera, final int error) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onError(camera, error);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Wrap a capture session state callback so that it runs on the main looper.
+     */
+    public CameraCaptureSession.StateCallback onUiThread(
+            final CameraCaptureSession.StateCallback callback) {
+        if (mMode == Mode.MAIN) return callback;
+        return new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(final CameraCaptureSession session) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onConfigured(session);
+                    }
+                });
+            }
+
+            @Override
+            public void onConfigureFailed(final CameraCaptureSession session) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onConfigureFailed(session);
+                    }
+                });
+            }
+
+            @Override
+            public void onReady(final CameraCaptureSession session) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReady(session);
+                    }
+                });
+            }
+
+            @Override
+            public void onActive(final CameraCaptureSession session) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onActive(session);
+                    }
+                });
+            }
+
+            @Override
+            public void onClosed(final CameraCaptureSession session) {
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onClosed(session);
+                    }
+                });
+            }
+        };
+    }
+}
@@ -17,11 +17,12 @@
 package com.android.testingcamera2;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.util.AttributeSet;
@@ -43,6 +44,7 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 
@@ -69,11 +71,16 @@ public class CameraControlPane extends ControlPane {
     private static final String PANE_ID = "id";
     /** Attribute: ID for camera to select (String) */
     private static final String CAMERA_ID = "camera_id";
+    /** Attribute: Callback threading, one of the CameraCallbackThreads.Mode names (String) */
+    private static final String CALLBACK_THREADS = "callback_threads";
 
     // End XML attributes
 
     private static final int MAX_CACHED_RESULTS = 100;
 
+    private static final CameraCallbackThreads.Mode DEFAULT_CALLBACK_THREADS =
+            CameraCallbackThreads.Mode.CAMERA;
+
     private static int mCameraPaneIdCounter = 0;
 
     /**
@@ -112,6 +119,7 @@ public class CameraControlPane extends ControlPane {
 
     private CameraOps2 mCameraOps;
     private InfoDisplayer mInfoDisplayer;
+    private CameraCallbackThreads mCallbackThreads;
 
     private Spinner mCameraSpinner;
     private ToggleButton mOpenButton;
@@ -120,6 +128,7 @@ public class CameraControlPane extends ControlPane {
     private Button mConfigureButton;
     private Button mStopButton;
     private Button mFlushButton;
+    private Button mLatencyButton;
 
     /**
      * All controls that should be enabled when there's a valid camera ID
@@ -145,7 +154,14 @@ public class CameraControlPane extends ControlPane {
     private CameraCaptureSession mCurrentCaptureSession;
     private SessionState mSessionState = SessionState.NONE;
     private CameraCall mActiveCameraCall;
-    private LinkedList<TotalCaptureResult> mRecentResults = new LinkedList<>();
+    private final CaptureResultRing mRecentResults = new CaptureResultRing(MAX_CACHED_RESULTS);
+    private final CaptureLatencyTracker mLatencyTracker = new CaptureLatencyTracker();
+    private final AtomicLong mOutputBytes = new AtomicLong();
+    private final CameraThroughputStats mThroughputStats = new CameraThroughputStats();
+    /** Configure the camera as soon as it opens; set by startConcurrentRun */
+    private boolean mConfigureOnOpen = false;
+    /** Configure the camera once every target aimed at it has its Surface ready */
+    private boolean mConfigureWhenTargetsReady = false;
 
     private List<Surface> mConfiguredSurfaces;
     private List<TargetControlPane> mConfiguredTargetPanes;
@@ -166,6 +182,7 @@ public class CameraControlPane extends ControlPane {
 
         mPaneId = mCameraPaneIdCounter++;
         setUpUI(tc);
+        mCallbackThreads = new CameraCallbackThreads(getPaneName(), DEFAULT_CALLBACK_THREADS);
         initializeCameras(tc);
 
         if (mCameraIds != null) {
@@ -191,10 +208,21 @@ public class CameraControlPane extends ControlPane {
 
         String cameraId = getAttributeString(configParser, CAMERA_ID, null);
 
+        String threadsName = getAttributeString(configParser, CALLBACK_THREADS,
+                DEFAULT_CALLBACK_THREADS.toString());
+        CameraCallbackThreads.Mode threads;
+        try {
+            threads = CameraCallbackThreads.Mode.valueOf(threadsName.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            throw new XmlPullParserException("Unknown callback threading " + threadsName,
+                    configParser, e);
+        }
+
         configParser.next();
         configParser.require(XmlPullParser.END_TAG, XmlPullParser.NO_NAMESPACE, PANE_NAME);
 
         setUpUI(tc);
+        mCallbackThreads = new CameraCallbackThreads(getPaneName(), threads);
         initializeCameras(tc);
 
         boolean gotCamera = false;
@@ -216,9 +244,84 @@ public class CameraControlPane extends ControlPane {
     @Override
     public void remove() {
         closeCurrentCamera();
+        if (mCallbackThreads != null) {
+            mCallbackThreads.quit();
+        }
         super.remove();
     }
 
+    /**
+     * Get this pane's ID, as used by the id attribute in XML configurations
+     */
+    public int getPaneId() {
+        return mPaneId;
+    }
+
+    /**
+     * Get the ID of the currently selected camera device, or null if there is none
+     */
+    public String getCameraId() {
+        return mCurrentCameraId;
+    }
+
+    /**
+     * Open the camera if needed, and configure it with all the targets aimed at it once each
+     * of them has its Surface ready. Used to start several cameras streaming together.
+     */
+    public void startConcurrentRun() {
+        if (mCameraState == CameraState.OPENED && mCurrentCamera != null) {
+            configureWhenTargetsReady();
+        } else if (mCameraState == CameraState.CLOSED) {
+            mConfigureOnOpen = true;
+            mOpenButton.setChecked(true);
+            if (!mOpenButton.isChecked()) {
+                mConfigureOnOpen = false;
+            }
+        } else {
+            TLog.e("Camera %s can't be started in state %s", mCurrentCameraId, mCameraState);
+        }
+    }
+
+    @Override
+    public void notifyPaneEvent(ControlPane sourcePane, PaneEvent event) {
+        switch (event) {
+        case TARGET_SURFACE_READY:
+            maybeConfigureForConcurrentRun();
+            break;
+        default:
+            super.notifyPaneEvent(sourcePane, event);
+        }
+    }
+
+    private void configureWhenTargetsReady() {
+        mConfigureWhenTargetsReady = true;
+        maybeConfigureForConcurrentRun();
+    }
+
+    private void maybeConfigureForConcurrentRun() {
+        if (!mConfigureWhenTargetsReady) return;
+        if (mCameraState != CameraState.OPENED || mCurrentCamera == null) {
+            // Closed or failed while waiting
+            mConfigureWhenTargetsReady = false;
+            return;
+        }
+        for (TargetControlPane targetPane : mPaneTracker.getPanes(TargetControlPane.class)) {
+            if (targetPane.isTargetPendingForCameraPane(getPaneName())) {
+                TLog.i("%s: Waiting for %s to be ready", getPaneName(), targetPane.getPaneName());
+                return;
+            }
+        }
+        mConfigureWhenTargetsReady = false;
+        configure();
+    }
+
+    /**
+     * Get this camera's frame rate and drop counters. Safe to call from any thread.
+     */
+    public CameraThroughputStats getThroughputStats() {
+        return mThroughputStats;
+    }
+
     /**
      * Get list of target panes that are currently actively configured for this
      * camera
@@ -265,21 +368,45 @@ public class CameraControlPane extends ControlPane {
      * @return true if capture sent successfully
      */
     public boolean capture(CaptureRequest request) {
+        return capture(request, null) != -1;
+    }
+
+    /**
+     * Send single capture to camera device.
+     *
+     * @param request
+     * @param listener additional listener for the capture's results, may be null; called on
+     *            the result thread
+     * @return the capture's sequence ID, or -1 if it couldn't be sent
+     */
+    public int capture(CaptureRequest request, CaptureCallback listener) {
         if (mCurrentCaptureSession != null) {
+            long submitTime = System.nanoTime();
+            Object submit = mLatencyTracker.onSubmit(Collections.singletonList(request),
+                    submitTime);
             try {
-                mCurrentCaptureSession.capture(request, mResultListener, null);
-                return true;
+                int sequenceId = mCurrentCaptureSession.capture(request,
+                        withResultListener(mResultListener, listener),
+                        mCallbackThreads.getResultHandler());
+                mLatencyTracker.onSubmitted(submit, sequenceId);
+                SessionTrace.submit(mPaneId, sequenceId, /*repeating*/false, submitTime);
+                return sequenceId;
             } catch (CameraAccessException e) {
+                mLatencyTracker.onSubmitFailed(submit);
                 TLog.e("Unable to capture for camera %s.", e, mCurrentCameraId);
             }
         }
-        return false;
+        return -1;
     }
 
     public boolean repeat(CaptureRequest request) {
         if (mCurrentCaptureSession != null) {
+            long submitTime = System.nanoTime();
+            mThroughputStats.onRepeatingChanged();
             try {
-                mCurrentCaptureSession.setRepeatingRequest(request, mResultListener, null);
+                int sequenceId = mCurrentCaptureSession.setRepeatingRequest(request,
+                        mRepeatingResultListener, mCallbackThreads.getResultHandler());
+                SessionTrace.submit(mPaneId, sequenceId, /*repeating*/true, submitTime);
                 return true;
             } catch (CameraAccessException e) {
                 TLog.e("Unable to set repeating request for camera %s.", e, mCurrentCameraId);
@@ -288,26 +415,223 @@ public class CameraControlPane extends ControlPane {
         return false;
     }
 
-    public TotalCaptureResult getResultAt(long timestamp) {
-        for (TotalCaptureResult result : mRecentResults) {
-            long resultTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
-            if (resultTimestamp == timestamp) return result;
-            if (resultTimestamp > timestamp) return null;
+    /**
+     * Send a burst of captures to the camera device.
+     *
+     * @param requests the requests to capture, in order
+     * @param listener additional listener for the burst's results, may be null; called on
+     *            the result thread
+     * @return the burst's sequence ID, or -1 if it couldn't be sent
+     */
+    public int captureBurst(List<CaptureRequest> requests, CaptureCallback listener) {
+        if (mCurrentCaptureSession != null) {
+            long submitTime = System.nanoTime();
+            Object submit = mLatencyTracker.onSubmit(requests, submitTime);
+            try {
+                int sequenceId = mCurrentCaptureSession.captureBurst(requests,
+                        withResultListener(mResultListener, listener),
+                        mCallbackThreads.getResultHandler());
+                mLatencyTracker.onSubmitted(submit, sequenceId);
+                SessionTrace.submit(mPaneId, sequenceId, /*repeating*/false, submitTime);
+                return sequenceId;
+            } catch (CameraAccessException e) {
+                mLatencyTracker.onSubmitFailed(submit);
+                TLog.e("Unable to capture burst for camera %s.", e, mCurrentCameraId);
+            }
         }
-        return null;
+        return -1;
     }
 
-    private CaptureCallback mResultListener = new CaptureCallback() {
+    /**
+     * Repeatedly capture a burst of requests, replacing any current repeating request.
+     *
+     * @param requests the requests to capture, in order
+     * @param listener additional listener for the burst's results, may be null; called on
+     *            the result thread
+     * @return the burst's sequence ID, or -1 if it couldn't be sent
+     */
+    public int repeatBurst(List<CaptureRequest> requests, CaptureCallback listener) {
+        if (mCurrentCaptureSession != null) {
+            long submitTime = System.nanoTime();
+            mThroughputStats.onRepeatingChanged();
+            try {
+                int sequenceId = mCurrentCaptureSession.setRepeatingBurst(requests,
+                        withResultListener(mRepeatingResultListener, listener),
+                        mCallbackThreads.getResultHandler());
+                SessionTrace.submit(mPaneId, sequenceId, /*repeating*/true, submitTime);
+                return sequenceId;
+            } catch (CameraAccessException e) {
+                TLog.e("Unable to set repeating burst for camera %s.", e, mCurrentCameraId);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add to the count of output image bytes received from this camera. Safe to call from
+     * any thread.
+     */
+    public void addOutputBytes(long bytes) {
+        mOutputBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Get the total number of output image bytes received from this camera so far.
+     */
+    public long getOutputBytes() {
+        return mOutputBytes.get();
+    }
+
+    private static CaptureCallback withResultListener(CaptureCallback resultListener,
+            CaptureCallback listener) {
+        if (listener == null) return resultListener;
+        return new ForwardingCaptureCallback(resultListener, listener);
+    }
+
+    /**
+     * Passes every callback on to two listeners, in order
+     */
+    private static class ForwardingCaptureCallback extends CaptureCallback {
+        private final CaptureCallback mFirst;
+        private final CaptureCallback mSecond;
+
+        ForwardingCaptureCallback(CaptureCallback first, CaptureCallback second) {
+            mFirst = first;
+            mSecond = second;
+        }
+
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                long timestamp, long frameNumber) {
+            mFirst.onCaptureStarted(session, request, timestamp, frameNumber);
+            mSecond.onCaptureStarted(session, request, timestamp, frameNumber);
+        }
+
+        @Override
+        public void onCaptureProgressed(CameraCaptureSession session, CaptureRequest request,
+                CaptureResult partialResult) {
+            mFirst.onCaptureProgressed(session, request, partialResult);
+            mSecond.onCaptureProgressed(session, request, partialResult);
+        }
+
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                TotalCaptureResult result) {
+            mFirst.onCaptureCompleted(session, request, result);
+            mSecond.onCaptureCompleted(session, request, result);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                CaptureFailure failure) {
+            mFirst.onCaptureFailed(session, request, failure);
+            mSecond.onCaptureFailed(session, request, failure);
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(CameraCaptureSession session, int sequenceId,
+                long frameNumber) {
+            mFirst.onCaptureSequenceCompleted(session, sequenceId, frameNumber);
+            mSecond.onCaptureSequenceCompleted(session, sequenceId, frameNumber);
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CameraCaptureSession session, int sequenceId) {
+            mFirst.onCaptureSequenceAborted(session, sequenceId);
+            mSecond.onCaptureSequenceAborted(session, sequenceId);
+        }
+    }
+
+    /**
+     * Get a recent capture result by its sensor timestamp. Safe to call from any thread.
+     *
+     * @param timestamp the sensor timestamp of the result, in nanoseconds
+     * @return the matching result, or null if it is no longer (or not yet) cached
+     */
+    public TotalCaptureResult getResultAt(long timestamp) {
+        return mRecentResults.get(timestamp);
+    }
+
+    /**
+     * Get the tracker correlating this camera's requests, results and output images. Safe to
+     * call from any thread.
+     */
+    public CaptureLatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    /** Listener for single captures and bursts */
+    private final CaptureCallback mResultListener = new ResultListener(/*repeating*/false);
+    /** Listener for repeating requests and repeating bursts */
+    private final CaptureCallback mRepeatingResultListener =
+            new ResultListener(/*repeating*/true);
+
+    /**
+     * Runs on the result thread (see CameraCallbackThreads), so only touches thread-safe state
+     */
+    private class ResultListener extends CaptureCallback {
+        private final boolean mRepeating;
+
+        ResultListener(boolean repeating) {
+            mRepeating = repeating;
+        }
+
+        @Override
+        public void onCaptureStarted(
+                CameraCaptureSession session,
+                CaptureRequest request,
+                long timestamp,
+                long frameNumber) {
+            mLatencyTracker.onCaptureStarted(request, mRepeating, frameNumber, timestamp,
+                    System.nanoTime());
+        }
+
+        @Override
+        public void onCaptureFailed(
+                CameraCaptureSession session,
+                CaptureRequest request,
+                CaptureFailure failure) {
+            mLatencyTracker.onCaptureFailed(request, mRepeating, failure.getSequenceId(),
+                    failure.getFrameNumber());
+            mThroughputStats.onFailure();
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(
+                CameraCaptureSession session,
+                int sequenceId,
+                long frameNumber) {
+            if (!mRepeating) {
+                mLatencyTracker.onSequenceFinished(sequenceId);
+            }
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(
+                CameraCaptureSession session,
+                int sequenceId) {
+            if (!mRepeating) {
+                mLatencyTracker.onSequenceFinished(sequenceId);
+            }
+        }
+
+        @Override
         public void onCaptureCompleted(
                 CameraCaptureSession session,
                 CaptureRequest request,
                 TotalCaptureResult result) {
+            mLatencyTracker.onCaptureCompleted(result.getFrameNumber(), System.nanoTime());
             mRecentResults.add(result);
-            if (mRecentResults.size() > MAX_CACHED_RESULTS) {
-                mRecentResults.remove();
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+            mThroughputStats.onResult((timestamp != null) ? timestamp : -1,
+                    (frameDuration != null) ? frameDuration : -1, mRepeating);
+            if (SessionTrace.isActive()) {
+                SessionTrace.captureCompleted(mPaneId, result.getSequenceId(),
+                        result.getFrameNumber(), (timestamp != null) ? timestamp : -1);
             }
         }
-    };
+    }
 
     private void setUpUI(Context context) {
         String paneName =
@@ -344,6 +668,9 @@ public class CameraControlPane extends ControlPane {
         mFlushButton = (Button) findViewById(R.id.camera_pane_flush_button);
         mFlushButton.setOnClickListener(mFlushButtonListener);
         mConfiguredControls.add(mFlushButton);
+        mLatencyButton = (Button) findViewById(R.id.camera_pane_latency_button);
+        mLatencyButton.setOnClickListener(mLatencyButtonListener);
+        mConfiguredControls.add(mLatencyButton);
     }
 
     private void initializeCameras(TestingCamera21 tc) {
@@ -376,7 +703,9 @@ public class CameraControlPane extends ControlPane {
                     if (isChecked) {
                         // Open camera
                         mCurrentCamera = null;
-                        boolean success = mCameraOps.openCamera(mCurrentCameraId, mCameraListener);
+                        boolean success = mCameraOps.openCamera(mCurrentCameraId,
+                                mCallbackThreads.onUiThread(mCameraListener),
+                                mCallbackThreads.getCameraHandler());
                         buttonView.setChecked(success);
                     } else {
                         // Close camera
@@ -396,6 +725,7 @@ public class CameraControlPane extends ControlPane {
         @Override
         public void onClick(View v) {
             if (mCurrentCaptureSession != null) {
+                mThroughputStats.onRepeatingChanged();
                 try {
                     mCurrentCaptureSession.stopRepeating();
                 } catch (CameraAccessException e) {
@@ -405,10 +735,24 @@ public class CameraControlPane extends ControlPane {
         }
     };
 
+    private final OnClickListener mLatencyButtonListener = new OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            String summary = mLatencyTracker.getSummary();
+            if (summary.isEmpty()) {
+                TLog.i("No capture latency samples yet for camera %s.", mCurrentCameraId);
+            } else {
+                TLog.i("Capture latency for camera %s, last %d samples:\n%s",
+                        mCurrentCameraId, CaptureLatencyTracker.WINDOW_SIZE, summary);
+            }
+        }
+    };
+
     private final OnClickListener mFlushButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
             if (mCurrentCaptureSession != null) {
+                mThroughputStats.onRepeatingChanged();
                 try {
                     mCurrentCaptureSession.abortCaptures();
                 } catch (CameraAccessException e) {
@@ -421,39 +765,48 @@ public class CameraControlPane extends ControlPane {
     private final OnClickListener mConfigureButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
-            List<Surface> targetSurfaces = new ArrayList<Surface>();
-            List<TargetControlPane> targetPanes = new ArrayList<TargetControlPane>();
-            for (TargetControlPane targetPane : mPaneTracker.getPanes(TargetControlPane.class)) {
-                Surface target = targetPane.getTargetSurfaceForCameraPane(getPaneName());
-                if (target != null) {
-                    targetSurfaces.add(target);
-                    targetPanes.add(targetPane);
-                }
+            configure();
+        }
+    };
+
+    /**
+     * Create a new capture session with all the targets currently aimed at this camera
+     */
+    private void configure() {
+        List<Surface> targetSurfaces = new ArrayList<Surface>();
+        List<TargetControlPane> targetPanes = new ArrayList<TargetControlPane>();
+        for (TargetControlPane targetPane : mPaneTracker.getPanes(TargetControlPane.class)) {
+            Surface target = targetPane.getTargetSurfaceForCameraPane(getPaneName());
+            if (target != null) {
+                targetSurfaces.add(target);
+                targetPanes.add(targetPane);
             }
-            try {
-                TLog.i("Configuring camera %s with %d surfaces", mCurrentCamera.getId(),
-                        targetSurfaces.size());
-                mActiveCameraCall = CameraCall.CONFIGURE;
-                if (targetSurfaces.size() > 0) {
-                    mCurrentCamera.createCaptureSession(targetSurfaces, mSessionListener, /*handler*/null);
-                } else if (mCurrentCaptureSession != null) {
-                    mCurrentCaptureSession.close();
-                    mCurrentCaptureSession = null;
-                }
-                mConfiguredSurfaces = targetSurfaces;
-                mConfiguredTargetPanes = targetPanes;
-            } catch (CameraAccessException e) {
-                mActiveCameraCall = CameraCall.NONE;
-                TLog.e("Unable to configure camera %s.", e, mCurrentCamera.getId());
-            } catch (IllegalArgumentException e) {
-                mActiveCameraCall = CameraCall.NONE;
-                TLog.e("Unable to configure camera %s.", e, mCurrentCamera.getId());
-            } catch (IllegalStateException e) {
-                mActiveCameraCall = CameraCall.NONE;
-                TLog.e("Unable to configure camera %s.", e, mCurrentCamera.getId());
+        }
+        try {
+            TLog.i("Configuring camera %s with %d surfaces", mCurrentCamera.getId(),
+                    targetSurfaces.size());
+            mActiveCameraCall = CameraCall.CONFIGURE;
+            if (targetSurfaces.size() > 0) {
+                mCurrentCamera.createCaptureSession(targetSurfaces,
+                        mCallbackThreads.onUiThread(mSessionListener),
+                        mCallbackThreads.getCameraHandler());
+            } else if (mCurrentCaptureSession != null) {
+                mCurrentCaptureSession.close();
+                mCurrentCaptureSession = null;
             }
+            mConfiguredSurfaces = targetSurfaces;
+            mConfiguredTargetPanes = targetPanes;
+        } catch (CameraAccessException e) {
+            mActiveCameraCall = CameraCall.NONE;
+            TLog.e("Unable to configure camera %s.", e, mCurrentCamera.getId());
+        } catch (IllegalArgumentException e) {
+            mActiveCameraCall = CameraCall.NONE;
+            TLog.e("Unable to configure camera %s.", e, mCurrentCamera.getId());
+        } catch (IllegalStateException e) {
+            mActiveCameraCall = CameraCall.NONE;
+            TLog.e("Unable to configure camera %s.", e, mCurrentCamera.getId());
         }
-    };
+    }
 
     private final CameraCaptureSession.StateCallback mSessionListener =
             new CameraCaptureSession.StateCallback() {
@@ -462,6 +815,8 @@ public class CameraControlPane extends ControlPane {
         public void onConfigured(CameraCaptureSession session) {
             mCurrentCaptureSession = session;
             TLog.i("Configuration completed for camera %s.", mCurrentCamera.getId());
+            mLatencyTracker.reset();
+            mThroughputStats.reset(System.nanoTime());
 
             setSessionState(SessionState.CONFIGURED);
         }
@@ -536,6 +891,10 @@ public class CameraControlPane extends ControlPane {
         public void onOpened(CameraDevice camera) {
             mCurrentCamera = camera;
             setCameraState(CameraState.OPENED);
+            if (mConfigureOnOpen) {
+                mConfigureOnOpen = false;
+                configureWhenTargetsReady();
+            }
         }
     };
 
@@ -565,6 +924,7 @@ public class CameraControlPane extends ControlPane {
     private void setSessionState(SessionState newState) {
         mSessionState = newState;
         mStatusText.setText("S." + mSessionState.toString());
+        SessionTrace.sessionState(mPaneId, mSessionState.toString());
 
         switch (mSessionState) {
             case CONFIGURE_FAILED:
@@ -667,7 +1027,7 @@ public class CameraControlPane extends ControlPane {
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
             String newCameraId = mCameraIds[pos];
-            if (newCameraId != mCurrentCameraId) {
+            if (!newCameraId.equals(mCurrentCameraId)) {
                 switchToCamera(newCameraId);
             }
         }
@@ -24,6 +24,8 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraAccessException;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 /**
  * A central manager of camera devices and current clients for them.
@@ -33,8 +35,12 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
 
     private final CameraManager mCameraManager;
 
+    /** Guarded by itself; device callbacks may arrive on any thread */
     private final Set<CameraDevice> mOpenCameras = new HashSet<CameraDevice>();
 
+    /** Thread for this class's own availability callbacks, which only log */
+    private final HandlerThread mAvailabilityThread;
+
     public CameraOps2(Context context) {
         mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
         if (mCameraManager == null) {
@@ -50,7 +56,18 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
             TLog.e("Unable to get camera list: %s", e);
         }
 
-        mCameraManager.registerAvailabilityCallback(this, /*handler*/null);
+        mAvailabilityThread = new HandlerThread("CameraOps2");
+        mAvailabilityThread.start();
+        mCameraManager.registerAvailabilityCallback(this,
+                new Handler(mAvailabilityThread.getLooper()));
+    }
+
+    /**
+     * Stop listening for camera availability changes
+     */
+    public void close() {
+        mCameraManager.unregisterAvailabilityCallback(this);
+        mAvailabilityThread.quitSafely();
     }
 
     /**
@@ -95,15 +112,28 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
      *         for its listener to be called to determine if open will succeed.
      */
     public boolean openCamera(String cameraId, CameraDevice.StateCallback listener) {
-        for (CameraDevice camera : mOpenCameras) {
-            if (camera.getId() == cameraId) {
-                TLog.e("Camera %s is already open", cameraId);
-                return false;
+        return openCamera(cameraId, listener, null);
+    }
+
+    /**
+     * Attempt to open a camera device, with its state callbacks delivered on the given handler.
+     *
+     * @param handler handler to invoke the listener on, or null for the calling thread's looper
+     * @see #openCamera(String, CameraDevice.StateCallback)
+     */
+    public boolean openCamera(String cameraId, CameraDevice.StateCallback listener,
+            Handler handler) {
+        synchronized (mOpenCameras) {
+            for (CameraDevice camera : mOpenCameras) {
+                if (camera.getId().equals(cameraId)) {
+                    TLog.e("Camera %s is already open", cameraId);
+                    return false;
+                }
             }
         }
         try {
             DeviceStateCallback proxyListener = new DeviceStateCallback(listener);
-            mCameraManager.openCamera(cameraId, proxyListener, null);
+            mCameraManager.openCamera(cameraId, proxyListener, handler);
         } catch (CameraAccessException e) {
             TLog.e("Unable to open camera %s.", e, cameraId);
             return false;
@@ -131,7 +161,9 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
 
         @Override
         public void onClosed(CameraDevice camera) {
-            mOpenCameras.remove(camera);
+            synchronized (mOpenCameras) {
+                mOpenCameras.remove(camera);
+            }
             TLog.i("Camera %s now closed", camera.getId());
             mClientListener.onClosed(camera);
         }
@@ -150,7 +182,9 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
 
         @Override
         public void onOpened(CameraDevice camera) {
-            mOpenCameras.add(camera);
+            synchronized (mOpenCameras) {
+                mOpenCameras.add(camera);
+            }
             TLog.i("Camera %s now open", camera.getId());
             mClientListener.onOpened(camera);
         }
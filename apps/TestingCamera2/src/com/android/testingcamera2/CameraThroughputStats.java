@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+/**
+ * Counts one camera's capture results, failed captures and skipped sensor frames, and turns
+ * them into rates over each reporting interval.
+ *
+ * <p>A sensor frame counts as skipped when a repeating request's result follows the previous
+ * result by more than its reported frame duration allows; this is the usual sign of the
+ * camera falling behind, for instance when several cameras contend for bandwidth. Single
+ * captures are counted, but don't start a gap, since nothing is expected between them.</p>
+ *
+ * <p>All methods are thread-safe; times are System.nanoTime() values.</p>
+ */
+public class CameraThroughputStats {
+
+    /** A gap counts as skipped frames once it exceeds this many frame durations */
+    private static final double SKIP_THRESHOLD = 1.5;
+
+    /**
+     * Counts for one reporting interval
+     */
+    public static class Interval {
+        public final long durationNs;
+        public final int results;
+        public final int failed;
+        public final int skipped;
+
+        Interval(long durationNs, int results, int failed, int skipped) {
+            this.durationNs = durationNs;
+            this.results = results;
+            this.failed = failed;
+            this.skipped = skipped;
+        }
+
+        /**
+         * @return capture results per second over the interval, or 0 if it's empty
+         */
+        public double getFps() {
+            return (durationNs > 0) ? results * 1e9 / durationNs : 0;
+        }
+
+        /**
+         * @return frames lost during the interval, failed or skipped
+         */
+        public int getDropped() {
+            return failed + skipped;
+        }
+    }
+
+    private int mResults = 0;
+    private int mFailed = 0;
+    private int mSkipped = 0;
+    private long mLastSensorTimestamp = -1;
+    private long mIntervalStart;
+
+    public CameraThroughputStats() {
+        mIntervalStart = System.nanoTime();
+    }
+
+    /**
+     * A capture result arrived.
+     *
+     * @param sensorTimestamp the result's sensor timestamp, or -1 if unknown
+     * @param frameDuration the result's frame duration in ns, or -1 if unknown
+     * @param repeating true if the result is for a repeating request or burst
+     */
+    public synchronized void onResult(long sensorTimestamp, long frameDuration,
+            boolean repeating) {
+        mResults++;
+        if (sensorTimestamp < 0) return;
+        if (repeating && mLastSensorTimestamp >= 0 && frameDuration > 0
+                && sensorTimestamp > mLastSensorTimestamp) {
+            long gap = sensorTimestamp - mLastSensorTimestamp;
+            if (gap > frameDuration * SKIP_THRESHOLD) {
+                mSkipped += (int) Math.round((double) gap / frameDuration) - 1;
+            }
+        }
+        mLastSensorTimestamp = sensorTimestamp;
+    }
+
+    public synchronized void onFailure() {
+        mFailed++;
+    }
+
+    /**
+     * The repeating request was replaced, stopped or flushed, so the next repeating result
+     * doesn't follow on from the previous results.
+     */
+    public synchronized void onRepeatingChanged() {
+        mLastSensorTimestamp = -1;
+    }
+
+    /**
+     * Start over, for instance because a new session has been configured and sensor
+     * timestamps no longer follow on from the previous results.
+     */
+    public synchronized void reset(long now) {
+        mResults = 0;
+        mFailed = 0;
+        mSkipped = 0;
+        mLastSensorTimestamp = -1;
+        mIntervalStart = now;
+    }
+
+    /**
+     * Get the counts since the previous call, and start a new interval.
+     */
+    public synchronized Interval nextInterval(long now) {
+        Interval interval = new Interval(now - mIntervalStart, mResults, mFailed, mSkipped);
+        mResults = 0;
+        mFailed = 0;
+        mSkipped = 0;
+        mIntervalStart = now;
+        return interval;
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Correlates capture request submissions, capture starts, capture results and image arrivals
+ * for one camera, and keeps rolling latency statistics for them.
+ *
+ * <p>A frame is identified by its frame number until onCaptureStarted reports its sensor
+ * timestamp, which is then used to match the frame to images from each output stream. Single
+ * captures are matched to their submission by request object, in submission order, and the
+ * submission is forgotten if the capture fails before starting or its sequence ends without
+ * it. Frames from repeating requests have no submission time, even if the same request object
+ * is also used for single captures, so only their start-relative latencies are tracked.
+ * Latencies tracked per camera:</p>
+ * <ul>
+ *   <li>submit-start: capture() to onCaptureStarted</li>
+ *   <li>start-result: onCaptureStarted to onCaptureCompleted</li>
+ *   <li>submit-result: capture() to onCaptureCompleted</li>
+ * </ul>
+ * <p>and per stream:</p>
+ * <ul>
+ *   <li>start-image: onCaptureStarted to the image arriving</li>
+ *   <li>submit-image: capture() to the image arriving, the shutter-to-image latency</li>
+ * </ul>
+ *
+ * <p>Each statistic covers the last WINDOW_SIZE samples. All methods are thread-safe; times are
+ * System.nanoTime() values.</p>
+ */
+public class CaptureLatencyTracker {
+
+    public static final int WINDOW_SIZE = 512;
+    /** Frames without a start or all of their images are forgotten after this many newer ones */
+    private static final int MAX_TRACKED_FRAMES = 64;
+    /** Most single captures waiting to start; older ones are forgotten */
+    private static final int MAX_PENDING_SUBMITS = 256;
+
+    private static class Submit {
+        final Object request;
+        final long time;
+        int sequenceId = -1;
+
+        Submit(Object request, long time) {
+            this.request = request;
+            this.time = time;
+        }
+    }
+
+    private static class Frame {
+        long submitTime = -1;
+        long startTime = -1;
+        long sensorTimestamp = -1;
+    }
+
+    /** Single captures waiting for onCaptureStarted, in submission order */
+    private final ArrayList<Submit> mPendingSubmits = new ArrayList<Submit>();
+    private final LinkedHashMap<Long, Frame> mFramesByNumber = new BoundedMap<Frame>();
+    private final LinkedHashMap<Long, Frame> mFramesByTimestamp = new BoundedMap<Frame>();
+    /** Images that arrived before their frame's onCaptureStarted, by timestamp */
+    private final LinkedHashMap<Long, List<long[]>> mEarlyImages =
+            new BoundedMap<List<long[]>>();
+
+    private final RollingStats mSubmitToStart = new RollingStats();
+    private final RollingStats mStartToResult = new RollingStats();
+    private final RollingStats mSubmitToResult = new RollingStats();
+    private final Map<Integer, RollingStats> mStartToImage = new TreeMap<Integer, RollingStats>();
+    private final Map<Integer, RollingStats> mSubmitToImage =
+            new TreeMap<Integer, RollingStats>();
+
+    /**
+     * Single captures of the given requests, in order, are about to be submitted. Call
+     * {@link #onSubmitted} with the returned token once the submission succeeds, or
+     * {@link #onSubmitFailed} if it doesn't. Recording the submission up front means frames
+     * that start before the submit call returns are still matched.
+     *
+     * @return a token identifying this submission
+     */
+    public synchronized Object onSubmit(List<?> requests, long time) {
+        List<Submit> submits = new ArrayList<Submit>(requests.size());
+        for (Object request : requests) {
+            submits.add(new Submit(request, time));
+        }
+        mPendingSubmits.addAll(submits);
+        while (mPendingSubmits.size() > MAX_PENDING_SUBMITS) {
+            mPendingSubmits.remove(0);
+        }
+        return submits;
+    }
+
+    /**
+     * The submission identified by token was accepted as the given capture sequence.
+     */
+    public synchronized void onSubmitted(Object token, int sequenceId) {
+        for (Submit submit : asSubmits(token)) {
+            submit.sequenceId = sequenceId;
+        }
+    }
+
+    /**
+     * The submission identified by token failed; none of its captures will start.
+     */
+    public synchronized void onSubmitFailed(Object token) {
+        mPendingSubmits.removeAll(asSubmits(token));
+    }
+
+    /**
+     * A capture started.
+     *
+     * @param repeating whether the frame comes from a repeating request or burst, which never
+     *            consumes a single capture's submission
+     */
+    public synchronized void onCaptureStarted(Object request, boolean repeating,
+            long frameNumber, long sensorTimestamp, long time) {
+        Frame frame = new Frame();
+        frame.startTime = time;
+        frame.sensorTimestamp = sensorTimestamp;
+        Submit submit = repeating ? null : removeSubmit(request, -1);
+        if (submit != null) {
+            frame.submitTime = submit.time;
+            mSubmitToStart.add(time - frame.submitTime);
+        }
+        mFramesByNumber.put(frameNumber, frame);
+        mFramesByTimestamp.put(sensorTimestamp, frame);
+
+        List<long[]> early = mEarlyImages.remove(sensorTimestamp);
+        if (early != null) {
+            for (long[] image : early) {
+                onImageMatched(frame, (int) image[0], image[1]);
+            }
+        }
+    }
+
+    public synchronized void onCaptureCompleted(long frameNumber, long time) {
+        Frame frame = mFramesByNumber.remove(frameNumber);
+        if (frame == null) return;
+        mStartToResult.add(time - frame.startTime);
+        if (frame.submitTime != -1) {
+            mSubmitToResult.add(time - frame.submitTime);
+        }
+    }
+
+    /**
+     * A capture failed; stop waiting for its result, and if it never started, forget its
+     * submission.
+     */
+    public synchronized void onCaptureFailed(Object request, boolean repeating, int sequenceId,
+            long frameNumber) {
+        Frame frame = mFramesByNumber.remove(frameNumber);
+        if (frame == null && !repeating) {
+            removeSubmit(request, sequenceId);
+        }
+    }
+
+    /**
+     * A capture sequence completed or was aborted; any of its submissions still waiting for
+     * a capture start never will.
+     */
+    public synchronized void onSequenceFinished(int sequenceId) {
+        Iterator<Submit> submits = mPendingSubmits.iterator();
+        while (submits.hasNext()) {
+            if (submits.next().sequenceId == sequenceId) {
+                submits.remove();
+            }
+        }
+    }
+
+    /**
+     * An image with the given timestamp arrived at a stream.
+     */
+    public synchronized void onImageAvailable(int streamId, long timestamp, long time) {
+        Frame frame = mFramesByTimestamp.get(timestamp);
+        if (frame == null) {
+            List<long[]> early = mEarlyImages.get(timestamp);
+            if (early == null) {
+                early = new ArrayList<long[]>(1);
+                mEarlyImages.put(timestamp, early);
+            }
+            early.add(new long[] { streamId, time });
+            return;
+        }
+        onImageMatched(frame, streamId, time);
+    }
+
+    /**
+     * Remove and return the oldest pending submission of request, restricted to the given
+     * sequence, or to submissions whose sequence isn't known yet, unless sequenceId is -1.
+     */
+    private Submit removeSubmit(Object request, int sequenceId) {
+        Iterator<Submit> submits = mPendingSubmits.iterator();
+        while (submits.hasNext()) {
+            Submit submit = submits.next();
+            if (submit.request == request &&
+                    (sequenceId == -1 || submit.sequenceId == sequenceId ||
+                            submit.sequenceId == -1)) {
+                submits.remove();
+                return submit;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Submit> asSubmits(Object token) {
+        return (List<Submit>) token;
+    }
+
+    private void onImageMatched(Frame frame, int streamId, long time) {
+        statsFor(mStartToImage, streamId).add(time - frame.startTime);
+        if (frame.submitTime != -1) {
+            statsFor(mSubmitToImage, streamId).add(time - frame.submitTime);
+        }
+    }
+
+    /**
+     * Forget all pending requests and frames, and all statistics.
+     */
+    public synchronized void reset() {
+        mPendingSubmits.clear();
+        mFramesByNumber.clear();
+        mFramesByTimestamp.clear();
+        mEarlyImages.clear();
+        mSubmitToStart.clear();
+        mStartToResult.clear();
+        mSubmitToResult.clear();
+        mStartToImage.clear();
+        mSubmitToImage.clear();
+    }
+
+    /**
+     * @return a multi-line summary of the current statistics, in ms
+     */
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        mSubmitToStart.appendSummary(summary, "submit-start");
+        mStartToResult.appendSummary(summary, "start-result");
+        mSubmitToResult.appendSummary(summary, "submit-result");
+        for (Map.Entry<Integer, RollingStats> stream : mStartToImage.entrySet()) {
+            stream.getValue().appendSummary(summary, "stream " + stream.getKey() +
+                    " start-image");
+            RollingStats submitToImage = mSubmitToImage.get(stream.getKey());
+            if (submitToImage != null) {
+                submitToImage.appendSummary(summary, "stream " + stream.getKey() +
+                        " submit-image");
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Get the given percentile of the shutter-to-image latency for a stream.
+     *
+     * @return the latency in ns, or -1 if there are no samples
+     */
+    public synchronized long getSubmitToImagePercentile(int streamId, double percentile) {
+        RollingStats stats = mSubmitToImage.get(streamId);
+        return (stats == null) ? -1 : stats.getPercentile(percentile);
+    }
+
+    /**
+     * Get the given percentile of the capture start to result latency.
+     *
+     * @return the latency in ns, or -1 if there are no samples
+     */
+    public synchronized long getStartToResultPercentile(double percentile) {
+        return mStartToResult.getPercentile(percentile);
+    }
+
+    private static RollingStats statsFor(Map<Integer, RollingStats> map, int streamId) {
+        RollingStats stats = map.get(streamId);
+        if (stats == null) {
+            stats = new RollingStats();
+            map.put(streamId, stats);
+        }
+        return stats;
+    }
+
+    private static class BoundedMap<V> extends LinkedHashMap<Long, V> {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+            return size() > MAX_TRACKED_FRAMES;
+        }
+    }
+
+    /**
+     * The last WINDOW_SIZE samples of one latency, with percentiles computed on demand.
+     * Not thread-safe on its own.
+     */
+    private static class RollingStats {
+        private final long[] mSamples = new long[WINDOW_SIZE];
+        private final long[] mSorted = new long[WINDOW_SIZE];
+        private int mNext = 0;
+        private int mCount = 0;
+        private boolean mSortedValid = false;
+
+        void add(long sample) {
+            mSamples[mNext] = sample;
+            mNext = (mNext + 1) % WINDOW_SIZE;
+            if (mCount < WINDOW_SIZE) mCount++;
+            mSortedValid = false;
+        }
+
+        void clear() {
+            mNext = 0;
+            mCount = 0;
+            mSortedValid = false;
+        }
+
+        long getPercentile(double percentile) {
+            if (mCount == 0) return -1;
+            if (!mSortedValid) {
+                System.arraycopy(mSamples, 0, mSorted, 0, mCount);
+                Arrays.sort(mSorted, 0, mCount);
+                mSortedValid = true;
+            }
+            int index = (int) Math.ceil(mCount * percentile / 100.0) - 1;
+            return mSorted[Math.max(0, Math.min(index, mCount - 1))];
+        }
+
+        void appendSummary(StringBuilder summary, String name) {
+            if (mCount == 0) return;
+            summary.append(String.format(Locale.US,
+                    "%s: n=%d p50=%.1f p95=%.1f p99=%.1f max=%.1f ms\n", name, mCount,
+                    getPercentile(50) / 1e6, getPercentile(95) / 1e6, getPercentile(99) / 1e6,
+                    getPercentile(100) / 1e6));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+
+/**
+ * A fixed-capacity store of recent capture results, kept sorted by sensor timestamp.
+ *
+ * <p>Results are held in a circular pair of parallel arrays, so appending a result and
+ * looking one up never allocate. Results that complete out of order are shifted into place
+ * on insertion, which keeps lookups a plain binary search. All methods may be called from
+ * any thread.</p>
+ */
+public class CaptureResultRing {
+
+    private final long[] mTimestamps;
+    private final TotalCaptureResult[] mResults;
+
+    /** Physical index of the oldest (smallest timestamp) entry */
+    private int mHead = 0;
+    /** Number of valid entries */
+    private int mCount = 0;
+
+    public CaptureResultRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+        }
+        mTimestamps = new long[capacity];
+        mResults = new TotalCaptureResult[capacity];
+    }
+
+    /**
+     * Add a new result to the store, evicting the oldest result if the store is full.
+     *
+     * <p>Results without a sensor timestamp, or older than every result in a full store,
+     * are ignored.</p>
+     */
+    public synchronized void add(TotalCaptureResult result) {
+        Long resultTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (resultTimestamp == null) return;
+        long timestamp = resultTimestamp;
+
+        if (mCount == mResults.length) {
+            if (timestamp < mTimestamps[mHead]) return;
+            mResults[mHead] = null;
+            mHead = physicalIndex(1);
+            mCount--;
+        }
+
+        // Shift newer entries up by one to keep the ring sorted; for in-order
+        // completion this loop exits immediately.
+        int i = mCount;
+        while (i > 0) {
+            int prev = physicalIndex(i - 1);
+            if (mTimestamps[prev] <= timestamp) break;
+            int cur = physicalIndex(i);
+            mTimestamps[cur] = mTimestamps[prev];
+            mResults[cur] = mResults[prev];
+            i--;
+        }
+        int slot = physicalIndex(i);
+        mTimestamps[slot] = timestamp;
+        mResults[slot] = result;
+        mCount++;
+    }
+
+    /**
+     * Find the result with exactly the given sensor timestamp.
+     *
+     * @return the matching result, or null if none is stored
+     */
+    public synchronized TotalCaptureResult get(long timestamp) {
+        int idx = search(timestamp);
+        return (idx >= 0) ? mResults[physicalIndex(idx)] : null;
+    }
+
+    /**
+     * Find the result whose sensor timestamp is closest to the given timestamp.
+     *
+     * @param timestamp the sensor timestamp to look for, in nanoseconds
+     * @param maxDelta the largest acceptable difference between timestamps, in nanoseconds
+     * @return the closest result within maxDelta, or null if there is none
+     */
+    public synchronized TotalCaptureResult getNearest(long timestamp, long maxDelta) {
+        if (mCount == 0) return null;
+        int idx = search(timestamp);
+        if (idx >= 0) return mResults[physicalIndex(idx)];
+
+        int insertion = -(idx + 1);
+        int best = -1;
+        long bestDelta = Long.MAX_VALUE;
+        if (insertion < mCount) {
+            best = insertion;
+            bestDelta = mTimestamps[physicalIndex(insertion)] - timestamp;
+        }
+        if (insertion > 0) {
+            long delta = timestamp - mTimestamps[physicalIndex(insertion - 1)];
+            if (delta < bestDelta) {
+                best = insertion - 1;
+                bestDelta = delta;
+            }
+        }
+        return (bestDelta <= maxDelta) ? mResults[physicalIndex(best)] : null;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mResults[physicalIndex(i)] = null;
+        }
+        mHead = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Binary search over logical indices, with the same return convention as
+     * {@link java.util.Arrays#binarySearch(long[], long)}.
+     */
+    private int search(long timestamp) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midTimestamp = mTimestamps[physicalIndex(mid)];
+            if (midTimestamp < timestamp) {
+                low = mid + 1;
+            } else if (midTimestamp > timestamp) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private int physicalIndex(int logicalIndex) {
+        int idx = mHead + logicalIndex;
+        return (idx >= mResults.length) ? idx - mResults.length : idx;
+    }
+}
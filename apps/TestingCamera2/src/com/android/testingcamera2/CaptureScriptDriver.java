@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCaptureSession.CaptureCallback;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fires a fixed number of single captures of one request, either at a target rate or back to
+ * back, and reports the rate actually achieved.
+ *
+ * <p>At most maxInFlight captures are outstanding at once. In back-to-back mode a new capture
+ * is sent as soon as one finishes, keeping the camera's request queue full. In rate mode
+ * captures are scheduled against the start time, so timing errors don't accumulate; a tick
+ * that finds the in-flight limit reached is counted as throttled and its capture is sent once a
+ * slot frees up.</p>
+ *
+ * <p>Submission happens on the given handler's thread. Capture callbacks may arrive on any
+ * thread.</p>
+ */
+public class CaptureScriptDriver {
+
+    /**
+     * Notified on the handler's thread as the script runs
+     */
+    public interface Listener {
+        void onScriptProgress(CaptureScriptDriver driver);
+        void onScriptDone(CaptureScriptDriver driver);
+    }
+
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    private final CameraControlPane mCamera;
+    private final CaptureRequest mRequest;
+    private final int mCount;
+    private final float mRate;
+    private final int mMaxInFlight;
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    // Only touched on the handler's thread
+    private boolean mStarted = false;
+    private boolean mRunning = false;
+    private int mSubmitted = 0;
+    private int mThrottled = 0;
+    private int mBacklog = 0;
+    private int mPeakInFlight = 0;
+    private long mStartTimeMs;
+    private long mFirstSubmitNs;
+    private long mLastSubmitNs;
+    private long mLastProgressMs;
+    private String mError;
+
+    // Updated from capture callbacks
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mCompleted = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private volatile long mFirstCompletedNs = -1;
+    private volatile long mLastCompletedNs;
+
+    /**
+     * @param camera camera to capture with
+     * @param request request to send for every capture
+     * @param count number of captures to send
+     * @param rate target captures per second, or 0 to send back to back
+     * @param maxInFlight most captures allowed to be outstanding at once
+     * @param handler handler to submit captures from
+     * @param listener notified of progress and completion, may be null
+     */
+    public CaptureScriptDriver(CameraControlPane camera, CaptureRequest request, int count,
+            float rate, int maxInFlight, Handler handler, Listener listener) {
+        if (count < 1 || rate < 0 || maxInFlight < 1) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "Invalid capture script: count %d, rate %f, max in flight %d",
+                    count, rate, maxInFlight));
+        }
+        mCamera = camera;
+        mRequest = request;
+        mCount = count;
+        mRate = rate;
+        mMaxInFlight = maxInFlight;
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Start sending captures. A driver only runs once.
+     */
+    public void start() {
+        if (mStarted) return;
+        mStarted = true;
+        mRunning = true;
+        mStartTimeMs = SystemClock.uptimeMillis();
+        mLastProgressMs = mStartTimeMs;
+        mHandler.post(mTick);
+    }
+
+    /**
+     * Stop sending captures. Captures already sent still complete, but are no longer waited
+     * for.
+     */
+    public void stop() {
+        if (!mRunning) return;
+        mError = "stopped";
+        finish();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Short description of the script's progress and achieved rates
+     */
+    public String getStatus() {
+        int completed = mCompleted.get();
+        double submitRate = 0;
+        if (mSubmitted > 1 && mLastSubmitNs > mFirstSubmitNs) {
+            submitRate = (mSubmitted - 1) * 1e9 / (mLastSubmitNs - mFirstSubmitNs);
+        }
+        double completeRate = 0;
+        long firstCompleted = mFirstCompletedNs;
+        long lastCompleted = mLastCompletedNs;
+        if (completed > 1 && lastCompleted > firstCompleted) {
+            completeRate = (completed - 1) * 1e9 / (lastCompleted - firstCompleted);
+        }
+        String requested = (mRate > 0) ?
+                String.format(Locale.US, "%.1f/s", mRate) : "back-to-back";
+        return String.format(Locale.US,
+                "%d/%d sent, %d done, %d failed, %d in flight (peak %d), %d throttled; " +
+                "requested %s, sent %.1f/s, completed %.1f/s%s",
+                mSubmitted, mCount, completed, mFailed.get(), mInFlight.get(), mPeakInFlight,
+                mThrottled, requested, submitRate, completeRate,
+                (mError != null) ? " (" + mError + ")" : "");
+    }
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) return;
+
+            if (mRate > 0) {
+                // One more capture is due every tick; any that can't go out yet wait for a
+                // free slot
+                if (mSubmitted + mBacklog < mCount) {
+                    mBacklog++;
+                    if (mInFlight.get() >= mMaxInFlight) {
+                        mThrottled++;
+                    }
+                }
+            } else {
+                mBacklog = mCount - mSubmitted;
+            }
+            submitBacklog();
+
+            long now = SystemClock.uptimeMillis();
+            if (mRate > 0 && mSubmitted + mBacklog < mCount) {
+                long nextTick = mStartTimeMs +
+                        (long) ((mSubmitted + mBacklog) * 1000.0 / mRate);
+                mHandler.postAtTime(mTick, Math.max(nextTick, now));
+            }
+            checkDone(now);
+        }
+    };
+
+    private final Runnable mCaptureDone = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) return;
+            submitBacklog();
+            checkDone(SystemClock.uptimeMillis());
+        }
+    };
+
+    private void submitBacklog() {
+        while (mRunning && mBacklog > 0 && mInFlight.get() < mMaxInFlight) {
+            int inFlight = mInFlight.incrementAndGet();
+            long now = System.nanoTime();
+            if (mCamera.capture(mRequest, mCaptureCallback) == -1) {
+                mInFlight.decrementAndGet();
+                mError = "capture failed to submit";
+                finish();
+                return;
+            }
+            if (mSubmitted == 0) {
+                mFirstSubmitNs = now;
+            }
+            mLastSubmitNs = now;
+            mSubmitted++;
+            mBacklog--;
+            mPeakInFlight = Math.max(mPeakInFlight, inFlight);
+        }
+    }
+
+    private void checkDone(long nowMs) {
+        if (!mRunning) return;
+        if (mSubmitted == mCount && mInFlight.get() == 0) {
+            finish();
+        } else if (mListener != null && nowMs - mLastProgressMs >= PROGRESS_INTERVAL_MS) {
+            mLastProgressMs = nowMs;
+            mListener.onScriptProgress(this);
+        }
+    }
+
+    private void finish() {
+        mRunning = false;
+        mHandler.removeCallbacks(mTick);
+        mHandler.removeCallbacks(mCaptureDone);
+        if (mListener != null) {
+            mListener.onScriptDone(this);
+        }
+    }
+
+    private void onCaptureDone() {
+        mInFlight.decrementAndGet();
+        mHandler.post(mCaptureDone);
+    }
+
+    private final CaptureCallback mCaptureCallback = new CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                TotalCaptureResult result) {
+            long now = System.nanoTime();
+            if (mCompleted.getAndIncrement() == 0) {
+                mFirstCompletedNs = now;
+            }
+            mLastCompletedNs = now;
+            onCaptureDone();
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                CaptureFailure failure) {
+            mFailed.incrementAndGet();
+            onCaptureDone();
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CameraCaptureSession session, int sequenceId) {
+            // Neither completed nor failed will be reported for this capture
+            mFailed.incrementAndGet();
+            onCaptureDone();
+        }
+    };
+}
@@ -22,27 +22,22 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.DngCreator;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.util.Size;
 import android.util.AttributeSet;
@@ -52,6 +47,8 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.Spinner;
@@ -65,6 +62,8 @@ public class ImageReaderSubPane extends TargetSubPane {
     private static final int MAX_BUFFER_COUNT = 25;
     private static final int DEFAULT_BUFFER_COUNT = 3;
 
+    private static int mStreamIdCounter = 0;
+
     enum OutputFormat {
         JPEG(ImageFormat.JPEG),
         RAW16(ImageFormat.RAW_SENSOR),
@@ -79,6 +78,8 @@ public class ImageReaderSubPane extends TargetSubPane {
     };
 
     private Surface mSurface;
+    /** Identifies this reader's images in the session trace */
+    private final int mStreamId = mStreamIdCounter++;
 
     private final Spinner mFormatSpinner;
     private final List<OutputFormat> mFormats = new ArrayList<>();
@@ -87,8 +88,19 @@ public class ImageReaderSubPane extends TargetSubPane {
     private Size[] mSizes;
     private final Spinner mCountSpinner;
     private Integer[] mCounts;
+    private final Spinner mDemosaicSpinner;
 
     private final ImageView mImageView;
+    private final CheckBox mColorCheckBox;
+
+    private final YuvPreviewRenderer mYuvRenderer = new YuvPreviewRenderer();
+    private final Raw10Unpacker mRaw10Unpacker = new Raw10Unpacker();
+    private final PreviewBitmapPool mRawBitmaps = new PreviewBitmapPool();
+    private BayerDemosaic mDemosaic;
+    private BayerDemosaic.Mode mDemosaicMode = BayerDemosaic.Mode.NEAREST;
+    private volatile ImageSaver mImageSaver;
+    private volatile boolean mAutoSave = false;
+    private YuvPlaneWriter.Layout mYuvSaveLayout = YuvPlaneWriter.Layout.PLANAR;
 
     private int mCurrentCameraOrientation = 0;
     private int mCurrentUiOrientation = 0;
@@ -102,9 +114,22 @@ public class ImageReaderSubPane extends TargetSubPane {
     private int mConfiguredCount = 0;
 
     private ImageReader mReader = null;
+
+    /**
+     * Images, the displayed image index, and all rendering are owned by the processing thread;
+     * the UI thread only posts commands to it and receives finished bitmaps back.
+     */
+    private HandlerThread mProcessingThread;
+    private Handler mProcessingHandler;
     private final LinkedList<Image> mCurrentImages = new LinkedList<>();
     private int mCurrentImageIdx = NO_IMAGE;
 
+    /** Guards the render/publish handshake between the processing and UI threads */
+    private final Object mPublishLock = new Object();
+    private Bitmap mPublishedBitmap;
+    private boolean mPublishPending = false;
+    private boolean mRenderDeferred = false;
+
     private int mRawShiftFactor = 0;
     private int mRawShiftRow = 0;
     private int mRawShiftCol = 0;
@@ -135,8 +160,23 @@ public class ImageReaderSubPane extends TargetSubPane {
                         mCounts));
         mCountSpinner.setSelection(DEFAULT_BUFFER_COUNT - 1);
 
+        mDemosaicSpinner =
+                (Spinner) this.findViewById(R.id.target_subpane_image_reader_demosaic_spinner);
+        BayerDemosaic.Mode[] demosaicModes = BayerDemosaic.Mode.values();
+        String[] demosaicItems = new String[demosaicModes.length];
+        for (int i = 0; i < demosaicModes.length; i++) {
+            demosaicItems[i] = demosaicModes[i].toString();
+        }
+        mDemosaicSpinner.setAdapter(new ArrayAdapter<>(getContext(), R.layout.spinner_item,
+                        demosaicItems));
+        mDemosaicSpinner.setOnItemSelectedListener(mDemosaicSpinnerListener);
+
         mImageView = (ImageView) this.findViewById(R.id.target_subpane_image_reader_view);
 
+        mColorCheckBox =
+                (CheckBox) this.findViewById(R.id.target_subpane_image_reader_color_checkbox);
+        mColorCheckBox.setOnCheckedChangeListener(mColorCheckBoxListener);
+
         Button b = (Button) this.findViewById(R.id.target_subpane_image_reader_prev_button);
         b.setOnClickListener(mPrevButtonListener);
 
@@ -145,6 +185,17 @@ public class ImageReaderSubPane extends TargetSubPane {
 
         b = (Button) this.findViewById(R.id.target_subpane_image_reader_save_button);
         b.setOnClickListener(mSaveButtonListener);
+
+        b = (Button) this.findViewById(R.id.target_subpane_image_reader_save_all_button);
+        b.setOnClickListener(mSaveAllButtonListener);
+
+        CheckBox autoSaveCheckBox =
+                (CheckBox) this.findViewById(R.id.target_subpane_image_reader_auto_save_checkbox);
+        autoSaveCheckBox.setOnCheckedChangeListener(mAutoSaveCheckBoxListener);
+
+        CheckBox semiPlanarCheckBox = (CheckBox) this.findViewById(
+                R.id.target_subpane_image_reader_semi_planar_checkbox);
+        semiPlanarCheckBox.setOnCheckedChangeListener(mSemiPlanarCheckBoxListener);
     }
 
     @Override
@@ -284,16 +335,69 @@ public class ImageReaderSubPane extends TargetSubPane {
                         outputSizeItems));
         mSizeSpinner.setSelection(newSelectionId);
         mCurrentSizeId = newSelectionId;
+        notifySurfaceReady();
     }
 
+    /**
+     * Ask the processing thread to render the currently selected image. Safe to call from any
+     * thread.
+     */
     private void updateImage() {
+        postToProcessing(mRenderRunnable);
+    }
+
+    /**
+     * Render the current image and hand it to the UI thread. If the UI thread has not yet
+     * displayed the previous frame, rendering is deferred until it has, so only the newest
+     * frame is ever converted. Runs on the processing thread.
+     */
+    private void renderImage() {
         if (mCurrentImageIdx == NO_IMAGE) return;
-        Image img = mCurrentImages.get(mCurrentImageIdx);
+        synchronized (mPublishLock) {
+            if (mPublishPending) {
+                mRenderDeferred = true;
+                return;
+            }
+        }
+        Bitmap imgBitmap = convertImage(mCurrentImages.get(mCurrentImageIdx));
+        if (imgBitmap != null) {
+            synchronized (mPublishLock) {
+                mPublishedBitmap = imgBitmap;
+                mPublishPending = true;
+            }
+            mImageView.post(mPublishRunnable);
+        }
+    }
+
+    private final Runnable mRenderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            renderImage();
+        }
+    };
 
+    private final Runnable mPublishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean renderAgain;
+            synchronized (mPublishLock) {
+                mImageView.setImageBitmap(mPublishedBitmap);
+                mPublishedBitmap = null;
+                mPublishPending = false;
+                renderAgain = mRenderDeferred;
+                mRenderDeferred = false;
+            }
+            if (renderAgain) {
+                updateImage();
+            }
+        }
+    };
+
+    private Bitmap convertImage(Image img) {
         // Find rough scale factor to fit image into imageview to minimize processing overhead
         // Want to be one factor too large
         int SCALE_FACTOR = 2;
-        while (mConfiguredSize.getWidth() > (mImageView.getWidth() * SCALE_FACTOR << 1) ) {
+        while (img.getWidth() > (mImageView.getWidth() * SCALE_FACTOR << 1) ) {
             SCALE_FACTOR <<= 1;
         }
 
@@ -310,61 +414,39 @@ public class ImageReaderSubPane extends TargetSubPane {
                 break;
             }
             case ImageFormat.YUV_420_888: {
-                ByteBuffer yBuffer = img.getPlanes()[0].getBuffer();
-                yBuffer.rewind();
-                int w = mConfiguredSize.getWidth() / SCALE_FACTOR;
-                int h = mConfiguredSize.getHeight() / SCALE_FACTOR;
-                byte[] row = new byte[mConfiguredSize.getWidth()];
-                int[] imgArray = new int[w * h];
-                for (int y = 0, j = 0; y < h; y++) {
-                    yBuffer.position(y * SCALE_FACTOR * mConfiguredSize.getWidth());
-                    yBuffer.get(row);
-                    for (int x = 0, i = 0; x < w; x++) {
-                        int yval = row[i] & 0xFF;
-                        imgArray[j] = Color.rgb(yval, yval, yval);
-                        i += SCALE_FACTOR;
-                        j++;
-                    }
-                }
-                imgBitmap = Bitmap.createBitmap(imgArray, w, h, Bitmap.Config.ARGB_8888);
+                imgBitmap = mYuvRenderer.render(img, SCALE_FACTOR);
                 break;
             }
             case ImageFormat.RAW_SENSOR: {
-                ShortBuffer rawBuffer = img.getPlanes()[0].getBuffer().asShortBuffer();
-                rawBuffer.rewind();
-                // Very rough nearest-neighbor downsample for display
-                int w = mConfiguredSize.getWidth() / SCALE_FACTOR;
-                int h = mConfiguredSize.getHeight() / SCALE_FACTOR;
-                short[] redRow = new short[mConfiguredSize.getWidth()];
-                short[] blueRow = new short[mConfiguredSize.getWidth()];
-                int[] imgArray = new int[w * h];
-                for (int y = 0, j = 0; y < h; y++) {
-                    // Align to start of red row in the pair to sample from
-                    rawBuffer.position(
-                        (y * SCALE_FACTOR + mRawShiftRow) * mConfiguredSize.getWidth());
-                    rawBuffer.get(redRow);
-                    // Align to start of blue row in the pair to sample from
-                    rawBuffer.position(
-                        (y * SCALE_FACTOR + 1 - mRawShiftRow) * mConfiguredSize.getWidth());
-                    rawBuffer.get(blueRow);
-                    for (int x = 0, i = 0; x < w; x++, i += SCALE_FACTOR, j++) {
-                        int r = redRow[i + mRawShiftCol] >> mRawShiftFactor;
-                        int g = redRow[i + 1 - mRawShiftCol] >> mRawShiftFactor;
-                        int b = blueRow[i + 1 - mRawShiftCol] >> mRawShiftFactor;
-                        imgArray[j] = Color.rgb(r,g,b);
-                    }
-                }
-                imgBitmap = Bitmap.createBitmap(imgArray, w, h, Bitmap.Config.ARGB_8888);
+                Image.Plane rawPlane = img.getPlanes()[0];
+                ShortBuffer rawBuffer = rawPlane.getBuffer().asShortBuffer();
+                int w = img.getWidth() / SCALE_FACTOR;
+                int h = img.getHeight() / SCALE_FACTOR;
+                int[] imgArray = mRawBitmaps.getPixels(w, h);
+                mDemosaic.render(rawBuffer, img.getWidth(), img.getHeight(),
+                        rawPlane.getRowStride() / 2, SCALE_FACTOR,
+                        mRawShiftRow, mRawShiftCol, mRawShiftFactor, imgArray);
+                imgBitmap = mRawBitmaps.publish();
                 break;
             }
             case ImageFormat.RAW10: {
-                TLog.e("RAW10 viewing not implemented");
+                Image.Plane rawPlane = img.getPlanes()[0];
+                int w = img.getWidth() / SCALE_FACTOR;
+                int h = img.getHeight() / SCALE_FACTOR;
+                int[] imgArray = mRawBitmaps.getPixels(w, h);
+                mRaw10Unpacker.renderPreview(rawPlane.getBuffer(), img.getWidth(),
+                        img.getHeight(), rawPlane.getRowStride(), SCALE_FACTOR,
+                        mRawShiftRow, mRawShiftCol, mRawShiftFactor, imgArray);
+                imgBitmap = mRawBitmaps.publish();
                 break;
             }
         }
-        if (imgBitmap != null) {
-            mImageView.setImageBitmap(imgBitmap);
-        }
+        return imgBitmap;
+    }
+
+    @Override
+    public boolean isOutputSurfaceReady() {
+        return mCurrentSizeId != NO_SIZE && mCurrentFormatId != NO_FORMAT;
     }
 
     @Override
@@ -381,13 +463,10 @@ public class ImageReaderSubPane extends TargetSubPane {
                 !Objects.equals(mConfiguredFormat, f) ||
                 mConfiguredCount != c) {
 
-            if (mReader != null) {
-                mReader.close();
-                mCurrentImages.clear();
-                mCurrentImageIdx = NO_IMAGE;
-            }
+            closeReader();
+            startProcessingThread();
             mReader = ImageReader.newInstance(s.getWidth(), s.getHeight(), f.imageFormat, c);
-            mReader.setOnImageAvailableListener(mImageListener, null);
+            mReader.setOnImageAvailableListener(mImageListener, mProcessingHandler);
             mConfiguredSize = s;
             mConfiguredFormat = f;
             mConfiguredCount = c;
@@ -395,6 +474,60 @@ public class ImageReaderSubPane extends TargetSubPane {
         return mReader.getSurface();
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        closeReader();
+        if (mProcessingThread != null) {
+            // Let any saves already posted to the processing thread queue up before shutdown
+            final ImageSaver saver = mImageSaver;
+            final BayerDemosaic demosaic = mDemosaic;
+            mProcessingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    saver.shutdown();
+                    demosaic.shutdown();
+                }
+            });
+            mProcessingThread.quitSafely();
+            mProcessingThread = null;
+            mProcessingHandler = null;
+        }
+    }
+
+    private void startProcessingThread() {
+        if (mProcessingThread != null) return;
+        mProcessingThread = new HandlerThread("ImageReaderSubPane");
+        mProcessingThread.start();
+        mProcessingHandler = new Handler(mProcessingThread.getLooper());
+        mImageSaver = new ImageSaver();
+        mImageSaver.setYuvLayout(mYuvSaveLayout);
+        mDemosaic = new BayerDemosaic(Runtime.getRuntime().availableProcessors());
+        mDemosaic.setMode(mDemosaicMode);
+    }
+
+    /**
+     * Close the current reader, and release all its images on the processing thread once
+     * any in-flight work there is done.
+     */
+    private void closeReader() {
+        if (mReader == null) return;
+        final ImageReader reader = mReader;
+        mReader = null;
+        reader.setOnImageAvailableListener(null, null);
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Image img : mCurrentImages) {
+                    img.close();
+                }
+                mCurrentImages.clear();
+                mCurrentImageIdx = NO_IMAGE;
+                reader.close();
+            }
+        });
+    }
+
     private final OnItemSelectedListener mFormatSpinnerListener = new OnItemSelectedListener() {
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
@@ -408,6 +541,22 @@ public class ImageReaderSubPane extends TargetSubPane {
         };
     };
 
+    private final OnItemSelectedListener mDemosaicSpinnerListener = new OnItemSelectedListener() {
+        @Override
+        public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
+            mDemosaicMode = BayerDemosaic.Mode.values()[pos];
+            BayerDemosaic demosaic = mDemosaic;
+            if (demosaic != null) {
+                demosaic.setMode(mDemosaicMode);
+                updateImage();
+            }
+        };
+
+        @Override
+        public void onNothingSelected(AdapterView<?> parent) {
+        };
+    };
+
     private final OnItemSelectedListener mSizeSpinnerListener = new OnItemSelectedListener() {
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
@@ -420,50 +569,114 @@ public class ImageReaderSubPane extends TargetSubPane {
         };
     };
 
+    private final CompoundButton.OnCheckedChangeListener mColorCheckBoxListener =
+            new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            mYuvRenderer.setColor(isChecked);
+            updateImage();
+        }
+    };
+
     private final OnClickListener mPrevButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
-            if (mCurrentImageIdx != NO_IMAGE) {
-                int prevIdx = mCurrentImageIdx;
-                mCurrentImageIdx = (mCurrentImageIdx == 0) ?
-                        (mCurrentImages.size() - 1) : (mCurrentImageIdx - 1);
-                if (prevIdx != mCurrentImageIdx) {
-                    updateImage();
+            postToProcessing(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCurrentImageIdx != NO_IMAGE) {
+                        int prevIdx = mCurrentImageIdx;
+                        mCurrentImageIdx = (mCurrentImageIdx == 0) ?
+                                (mCurrentImages.size() - 1) : (mCurrentImageIdx - 1);
+                        if (prevIdx != mCurrentImageIdx) {
+                            renderImage();
+                        }
+                    }
                 }
-            }
+            });
         }
     };
 
     private final OnClickListener mNextButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
-            if (mCurrentImageIdx != NO_IMAGE) {
-                int prevIdx = mCurrentImageIdx;
-                mCurrentImageIdx = (mCurrentImageIdx == mCurrentImages.size() - 1) ?
-                        0 : (mCurrentImageIdx + 1);
-                if (prevIdx != mCurrentImageIdx) {
-                    updateImage();
+            postToProcessing(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCurrentImageIdx != NO_IMAGE) {
+                        int prevIdx = mCurrentImageIdx;
+                        mCurrentImageIdx = (mCurrentImageIdx == mCurrentImages.size() - 1) ?
+                                0 : (mCurrentImageIdx + 1);
+                        if (prevIdx != mCurrentImageIdx) {
+                            renderImage();
+                        }
+                    }
                 }
-            }
+            });
         }
     };
 
     private final OnClickListener mSaveButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
-            // TODO: Make async and coordinate with onImageAvailable
-            if (mCurrentImageIdx != NO_IMAGE) {
-                Image img = mCurrentImages.get(mCurrentImageIdx);
-                try {
-                    String name = saveImage(img);
-                    TLog.i("Saved image as %s", name);
-                } catch (IOException e) {
-                    TLog.e("Can't save file:", e);
+            // Saving on the processing thread keeps the image from being closed mid-write
+            postToProcessing(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCurrentImageIdx != NO_IMAGE) {
+                        saveImage(mCurrentImages.get(mCurrentImageIdx));
+                    }
                 }
+            });
+        }
+    };
+
+    private final OnClickListener mSaveAllButtonListener = new OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            postToProcessing(new Runnable() {
+                @Override
+                public void run() {
+                    for (Image img : mCurrentImages) {
+                        saveImage(img);
+                    }
+                }
+            });
+        }
+    };
+
+    private final CompoundButton.OnCheckedChangeListener mSemiPlanarCheckBoxListener =
+            new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            mYuvSaveLayout = isChecked ?
+                    YuvPlaneWriter.Layout.SEMI_PLANAR : YuvPlaneWriter.Layout.PLANAR;
+            ImageSaver saver = mImageSaver;
+            if (saver != null) {
+                saver.setYuvLayout(mYuvSaveLayout);
             }
         }
     };
 
+    private final CompoundButton.OnCheckedChangeListener mAutoSaveCheckBoxListener =
+            new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            mAutoSave = isChecked;
+        }
+    };
+
+    private void postToProcessing(Runnable r) {
+        Handler handler = mProcessingHandler;
+        if (handler != null) {
+            handler.post(r);
+        }
+    }
+
+    /**
+     * Runs on the processing thread. Acquires one image per callback, closing the oldest kept
+     * image first if the reader has none left to give; renderImage() coalesces the rendering.
+     */
     private final ImageReader.OnImageAvailableListener mImageListener =
             new ImageReader.OnImageAvailableListener() {
         @Override
@@ -471,120 +684,55 @@ public class ImageReaderSubPane extends TargetSubPane {
             while (mCurrentImages.size() >= reader.getMaxImages()) {
                 Image oldest = mCurrentImages.remove();
                 oldest.close();
-                mCurrentImageIdx = Math.min(mCurrentImageIdx - 1, 0);
             }
-            mCurrentImages.add(reader.acquireNextImage());
-            if (mCurrentImageIdx == NO_IMAGE) {
-                mCurrentImageIdx = 0;
+            Image img = reader.acquireNextImage();
+            if (img == null) {
+                // Keep the index valid for whatever images are left
+                mCurrentImageIdx = Math.min(mCurrentImageIdx, mCurrentImages.size() - 1);
+                return;
             }
-            updateImage();
+            CameraControlPane camera = mCurrentCamera;
+            SessionTrace.imageAvailable(mStreamId, img.getTimestamp(), img.getFormat(),
+                    (camera != null) ? camera.getPaneId() : -1);
+            if (camera != null) {
+                camera.getLatencyTracker().onImageAvailable(mStreamId, img.getTimestamp(),
+                        System.nanoTime());
+                camera.addOutputBytes(getImageBytes(img));
+            }
+            mCurrentImages.add(img);
+            if (mAutoSave) {
+                saveImage(img);
+            }
+            mCurrentImageIdx = mCurrentImages.size() - 1;
+            renderImage();
         }
     };
 
-    private String saveImage(Image img) throws IOException {
-        long timestamp = img.getTimestamp();
-        File output = getOutputImageFile(img.getFormat(), timestamp);
-        try (FileOutputStream out = new FileOutputStream(output)) {
-            switch(img.getFormat()) {
-                case ImageFormat.JPEG: {
-                    writeJpegImage(img, out);
-                    break;
-                }
-                case ImageFormat.YUV_420_888: {
-                    writeYuvImage(img, out);
-                    break;
-                }
-                case ImageFormat.RAW_SENSOR: {
-                    writeDngImage(img, out);
-                    break;
-                }
-                case ImageFormat.RAW10: {
-                    TLog.e("RAW10 saving not implemented");
-                    break;
-                }
-            }
+    private static long getImageBytes(Image img) {
+        long bytes = 0;
+        for (Image.Plane plane : img.getPlanes()) {
+            bytes += plane.getBuffer().remaining();
         }
-        return output.getName();
+        return bytes;
     }
 
-    private void writeDngImage(Image img, OutputStream out) throws IOException {
-        if (img.getFormat() != ImageFormat.RAW_SENSOR) {
-            throw new IOException(
-                    String.format("Unexpected Image format: %d, expected ImageFormat.RAW_SENSOR",
-                            img.getFormat()));
-        }
+    /**
+     * Queue an image for saving. Runs on the processing thread, and blocks if the save queue
+     * is full.
+     */
+    private void saveImage(Image img) {
         long timestamp = img.getTimestamp();
-        if (mCurrentCamera == null) {
-            TLog.e("No camera availble for camera info, not saving DNG (timestamp %d)",
-                    timestamp);
-            throw new IOException("No camera info available");
-        }
-        TotalCaptureResult result = mCurrentCamera.getResultAt(timestamp);
-        if (result == null) {
-            TLog.e("No result matching raw image found, not saving DNG (timestamp %d)",
-                    timestamp);
-            throw new IOException("No matching result found");
-        }
-        CameraCharacteristics info = mCurrentCamera.getCharacteristics();
-        try (DngCreator writer = new DngCreator(info, result)) {
-            writer.writeImage(out, img);
-        }
-    }
-
-    private void writeJpegImage(Image img, OutputStream out) throws IOException {
-        if (img.getFormat() != ImageFormat.JPEG) {
-            throw new IOException(
-                    String.format("Unexpected Image format: %d, expected ImageFormat.JPEG",
-                            img.getFormat()));
-        }
-        WritableByteChannel outChannel = Channels.newChannel(out);
-        ByteBuffer jpegData = img.getPlanes()[0].getBuffer();
-        jpegData.rewind();
-        outChannel.write(jpegData);
-    }
-
-    private void writeYuvImage(Image img, OutputStream out)
-            throws IOException {
-        if (img.getFormat() != ImageFormat.YUV_420_888) {
-            throw new IOException(
-                    String.format("Unexpected Image format: %d, expected ImageFormat.YUV_420_888",
-                            img.getFormat()));
-        }
-        WritableByteChannel outChannel = Channels.newChannel(out);
-        for (int plane = 0; plane < 3; plane++) {
-            Image.Plane colorPlane = img.getPlanes()[plane];
-            ByteBuffer colorData = colorPlane.getBuffer();
-            int subsampleFactor = (plane == 0) ? 1 : 2;
-            int colorW = img.getWidth() / subsampleFactor;
-            int colorH = img.getHeight() / subsampleFactor;
-            colorData.rewind();
-            colorData.limit(colorData.capacity());
-            if (colorPlane.getPixelStride() == 1) {
-                // Can write contiguous rows
-                for (int y = 0, rowStart = 0; y < colorH;
-                        y++, rowStart += colorPlane.getRowStride()) {
-                    colorData.limit(rowStart + colorW);
-                    colorData.position(rowStart);
-                    outChannel.write(colorData);
-                }
-            } else {
-                // Need to pack rows
-                byte[] row = new byte[colorW * colorPlane.getPixelStride()];
-                byte[] packedRow = new byte[colorW];
-                ByteBuffer packedRowBuffer = ByteBuffer.wrap(packedRow);
-                for (int y = 0, rowStart = 0; y < colorH;
-                        y++, rowStart += colorPlane.getRowStride()) {
-                    colorData.position(rowStart);
-                    colorData.get(row);
-                    for (int x = 0, i = 0; x < colorW;
-                            x++, i += colorPlane.getPixelStride()) {
-                        packedRow[x] = row[i];
-                    }
-                    packedRowBuffer.rewind();
-                    outChannel.write(packedRowBuffer);
-                }
-            }
-        }
+        File output = getOutputImageFile(img.getFormat(), timestamp);
+        CameraCharacteristics info = null;
+        TotalCaptureResult result = null;
+        CameraControlPane camera = mCurrentCamera;
+        boolean isRaw = (img.getFormat() == ImageFormat.RAW_SENSOR ||
+                img.getFormat() == ImageFormat.RAW10);
+        if (isRaw && camera != null) {
+            info = camera.getCharacteristics();
+            result = camera.getResultAt(timestamp);
+        }
+        mImageSaver.save(img, output, info, result);
     }
 
     File getOutputImageFile(int type, long timestamp){
@@ -637,8 +785,9 @@ public class ImageReaderSubPane extends TargetSubPane {
                         "IMG_"+ timeStamp + ".dng");
                 break;
             case ImageFormat.RAW10:
+                // Unpacked to 16 bits per pixel and saved as a DNG
                 mediaFile = new File(mediaStorageDir.getPath() + File.separator +
-                        "IMG_"+ timeStamp + ".raw10");
+                        "IMG_"+ timeStamp + ".dng");
                 break;
         }
 
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.DngCreator;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.os.SystemClock;
+import android.util.Size;
+
+/**
+ * A bounded write-behind queue for saving images to storage.
+ *
+ * <p>Images are copied into pooled direct buffers on the caller's thread, so the source
+ * {@link Image} can be closed as soon as {@link #save} returns. The copies are then written
+ * out concurrently by a small pool of worker threads. At most a fixed number of images can be
+ * queued or in flight; once that limit is hit, {@link #save} blocks until a write completes,
+ * pushing backpressure onto the image producer instead of dropping frames.</p>
+ *
+ * <p>Per-file latency is logged as each write finishes, and aggregate throughput is logged
+ * whenever the queue drains.</p>
+ */
+public class ImageSaver {
+
+    private static final int DEFAULT_WORKER_COUNT = 3;
+    private static final int DEFAULT_QUEUE_DEPTH = 8;
+
+    private static final long NS_PER_MS = 1000000l;
+    private static final double BYTES_PER_MB = 1024. * 1024.;
+
+    private final ExecutorService mWorkers;
+    private final Semaphore mSlots;
+    private final ArrayDeque<ByteBuffer> mBufferPool = new ArrayDeque<>();
+    private final int mQueueDepth;
+
+    private volatile YuvPlaneWriter.Layout mYuvLayout = YuvPlaneWriter.Layout.PLANAR;
+
+    /** YuvPlaneWriters keep scratch state, so each worker thread gets its own */
+    private final ThreadLocal<YuvPlaneWriter> mPlanarWriter =
+            new ThreadLocal<YuvPlaneWriter>() {
+        @Override
+        protected YuvPlaneWriter initialValue() {
+            return new YuvPlaneWriter(YuvPlaneWriter.Layout.PLANAR);
+        }
+    };
+    private final ThreadLocal<YuvPlaneWriter> mSemiPlanarWriter =
+            new ThreadLocal<YuvPlaneWriter>() {
+        @Override
+        protected YuvPlaneWriter initialValue() {
+            return new YuvPlaneWriter(YuvPlaneWriter.Layout.SEMI_PLANAR);
+        }
+    };
+
+    private final ThreadLocal<Raw10Unpacker> mRaw10Unpacker = new ThreadLocal<Raw10Unpacker>() {
+        @Override
+        protected Raw10Unpacker initialValue() {
+            return new Raw10Unpacker();
+        }
+    };
+
+    private final Object mStatsLock = new Object();
+    private int mInFlight = 0;
+    private int mBatchCount = 0;
+    private long mBatchBytes = 0;
+    private long mBatchStartNs = 0;
+
+    public ImageSaver() {
+        this(DEFAULT_WORKER_COUNT, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param workerCount number of files to write concurrently
+     * @param queueDepth maximum number of images queued or being written at once
+     */
+    public ImageSaver(int workerCount, int queueDepth) {
+        mWorkers = Executors.newFixedThreadPool(workerCount);
+        mSlots = new Semaphore(queueDepth);
+        mQueueDepth = queueDepth;
+    }
+
+    /**
+     * Copy an image and queue it for writing, blocking if the queue is full.
+     *
+     * @param img the image to save; may be closed once this call returns
+     * @param output the file to write to
+     * @param info the characteristics of the source camera; only needed for RAW formats
+     * @param result the capture result for the image; only needed for RAW formats
+     * @return true if the image was queued
+     */
+    public boolean save(Image img, File output, CameraCharacteristics info,
+            TotalCaptureResult result) {
+        if (output == null) {
+            TLog.e("No output file available, not saving image (timestamp %d)",
+                    img.getTimestamp());
+            return false;
+        }
+        boolean isRaw = (img.getFormat() == ImageFormat.RAW_SENSOR ||
+                img.getFormat() == ImageFormat.RAW10);
+        if (isRaw && (info == null || result == null)) {
+            TLog.e("No camera info or result matching raw image found, not saving DNG " +
+                    "(timestamp %d)", img.getTimestamp());
+            return false;
+        }
+        try {
+            mSlots.acquire();
+        } catch (InterruptedException e) {
+            TLog.e("Interrupted waiting to save image (timestamp %d)", img.getTimestamp());
+            return false;
+        }
+        final ImageCopy copy;
+        try {
+            copy = copyImage(img);
+        } catch (RuntimeException e) {
+            mSlots.release();
+            throw e;
+        }
+        startWrite();
+        mWorkers.execute(new SaveTask(copy, output, info, result));
+        return true;
+    }
+
+    /**
+     * Select the file layout for YUV_420_888 images. Applies to images written after this
+     * call, including ones already queued.
+     */
+    public void setYuvLayout(YuvPlaneWriter.Layout layout) {
+        mYuvLayout = layout;
+    }
+
+    /**
+     * Finish writing all queued images, and then stop the worker threads.
+     */
+    public void shutdown() {
+        mWorkers.shutdown();
+    }
+
+    /**
+     * A copy of an image's planes, safe to keep after the source Image is closed.
+     */
+    static class ImageCopy {
+        int format;
+        int width;
+        int height;
+        long timestamp;
+        long queuedNs;
+
+        ByteBuffer data;
+        int[] planeOffsets;
+        int[] planeSizes;
+        int[] rowStrides;
+        int[] pixelStrides;
+
+        int getPlaneCount() {
+            return planeOffsets.length;
+        }
+
+        /**
+         * Get a view of one plane, positioned at its start.
+         */
+        ByteBuffer getPlane(int plane) {
+            ByteBuffer view = data.duplicate();
+            view.limit(planeOffsets[plane] + planeSizes[plane]);
+            view.position(planeOffsets[plane]);
+            return view.slice();
+        }
+    }
+
+    private ImageCopy copyImage(Image img) {
+        Image.Plane[] planes = img.getPlanes();
+        ImageCopy copy = new ImageCopy();
+        copy.format = img.getFormat();
+        copy.width = img.getWidth();
+        copy.height = img.getHeight();
+        copy.timestamp = img.getTimestamp();
+        copy.queuedNs = SystemClock.elapsedRealtimeNanos();
+        copy.planeOffsets = new int[planes.length];
+        copy.planeSizes = new int[planes.length];
+        copy.rowStrides = new int[planes.length];
+        copy.pixelStrides = new int[planes.length];
+
+        boolean packRaw = (copy.format == ImageFormat.RAW_SENSOR);
+        int total = 0;
+        for (int i = 0; i < planes.length; i++) {
+            ByteBuffer src = planes[i].getBuffer();
+            copy.planeOffsets[i] = total;
+            copy.planeSizes[i] = packRaw ? copy.width * 2 * copy.height : src.capacity();
+            total += copy.planeSizes[i];
+        }
+        copy.data = obtainBuffer(total);
+
+        for (int i = 0; i < planes.length; i++) {
+            ByteBuffer src = planes[i].getBuffer();
+            src.limit(src.capacity());
+            src.rewind();
+            if (packRaw) {
+                // DngCreator.writeByteBuffer expects rows without padding
+                int rowBytes = copy.width * 2;
+                int rowStride = planes[i].getRowStride();
+                for (int y = 0; y < copy.height; y++) {
+                    src.limit(y * rowStride + rowBytes);
+                    src.position(y * rowStride);
+                    copy.data.put(src);
+                }
+                copy.rowStrides[i] = rowBytes;
+            } else {
+                copy.data.put(src);
+                copy.rowStrides[i] = planes[i].getRowStride();
+            }
+            copy.pixelStrides[i] = planes[i].getPixelStride();
+        }
+        copy.data.flip();
+        return copy;
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        synchronized (mBufferPool) {
+            int count = mBufferPool.size();
+            for (int i = 0; i < count; i++) {
+                ByteBuffer b = mBufferPool.poll();
+                if (b.capacity() >= size) {
+                    b.clear();
+                    b.limit(size);
+                    return b;
+                }
+                // Too small; drop it so the pool converges on the current image size
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private void recycleBuffer(ByteBuffer b) {
+        synchronized (mBufferPool) {
+            if (mBufferPool.size() < mQueueDepth) {
+                mBufferPool.add(b);
+            }
+        }
+    }
+
+    private void startWrite() {
+        synchronized (mStatsLock) {
+            if (mInFlight == 0) {
+                mBatchCount = 0;
+                mBatchBytes = 0;
+                mBatchStartNs = SystemClock.elapsedRealtimeNanos();
+            }
+            mInFlight++;
+        }
+    }
+
+    private void finishWrite(boolean success, long bytes) {
+        synchronized (mStatsLock) {
+            mInFlight--;
+            if (success) {
+                mBatchCount++;
+                mBatchBytes += bytes;
+            }
+            if (mInFlight == 0 && mBatchCount > 1) {
+                long elapsedNs = SystemClock.elapsedRealtimeNanos() - mBatchStartNs;
+                TLog.i("Saved %d images, %.1f MB in %d ms (%.1f MB/s)",
+                        mBatchCount, mBatchBytes / BYTES_PER_MB, elapsedNs / NS_PER_MS,
+                        mBatchBytes / BYTES_PER_MB / (elapsedNs / 1e9));
+            }
+        }
+    }
+
+    private class SaveTask implements Runnable {
+        private final ImageCopy mImage;
+        private final File mOutput;
+        private final CameraCharacteristics mInfo;
+        private final TotalCaptureResult mResult;
+
+        SaveTask(ImageCopy image, File output, CameraCharacteristics info,
+                TotalCaptureResult result) {
+            mImage = image;
+            mOutput = output;
+            mInfo = info;
+            mResult = result;
+        }
+
+        @Override
+        public void run() {
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            boolean success = false;
+            long bytes = 0;
+            try {
+                try (FileOutputStream out = new FileOutputStream(mOutput)) {
+                    switch (mImage.format) {
+                        case ImageFormat.JPEG:
+                            writeJpegImage(mImage, out.getChannel());
+                            break;
+                        case ImageFormat.YUV_420_888:
+                            writeYuvImage(mImage, out.getChannel());
+                            break;
+                        case ImageFormat.RAW_SENSOR:
+                            writeDngImage(mImage, out, mInfo, mResult);
+                            break;
+                        case ImageFormat.RAW10:
+                            writeRaw10DngImage(mImage, out, mInfo, mResult);
+                            break;
+                    }
+                    bytes = out.getChannel().position();
+                }
+                success = true;
+                long writeNs = SystemClock.elapsedRealtimeNanos() - startNs;
+                TLog.i("Saved image as %s: %d KB, queued %d ms, written in %d ms (%.1f MB/s)",
+                        mOutput.getName(), bytes / 1024, (startNs - mImage.queuedNs) / NS_PER_MS,
+                        writeNs / NS_PER_MS, bytes / BYTES_PER_MB / (writeNs / 1e9));
+            } catch (IOException | RuntimeException e) {
+                // A runtime exception escaping a pool thread would take down the app
+                TLog.e("Can't save file %s:", e, mOutput.getName());
+            } finally {
+                recycleBuffer(mImage.data);
+                mSlots.release();
+                if (!success && mOutput.exists() && !mOutput.delete()) {
+                    TLog.e("Can't delete partial file %s", mOutput.getName());
+                }
+                finishWrite(success, bytes);
+            }
+        }
+    }
+
+    private static void writeDngImage(ImageCopy img, FileOutputStream out,
+            CameraCharacteristics info, TotalCaptureResult result) throws IOException {
+        try (DngCreator writer = new DngCreator(info, result)) {
+            writer.writeByteBuffer(out, new Size(img.width, img.height), img.getPlane(0), 0);
+        }
+    }
+
+    /**
+     * Unpack RAW10 to 16-bit samples in a pooled buffer, and write that out as a DNG
+     */
+    private void writeRaw10DngImage(ImageCopy img, FileOutputStream out,
+            CameraCharacteristics info, TotalCaptureResult result) throws IOException {
+        ByteBuffer raw16 = obtainBuffer(img.width * img.height * 2);
+        try {
+            mRaw10Unpacker.get().unpackToRaw16(img.getPlane(0), img.width, img.height,
+                    img.rowStrides[0], raw16);
+            raw16.flip();
+            try (DngCreator writer = new DngCreator(info, result)) {
+                writer.writeByteBuffer(out, new Size(img.width, img.height), raw16, 0);
+            }
+        } finally {
+            recycleBuffer(raw16);
+        }
+    }
+
+    private static void writeJpegImage(ImageCopy img, FileChannel out) throws IOException {
+        ByteBuffer jpegData = img.getPlane(0);
+        while (jpegData.hasRemaining()) {
+            out.write(jpegData);
+        }
+    }
+
+    private void writeYuvImage(ImageCopy img, FileChannel out) throws IOException {
+        YuvPlaneWriter writer = (mYuvLayout == YuvPlaneWriter.Layout.SEMI_PLANAR) ?
+                mSemiPlanarWriter.get() : mPlanarWriter.get();
+        ByteBuffer[] planes = new ByteBuffer[3];
+        for (int plane = 0; plane < 3; plane++) {
+            planes[plane] = img.getPlane(plane);
+        }
+        writer.write(out, img.width, img.height, planes, img.rowStrides, img.pixelStrides);
+        if (writer.getLastOutputFormat() != YuvPlaneWriter.OutputFormat.I420) {
+            TLog.i("YUV image (timestamp %d) written as %s", img.timestamp,
+                    writer.getLastOutputFormat());
+        }
+    }
+}
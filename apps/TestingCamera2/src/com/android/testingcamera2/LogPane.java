@@ -16,38 +16,78 @@
 
 package com.android.testingcamera2;
 
-import java.util.Date;
-import java.text.SimpleDateFormat;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Color;
+import android.os.Environment;
 import android.os.Handler;
-import android.os.Looper;
+import android.os.HandlerThread;
+import android.text.Editable;
 import android.text.Spannable;
-import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
 import android.text.method.ScrollingMovementMethod;
 import android.text.style.ForegroundColorSpan;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.util.TypedValue;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.View;
 import android.view.MotionEvent;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+/**
+ * On-screen application log.
+ *
+ * <p>Lines added between two display frames are appended to the view in a single update on
+ * the next frame. The view only keeps the last MAX_LINES lines; older lines are appended to
+ * a LOG_*.txt file in the image output directory as they scroll out. The file is written on
+ * a separate thread about once a second, and the lines still in view are added to it when
+ * the pane is detached.</p>
+ */
 public class LogPane extends LinearLayout implements TLog.Logger {
 
+    private static final String TAG = "LogPane";
+    private static final int MAX_LINES = 500;
+    private static final long SPILL_WRITE_INTERVAL_MS = 1000;
+
     private final TextView mLogTextView;
-    private final Handler mHandler;
+    private final Choreographer mChoreographer;
 
-    @SuppressLint("SimpleDateFormat")
-    private SimpleDateFormat mDateFormatter = new SimpleDateFormat("HH:mm:ss.SSS : ");
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private final TimestampFormatter mDateFormatter = new TimestampFormatter();
+    private SpannableStringBuilder mPendingLines = new SpannableStringBuilder();
+    private boolean mUpdateScheduled = false;
+    private final String[] mRecentLines = new String[MAX_LINES];
+    private int mRecentLinesHead = 0;
+    private int mRecentLinesCount = 0;
+    private ArrayList<String> mSpilledLines = new ArrayList<>();
+    private Handler mSpillHandler;
+    private boolean mSpillWriteScheduled = false;
+    private HandlerThread mSpillThread;
+
+    // Only touched on the spill thread
+    private File mSpillFile;
+    private BufferedWriter mSpillWriter;
+    private boolean mSpillFailed = false;
+
+    // Lengths of the lines currently shown, oldest first; main thread only
+    private final int[] mShownLineLengths = new int[MAX_LINES];
+    private int mShownHead = 0;
+    private int mShownCount = 0;
 
     public LogPane(Context context, AttributeSet attrs) {
         super(context, attrs);
 
-        mHandler = new Handler(Looper.getMainLooper());
+        mChoreographer = Choreographer.getInstance();
 
         this.setOrientation(VERTICAL);
 
@@ -77,25 +117,263 @@ public class LogPane extends LinearLayout implements TLog.Logger {
             }
         });
         mLogTextView.setGravity(Gravity.BOTTOM);
+        mLogTextView.setText("", TextView.BufferType.EDITABLE);
 
         this.addView(mLogTextView);
+
+        startSpillThread();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        startSpillThread();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stopSpillThread();
     }
 
     @Override
     public void addToLog(final String text, boolean error) {
-        StringBuffer logEntry = new StringBuffer(32);
-        logEntry.append("\n").append(mDateFormatter.format(new Date()));
-        logEntry.append(text);
-        final Spannable logLine = new SpannableString(logEntry.toString());
+        synchronized (mLock) {
+            String line = mDateFormatter.format(System.currentTimeMillis()) + text;
+            int start = mPendingLines.length();
+            mPendingLines.append('\n').append(line);
+            int lineColor = error ? Color.RED : Color.WHITE;
+            mPendingLines.setSpan(new ForegroundColorSpan(lineColor), start,
+                    mPendingLines.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+            rememberLine(line);
+
+            if (!mUpdateScheduled) {
+                mUpdateScheduled = true;
+                mChoreographer.postFrameCallback(mFrameCallback);
+            }
+        }
+    }
+
+    /**
+     * Keep the line in the ring of recent lines, spilling the oldest one to the log file if
+     * the ring is full. Called with mLock held, on the logging thread.
+     */
+    private void rememberLine(String line) {
+        if (mRecentLinesCount == MAX_LINES) {
+            spill(mRecentLines[mRecentLinesHead]);
+            mRecentLines[mRecentLinesHead] = line;
+            mRecentLinesHead = (mRecentLinesHead + 1) % MAX_LINES;
+        } else {
+            mRecentLines[(mRecentLinesHead + mRecentLinesCount) % MAX_LINES] = line;
+            mRecentLinesCount++;
+        }
+    }
+
+    /**
+     * Queue a line for the log file. Called with mLock held; lines that scroll out while the
+     * pane is detached are discarded.
+     */
+    private void spill(String line) {
+        if (mSpillHandler == null) return;
+        mSpilledLines.add(line);
+        if (!mSpillWriteScheduled) {
+            mSpillWriteScheduled = true;
+            mSpillHandler.postDelayed(mWriteSpilledLines, SPILL_WRITE_INTERVAL_MS);
+        }
+    }
+
+    private final Runnable mWriteSpilledLines = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<String> lines;
+            synchronized (mLock) {
+                lines = mSpilledLines;
+                mSpilledLines = new ArrayList<>();
+                mSpillWriteScheduled = false;
+            }
+            writeLines(lines);
+        }
+    };
 
-        int lineColor = error ? Color.RED : Color.WHITE;
-        logLine.setSpan(new ForegroundColorSpan(lineColor), 0, logLine.length(),
-                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    private void startSpillThread() {
+        synchronized (mLock) {
+            if (mSpillHandler != null) return;
+            mSpillThread = new HandlerThread(TAG);
+            mSpillThread.start();
+            mSpillHandler = new Handler(mSpillThread.getLooper());
+            mSpillWriteScheduled = false;
+        }
+    }
 
-        mHandler.post(new Runnable() {
+    /**
+     * Write out the queued lines and the lines still in view, close the log file, and stop
+     * the spill thread.
+     */
+    private void stopSpillThread() {
+        final ArrayList<String> lines;
+        Handler handler;
+        HandlerThread thread;
+        synchronized (mLock) {
+            if (mSpillHandler == null) return;
+            lines = mSpilledLines;
+            mSpilledLines = new ArrayList<>();
+            for (int i = 0; i < mRecentLinesCount; i++) {
+                lines.add(mRecentLines[(mRecentLinesHead + i) % MAX_LINES]);
+                mRecentLines[(mRecentLinesHead + i) % MAX_LINES] = null;
+            }
+            mRecentLinesCount = 0;
+            handler = mSpillHandler;
+            thread = mSpillThread;
+            mSpillHandler = null;
+            mSpillThread = null;
+        }
+        handler.removeCallbacks(mWriteSpilledLines);
+        handler.post(new Runnable() {
+            @Override
             public void run() {
-                mLogTextView.append(logLine);
+                writeLines(lines);
+                closeSpillWriter();
             }
         });
+        thread.quitSafely();
+    }
+
+    /**
+     * Append lines to the log file and flush it. Runs on the spill thread.
+     */
+    private void writeLines(ArrayList<String> lines) {
+        if (mSpillFailed || lines.isEmpty()) return;
+        try {
+            if (mSpillWriter == null) {
+                if (mSpillFile == null) {
+                    mSpillFile = getSpillFile();
+                    if (mSpillFile == null) {
+                        mSpillFailed = true;
+                        return;
+                    }
+                    Log.i(TAG, "Writing older log lines to " + mSpillFile);
+                }
+                mSpillWriter = new BufferedWriter(new FileWriter(mSpillFile, true));
+            }
+            for (String line : lines) {
+                mSpillWriter.write(line);
+                mSpillWriter.newLine();
+            }
+            mSpillWriter.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write log file, older log lines will be discarded", e);
+            mSpillFailed = true;
+            closeSpillWriter();
+        }
+    }
+
+    private void closeSpillWriter() {
+        if (mSpillWriter == null) return;
+        try {
+            mSpillWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close log file", e);
+        }
+        mSpillWriter = null;
+    }
+
+    private File getSpillFile() {
+        String state = Environment.getExternalStorageState();
+        if (!Environment.MEDIA_MOUNTED.equals(state)) {
+            return null;
+        }
+        File dir = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DCIM), "TestingCamera2");
+        if (!dir.exists() && !dir.mkdirs()) {
+            return null;
+        }
+        return new File(dir, "LOG_" + System.currentTimeMillis() + ".txt");
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            SpannableStringBuilder lines;
+            synchronized (mLock) {
+                lines = mPendingLines;
+                mPendingLines = new SpannableStringBuilder();
+                mUpdateScheduled = false;
+            }
+            appendLines(lines);
+        }
+    };
+
+    /**
+     * Append a batch of newline-prefixed lines to the view, then trim the oldest lines to
+     * stay within MAX_LINES.
+     */
+    private void appendLines(SpannableStringBuilder lines) {
+        Editable shown = mLogTextView.getEditableText();
+        int lineStart = 0;
+        for (int i = 1; i <= lines.length(); i++) {
+            if (i == lines.length() || lines.charAt(i) == '\n') {
+                if (mShownCount == MAX_LINES) {
+                    mShownHead = (mShownHead + 1) % MAX_LINES;
+                    mShownCount--;
+                }
+                mShownLineLengths[(mShownHead + mShownCount) % MAX_LINES] = i - lineStart;
+                mShownCount++;
+                lineStart = i;
+            }
+        }
+        int keptLength = 0;
+        for (int i = 0; i < mShownCount; i++) {
+            keptLength += mShownLineLengths[(mShownHead + i) % MAX_LINES];
+        }
+        int totalLength = shown.length() + lines.length();
+        if (totalLength > keptLength) {
+            int trim = Math.min(totalLength - keptLength, shown.length());
+            shown.delete(0, trim);
+            if (trim < totalLength - keptLength) {
+                // This batch alone is longer than MAX_LINES
+                lines.delete(0, totalLength - keptLength - trim);
+            }
+        }
+        shown.append(lines);
+    }
+
+    /**
+     * Formats wall-clock timestamps as "HH:mm:ss.SSS : ", reformatting the hours, minutes and
+     * seconds only when the second changes. Not thread-safe.
+     */
+    private static class TimestampFormatter {
+        private final Calendar mCalendar = Calendar.getInstance();
+        private final StringBuilder mBuilder = new StringBuilder(16);
+        private long mCachedSecond = -1;
+        private String mCachedPrefix;
+
+        String format(long millis) {
+            long second = millis / 1000;
+            if (second != mCachedSecond) {
+                mCachedSecond = second;
+                mCalendar.setTimeInMillis(millis);
+                mBuilder.setLength(0);
+                appendTwoDigits(mCalendar.get(Calendar.HOUR_OF_DAY));
+                mBuilder.append(':');
+                appendTwoDigits(mCalendar.get(Calendar.MINUTE));
+                mBuilder.append(':');
+                appendTwoDigits(mCalendar.get(Calendar.SECOND));
+                mBuilder.append('.');
+                mCachedPrefix = mBuilder.toString();
+            }
+            int ms = (int) (millis % 1000);
+            mBuilder.setLength(0);
+            mBuilder.append(mCachedPrefix);
+            if (ms < 100) mBuilder.append('0');
+            if (ms < 10) mBuilder.append('0');
+            mBuilder.append(ms).append(" : ");
+            return mBuilder.toString();
+        }
+
+        private void appendTwoDigits(int value) {
+            if (value < 10) mBuilder.append('0');
+            mBuilder.append(value);
+        }
     }
 }
@@ -139,11 +139,7 @@ public abstract class PaneLayout<T extends ControlPane> extends LinearLayout imp
     }
 
     public void activateConfig() {
-        ArrayList<T> oldPanes = new ArrayList<T>(mPanes);
-        for (T pane : oldPanes) {
-            // This will call back to onRemoveRequested
-            pane.remove();
-        }
+        removeAllPanes();
 
         for (T newPane : mNewPanes) {
             addPane(newPane);
@@ -151,6 +147,17 @@ public abstract class PaneLayout<T extends ControlPane> extends LinearLayout imp
         clearConfig();
     }
 
+    /**
+     * Remove every pane, letting each one clean up its state
+     */
+    public void removeAllPanes() {
+        ArrayList<T> oldPanes = new ArrayList<T>(mPanes);
+        for (T pane : oldPanes) {
+            // This will call back to onRemoveRequested
+            pane.remove();
+        }
+    }
+
     public void addPane(TestingCamera21 tc) {
         T newPane = createControlPane(tc, null);
         addPane(newPane);
@@ -38,7 +38,8 @@ public class PaneTracker {
      */
     public enum PaneEvent {
         NEW_CAMERA_SELECTED,
-        CAMERA_CONFIGURED
+        CAMERA_CONFIGURED,
+        TARGET_SURFACE_READY
     }
 
     public PaneTracker() {
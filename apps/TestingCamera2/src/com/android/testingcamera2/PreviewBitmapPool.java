@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import android.graphics.Bitmap;
+
+/**
+ * A reused ARGB destination for preview rendering: one pixel array, copied into two bitmaps
+ * used in alternation.
+ *
+ * <p>The pixel array and bitmaps are only reallocated when the output size changes. As with
+ * YuvPreviewRenderer, one bitmap can stay on screen while the next frame is rendered into the
+ * other. Not thread-safe; a bitmap returned by publish() is overwritten by the second call to
+ * publish() after the one that returned it.</p>
+ */
+public class PreviewBitmapPool {
+
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int[] mPixels;
+    private final Bitmap[] mBitmaps = new Bitmap[2];
+    private int mBitmapIdx = 0;
+
+    /**
+     * Get the pixel array to render the next frame into.
+     *
+     * @param w output width in pixels
+     * @param h output height in pixels
+     * @return a pixel array at least w * h long, holding w pixels per row
+     */
+    public int[] getPixels(int w, int h) {
+        if (w != mWidth || h != mHeight || mPixels == null) {
+            // The old bitmaps may still be on screen, so leave them to the GC instead of
+            // recycling
+            mWidth = w;
+            mHeight = h;
+            mPixels = new int[w * h];
+            for (int i = 0; i < mBitmaps.length; i++) {
+                mBitmaps[i] = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            }
+        }
+        return mPixels;
+    }
+
+    /**
+     * Copy the frame rendered into the pixel array into the next bitmap.
+     *
+     * @return the pooled bitmap holding the frame
+     */
+    public Bitmap publish() {
+        mBitmapIdx ^= 1;
+        Bitmap bitmap = mBitmaps[mBitmapIdx];
+        bitmap.setPixels(mPixels, 0, mWidth, 0, 0, mWidth, mHeight);
+        return bitmap;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unpacks ImageFormat.RAW10 data, either to a downsampled RGB preview or to 16-bit samples.
+ *
+ * <p>RAW10 packs each group of 4 horizontally adjacent pixels into 5 bytes: the first 4 bytes
+ * hold the top 8 bits of each pixel, and the fifth holds the bottom 2 bits of all four, with
+ * pixel 0 in its least significant bits. Rows are padded out to the plane's row stride.</p>
+ *
+ * <p>Not thread-safe.</p>
+ */
+public class Raw10Unpacker {
+
+    private byte[] mPackedRow = new byte[0];
+    private byte[] mUnpackedRow = new byte[0];
+
+    /**
+     * Read one pixel directly from a RAW10 buffer.
+     *
+     * @param src the RAW10 plane
+     * @param rowStart byte offset of the start of the pixel's row
+     * @param x column of the pixel
+     */
+    public static int getPixel(ByteBuffer src, int rowStart, int x) {
+        int group = rowStart + (x >> 2) * 5;
+        int shift = (x & 3) << 1;
+        return ((src.get(group + (x & 3)) & 0xFF) << 2) |
+                ((src.get(group + 4) >> shift) & 0x3);
+    }
+
+    /**
+     * Render a downsampled RGB preview by sampling one Bayer quad per output pixel, reading
+     * only the sampled pixels from the source buffer.
+     *
+     * @param src the RAW10 plane
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param rowStride plane row stride in bytes
+     * @param scaleFactor downsampling factor; must be even
+     * @param shiftRow 0 if the first row of the color filter pattern holds red, else 1
+     * @param shiftCol 0 if red is in the first column of its row, else 1
+     * @param shiftFactor right shift to map raw values into 0..255
+     * @param out destination ARGB pixels, at least (width/scale) * (height/scale) long
+     */
+    public void renderPreview(ByteBuffer src, int width, int height, int rowStride,
+            int scaleFactor, int shiftRow, int shiftCol, int shiftFactor, int[] out) {
+        int w = width / scaleFactor;
+        int h = height / scaleFactor;
+        for (int y = 0, j = 0; y < h; y++) {
+            int redRowStart = (y * scaleFactor + shiftRow) * rowStride;
+            int blueRowStart = (y * scaleFactor + 1 - shiftRow) * rowStride;
+            for (int x = 0, i = 0; x < w; x++, i += scaleFactor, j++) {
+                int r = getPixel(src, redRowStart, i + shiftCol) >> shiftFactor;
+                int g = getPixel(src, redRowStart, i + 1 - shiftCol) >> shiftFactor;
+                int b = getPixel(src, blueRowStart, i + 1 - shiftCol) >> shiftFactor;
+                r = (r > 255) ? 255 : r;
+                g = (g > 255) ? 255 : g;
+                b = (b > 255) ? 255 : b;
+                out[j] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    /**
+     * Unpack a whole RAW10 image into little-endian 16-bit samples with no row padding, the
+     * layout expected by DngCreator.writeByteBuffer.
+     *
+     * @param src the RAW10 plane, read from position 0; its position and limit are modified
+     * @param width image width in pixels; must be a multiple of 4
+     * @param height image height in pixels
+     * @param rowStride plane row stride in bytes
+     * @param dst destination buffer, written from its current position; needs
+     *            width * height * 2 bytes remaining
+     */
+    public void unpackToRaw16(ByteBuffer src, int width, int height, int rowStride,
+            ByteBuffer dst) {
+        int packedLength = width / 4 * 5;
+        int unpackedLength = width * 2;
+        if (mPackedRow.length < packedLength) {
+            mPackedRow = new byte[packedLength];
+        }
+        if (mUnpackedRow.length < unpackedLength) {
+            mUnpackedRow = new byte[unpackedLength];
+        }
+        final byte[] packed = mPackedRow;
+        final byte[] unpacked = mUnpackedRow;
+        src.limit(src.capacity());
+        for (int y = 0, rowStart = 0; y < height; y++, rowStart += rowStride) {
+            src.position(rowStart);
+            src.get(packed, 0, packedLength);
+            unpackRow(packed, packedLength, unpacked);
+            dst.put(unpacked, 0, unpackedLength);
+        }
+    }
+
+    /**
+     * Unpack one row of RAW10 groups into little-endian 16-bit samples.
+     */
+    private static void unpackRow(byte[] packed, int packedLength, byte[] unpacked) {
+        for (int i = 0, o = 0; i < packedLength; i += 5, o += 8) {
+            int low = packed[i + 4];
+            int p0 = ((packed[i] & 0xFF) << 2) | (low & 0x3);
+            int p1 = ((packed[i + 1] & 0xFF) << 2) | ((low >> 2) & 0x3);
+            int p2 = ((packed[i + 2] & 0xFF) << 2) | ((low >> 4) & 0x3);
+            int p3 = ((packed[i + 3] & 0xFF) << 2) | ((low >> 6) & 0x3);
+            unpacked[o] = (byte) p0;
+            unpacked[o + 1] = (byte) (p0 >> 8);
+            unpacked[o + 2] = (byte) p1;
+            unpacked[o + 3] = (byte) (p1 >> 8);
+            unpacked[o + 4] = (byte) p2;
+            unpacked[o + 5] = (byte) (p2 >> 8);
+            unpacked[o + 6] = (byte) p3;
+            unpacked[o + 7] = (byte) (p3 >> 8);
+        }
+    }
+}
@@ -19,22 +19,30 @@ package com.android.testingcamera2;
 import android.content.Context;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.Surface;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Spinner;
+import android.widget.TextView;
+import android.widget.ToggleButton;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class RequestControlPane extends ControlPane {
     // XML attributes
@@ -44,6 +52,20 @@ public class RequestControlPane extends ControlPane {
 
     /** Attribute: ID for pane (integer) */
     private static final String PANE_ID = "id";
+    /** Attribute: ID of the camera pane to send requests to (integer) */
+    private static final String CAMERA_PANE_ID = "camera_pane";
+    /** Attribute: Start repeating the request once the camera is first configured (boolean) */
+    private static final String REPEAT_AUTOSTART = "repeat_autostart";
+    /** Attribute: Request template, one of the TemplateType names (String) */
+    private static final String TEMPLATE = "template";
+    /** Attribute: Number of captures in the capture script (integer) */
+    private static final String SCRIPT_COUNT = "script_count";
+    /** Attribute: Capture script rate in captures per second, 0 for back-to-back (float) */
+    private static final String SCRIPT_RATE = "script_rate";
+    /** Attribute: Most capture script captures in flight at once (integer) */
+    private static final String SCRIPT_MAX_IN_FLIGHT = "script_max_in_flight";
+    /** Attribute: Run the capture script once the camera is first configured (boolean) */
+    private static final String SCRIPT_AUTOSTART = "script_autostart";
 
     // End XML attributes
 
@@ -66,6 +88,12 @@ public class RequestControlPane extends ControlPane {
         }
     }
 
+    /** Most prebuilt requests kept; least recently used ones are rebuilt on demand */
+    private static final int MAX_CACHED_REQUESTS = 16;
+
+    private static final int DEFAULT_SCRIPT_COUNT = 100;
+    private static final int DEFAULT_SCRIPT_MAX_IN_FLIGHT = 8;
+
     private static int mRequestPaneIdCounter = 0;
 
     private final int mPaneId;
@@ -76,9 +104,37 @@ public class RequestControlPane extends ControlPane {
     private Spinner mCameraSpinner;
     private Spinner mTemplateSpinner;
     private ListView mOutputListView;
+    private EditText mScriptCountText;
+    private EditText mScriptRateText;
+    private ToggleButton mScriptButton;
+    private TextView mScriptStatusText;
 
     private CheckableListAdapter mOutputAdapter;
 
+    private Handler mHandler;
+    private int mScriptMaxInFlight = DEFAULT_SCRIPT_MAX_IN_FLIGHT;
+    private boolean mScriptAutostart = false;
+    private boolean mRepeatAutostart = false;
+    /** Camera pane ID from the XML configuration, selected once that pane appears */
+    private int mPendingCameraPaneId = -1;
+    private CaptureScriptDriver mScriptDriver;
+    private CameraControlPane mScriptCamera;
+
+    /**
+     * Requests already built for a camera, template and set of target surfaces. CaptureRequests
+     * are immutable, so one can be resubmitted as often as needed without paying for
+     * createCaptureRequest again. Entries for a camera are dropped whenever it is reconfigured
+     * or switches devices. Only touched on the UI thread.
+     */
+    private final LinkedHashMap<RequestKey, CaptureRequest> mRequestCache =
+            new LinkedHashMap<RequestKey, CaptureRequest>(MAX_CACHED_REQUESTS, 0.75f,
+                    /*accessOrder*/true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<RequestKey, CaptureRequest> eldest) {
+                    return size() > MAX_CACHED_REQUESTS;
+                }
+            };
+
     /**
      * Constructor for tooling only
      */
@@ -114,24 +170,73 @@ public class RequestControlPane extends ControlPane {
             }
         }
 
+        String templateName = getAttributeString(configParser, TEMPLATE, null);
+        TemplateType template = null;
+        if (templateName != null) {
+            try {
+                template = TemplateType.valueOf(templateName.toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                throw new XmlPullParserException("Unknown template " + templateName,
+                        configParser, e);
+            }
+        }
+        int scriptCount = getAttributeInt(configParser, SCRIPT_COUNT, DEFAULT_SCRIPT_COUNT);
+        String scriptRate = getAttributeString(configParser, SCRIPT_RATE, "0");
+        try {
+            Float.parseFloat(scriptRate);
+        } catch (NumberFormatException e) {
+            throw new XmlPullParserException("Expected float attribute", configParser, e);
+        }
+        mScriptMaxInFlight = getAttributeInt(configParser, SCRIPT_MAX_IN_FLIGHT,
+                DEFAULT_SCRIPT_MAX_IN_FLIGHT);
+        if (mScriptMaxInFlight < 1) {
+            throw new XmlPullParserException("Expected positive " + SCRIPT_MAX_IN_FLIGHT +
+                    " attribute", configParser, null);
+        }
+        mScriptAutostart = Boolean.parseBoolean(
+                getAttributeString(configParser, SCRIPT_AUTOSTART, "false"));
+        mRepeatAutostart = Boolean.parseBoolean(
+                getAttributeString(configParser, REPEAT_AUTOSTART, "false"));
+        mPendingCameraPaneId = getAttributeInt(configParser, CAMERA_PANE_ID, -1);
+
         configParser.next();
         configParser.require(XmlPullParser.END_TAG, XmlPullParser.NO_NAMESPACE, PANE_NAME);
 
         setUpUI(tc);
+
+        if (template != null) {
+            mTemplateSpinner.setSelection(template.ordinal());
+        }
+        mScriptCountText.setText(Integer.toString(scriptCount));
+        mScriptRateText.setText(scriptRate);
     }
 
     public void notifyPaneEvent(ControlPane sourcePane, PaneTracker.PaneEvent event) {
         switch (event) {
             case NEW_CAMERA_SELECTED:
+                invalidateCachedRequests(sourcePane);
                 if (mCameraPanes.size() > 0
                         && sourcePane == mCameraPanes.get(mCameraSpinner.getSelectedItemPosition())) {
                     updateOutputList();
                 }
                 break;
             case CAMERA_CONFIGURED:
+                invalidateCachedRequests(sourcePane);
+                if (sourcePane == mScriptCamera) {
+                    // The script's session is gone
+                    stopScript();
+                }
                 if (mCameraPanes.size() > 0
                         && sourcePane == mCameraPanes.get(mCameraSpinner.getSelectedItemPosition())) {
                     updateOutputList();
+                    if (mRepeatAutostart) {
+                        mRepeatAutostart = false;
+                        repeatRequest();
+                    }
+                    if (mScriptAutostart) {
+                        mScriptAutostart = false;
+                        mScriptButton.setChecked(true);
+                    }
                 }
                 break;
             default:
@@ -158,6 +263,13 @@ public class RequestControlPane extends ControlPane {
         mCameraSpinner = (Spinner) findViewById(R.id.request_pane_camera_spinner);
         mTemplateSpinner = (Spinner) findViewById(R.id.request_pane_template_spinner);
         mOutputListView = (ListView) findViewById(R.id.request_pane_output_listview);
+        mScriptCountText = (EditText) findViewById(R.id.request_pane_script_count);
+        mScriptRateText = (EditText) findViewById(R.id.request_pane_script_rate);
+        mScriptButton = (ToggleButton) findViewById(R.id.request_pane_script_button);
+        mScriptButton.setOnCheckedChangeListener(mScriptButtonListener);
+        mScriptStatusText = (TextView) findViewById(R.id.request_pane_script_status);
+
+        mHandler = new Handler();
 
         mOutputAdapter = new CheckableListAdapter(context, R.layout.checkable_list_item,
                 new ArrayList<CheckableListAdapter.CheckableItem>());
@@ -189,6 +301,10 @@ public class RequestControlPane extends ControlPane {
         @Override
         public void onPaneRemoved(ControlPane pane) {
             mCameraPanes.remove((CameraControlPane) pane);
+            invalidateCachedRequests(pane);
+            if (pane == mScriptCamera) {
+                stopScript();
+            }
             updateCameraPaneList();
         }
     }
@@ -212,15 +328,93 @@ public class RequestControlPane extends ControlPane {
     private OnClickListener mRepeatButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
-            if (mCameraPanes.size() == 0) {
-                TLog.e("No camera selected for request");
-                return;
+            repeatRequest();
+        }
+    };
+
+    private void repeatRequest() {
+        if (mCameraPanes.size() == 0) {
+            TLog.e("No camera selected for request");
+            return;
+        }
+        CameraControlPane camera = mCameraPanes.get(mCameraSpinner.getSelectedItemPosition());
+
+        CaptureRequest request = createRequest(camera);
+        if (request != null) {
+            camera.repeat(request);
+        }
+    }
+
+    private final CompoundButton.OnCheckedChangeListener mScriptButtonListener =
+            new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            if (isChecked) {
+                if (!startScript()) {
+                    buttonView.setChecked(false);
+                }
+            } else {
+                stopScript();
             }
-            CameraControlPane camera = mCameraPanes.get(mCameraSpinner.getSelectedItemPosition());
+        }
+    };
 
-            CaptureRequest request = createRequest(camera);
-            if (request != null) {
-                camera.repeat(request);
+    private boolean startScript() {
+        if (mScriptDriver != null && mScriptDriver.isRunning()) return true;
+        if (mCameraPanes.size() == 0) {
+            TLog.e("No camera selected for capture script");
+            return false;
+        }
+        CameraControlPane camera = mCameraPanes.get(mCameraSpinner.getSelectedItemPosition());
+
+        int count;
+        float rate;
+        try {
+            count = Integer.parseInt(mScriptCountText.getText().toString());
+            String rateText = mScriptRateText.getText().toString();
+            rate = rateText.isEmpty() ? 0 : Float.parseFloat(rateText);
+        } catch (NumberFormatException e) {
+            TLog.e("Capture script needs a capture count and rate");
+            return false;
+        }
+        if (count < 1 || rate < 0) {
+            TLog.e("Invalid capture script: %d captures at %f/s", count, rate);
+            return false;
+        }
+
+        CaptureRequest request = createRequest(camera);
+        if (request == null) return false;
+
+        mScriptCamera = camera;
+        mScriptDriver = new CaptureScriptDriver(camera, request, count, rate,
+                mScriptMaxInFlight, mHandler, mScriptListener);
+        TLog.i("%s: Capture script started, %d captures at %s", getPaneName(), count,
+                (rate > 0) ? String.format(Locale.US, "%.1f/s", rate) : "max rate");
+        mScriptDriver.start();
+        return true;
+    }
+
+    private void stopScript() {
+        if (mScriptDriver != null) {
+            mScriptDriver.stop();
+        }
+    }
+
+    private final CaptureScriptDriver.Listener mScriptListener =
+            new CaptureScriptDriver.Listener() {
+        @Override
+        public void onScriptProgress(CaptureScriptDriver driver) {
+            mScriptStatusText.setText(driver.getStatus());
+        }
+
+        @Override
+        public void onScriptDone(CaptureScriptDriver driver) {
+            String status = driver.getStatus();
+            mScriptStatusText.setText(status);
+            TLog.i("%s: Capture script done: %s", getPaneName(), status);
+            if (driver == mScriptDriver) {
+                mScriptCamera = null;
+                mScriptButton.setChecked(false);
             }
         }
     };
@@ -231,12 +425,14 @@ public class RequestControlPane extends ControlPane {
             return null;
         }
 
-
         TemplateType template = TemplateType.valueOf((String) mTemplateSpinner.getSelectedItem());
-        CaptureRequest.Builder builder = camera.getRequestBuilder(template.getTemplateValue());
-        // TODO: Add setting overrides
 
         List<Integer> targetPostions = mOutputAdapter.getCheckedPositions();
+        if (targetPostions.size() == 0) {
+            TLog.e("No target(s) selected for request");
+            return null;
+        }
+        List<Surface> targetSurfaces = new ArrayList<Surface>(targetPostions.size());
         for (int i : targetPostions) {
             TargetControlPane target = mTargetPanes.get(i);
             Surface targetSurface = target.getTargetSurfaceForCameraPane(camera.getPaneName());
@@ -244,13 +440,70 @@ public class RequestControlPane extends ControlPane {
                 TLog.e("Target not configured for camera");
                 return null;
             }
+            targetSurfaces.add(targetSurface);
+        }
+
+        RequestKey key = new RequestKey(camera, template, targetSurfaces);
+        CaptureRequest request = mRequestCache.get(key);
+        if (request != null) {
+            return request;
+        }
+
+        CaptureRequest.Builder builder = camera.getRequestBuilder(template.getTemplateValue());
+        if (builder == null) return null;
+        // TODO: Add setting overrides
+
+        for (Surface targetSurface : targetSurfaces) {
             builder.addTarget(targetSurface);
         }
 
-        CaptureRequest request = builder.build();
+        request = builder.build();
+        mRequestCache.put(key, request);
         return request;
     }
 
+    /**
+     * Forget all prebuilt requests for a camera pane
+     */
+    private void invalidateCachedRequests(ControlPane camera) {
+        Iterator<RequestKey> keys = mRequestCache.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().mCamera == camera) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Identifies a prebuilt request. Surfaces compare by identity, so a target that has
+     * recreated its output surface also misses the cache.
+     */
+    private static class RequestKey {
+        final CameraControlPane mCamera;
+        final TemplateType mTemplate;
+        final List<Surface> mTargets;
+
+        RequestKey(CameraControlPane camera, TemplateType template, List<Surface> targets) {
+            mCamera = camera;
+            mTemplate = template;
+            mTargets = targets;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RequestKey)) return false;
+            RequestKey other = (RequestKey) o;
+            return mCamera == other.mCamera && mTemplate == other.mTemplate
+                    && mTargets.equals(other.mTargets);
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(mCamera) * 31 + mTemplate.hashCode()) * 31
+                    + mTargets.hashCode();
+        }
+    }
+
     private void updateCameraPaneList() {
         String currentSelection = (String) mCameraSpinner.getSelectedItem();
         int newSelectionIndex = 0;
@@ -261,6 +514,12 @@ public class RequestControlPane extends ControlPane {
                 newSelectionIndex = i;
             }
         }
+        for (int i = 0; i < cameraSpinnerItems.length; i++) {
+            if (mCameraPanes.get(i).getPaneId() == mPendingCameraPaneId) {
+                newSelectionIndex = i;
+                mPendingCameraPaneId = -1;
+            }
+        }
         mCameraSpinner.setAdapter(new ArrayAdapter<String>(getContext(), R.layout.spinner_item,
                 cameraSpinnerItems));
         mCameraSpinner.setSelection(newSelectionIndex);
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low-overhead binary trace of capture session activity, for soak testing.
+ *
+ * <p>Records are appended to a fixed-size memory-mapped file. Writers claim space with a
+ * single atomic add and fill it in with absolute puts, so recording takes no locks and makes
+ * no system calls; the kernel writes the pages back in the background. When the file is full,
+ * further records are dropped and counted.</p>
+ *
+ * <p>File layout, all big-endian: a HEADER_SIZE byte header holding MAGIC, VERSION and the
+ * wall-clock time in ms when tracing started, followed by records. Each record starts with
+ * a 16-byte header - short total length, byte type, one reserved byte, int source id and
+ * long System.nanoTime() - followed by its type's payload. The length is written last, so
+ * a zero length marks the end of the trace. See SessionTraceDecoder under tools/ for a
+ * reader.</p>
+ *
+ * <p>Uses only java.nio, so the format constants can be shared with the decoder.</p>
+ */
+public class SessionTrace {
+
+    public static final long MAGIC = 0x5443325452414345L; // "TC2TRACE"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 24;
+    public static final int RECORD_HEADER_SIZE = 16;
+
+    /** Payload: int sequence id, byte 1 if repeating */
+    public static final byte TYPE_SUBMIT = 1;
+    /** Payload: int sequence id, long frame number, long sensor timestamp */
+    public static final byte TYPE_CAPTURE_COMPLETED = 2;
+    /** Payload: long image timestamp, int image format, int source id of the camera */
+    public static final byte TYPE_IMAGE_AVAILABLE = 3;
+    /** Payload: UTF-8 state name filling the rest of the record */
+    public static final byte TYPE_SESSION_STATE = 4;
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    private static volatile SessionTrace sActive;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final AtomicInteger mPosition = new AtomicInteger(HEADER_SIZE);
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private SessionTrace(File file, int capacity) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(0);
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mCapacity = capacity;
+        mBuffer.putLong(0, MAGIC);
+        mBuffer.putInt(8, VERSION);
+        mBuffer.putLong(12, System.currentTimeMillis());
+    }
+
+    /**
+     * Start tracing to the given file, replacing its contents. Stops any trace in progress.
+     */
+    public static synchronized void start(File file, int capacity) throws IOException {
+        stop();
+        sActive = new SessionTrace(file, capacity);
+    }
+
+    /**
+     * Stop tracing and flush the trace to storage.
+     *
+     * @return number of records dropped because the trace was full
+     */
+    public static synchronized long stop() {
+        SessionTrace trace = sActive;
+        if (trace == null) return 0;
+        sActive = null;
+        trace.mBuffer.force();
+        try {
+            trace.mFile.close();
+        } catch (IOException e) {
+            // The mapping stays valid, and is written back regardless
+        }
+        return trace.mDropped.get();
+    }
+
+    public static boolean isActive() {
+        return sActive != null;
+    }
+
+    /**
+     * Record a capture submission. The sequence id is only known once the session call
+     * returns, so the record is written then, with the time taken before the call.
+     *
+     * @param submitTime System.nanoTime() just before the capture was submitted
+     */
+    public static void submit(int source, int sequenceId, boolean repeating, long submitTime) {
+        SessionTrace trace = sActive;
+        if (trace == null) return;
+        int offset = trace.claim(RECORD_HEADER_SIZE + 5);
+        if (offset < 0) return;
+        ByteBuffer b = trace.mBuffer;
+        b.putInt(offset + RECORD_HEADER_SIZE, sequenceId);
+        b.put(offset + RECORD_HEADER_SIZE + 4, (byte) (repeating ? 1 : 0));
+        trace.commit(offset, RECORD_HEADER_SIZE + 5, TYPE_SUBMIT, source, submitTime);
+    }
+
+    public static void captureCompleted(int source, int sequenceId, long frameNumber,
+            long sensorTimestamp) {
+        SessionTrace trace = sActive;
+        if (trace == null) return;
+        int offset = trace.claim(RECORD_HEADER_SIZE + 20);
+        if (offset < 0) return;
+        ByteBuffer b = trace.mBuffer;
+        b.putInt(offset + RECORD_HEADER_SIZE, sequenceId);
+        b.putLong(offset + RECORD_HEADER_SIZE + 4, frameNumber);
+        b.putLong(offset + RECORD_HEADER_SIZE + 12, sensorTimestamp);
+        trace.commit(offset, RECORD_HEADER_SIZE + 20, TYPE_CAPTURE_COMPLETED, source);
+    }
+
+    /**
+     * @param camera source id of the camera that produced the image, or -1 if unknown
+     */
+    public static void imageAvailable(int source, long timestamp, int format, int camera) {
+        SessionTrace trace = sActive;
+        if (trace == null) return;
+        int offset = trace.claim(RECORD_HEADER_SIZE + 16);
+        if (offset < 0) return;
+        ByteBuffer b = trace.mBuffer;
+        b.putLong(offset + RECORD_HEADER_SIZE, timestamp);
+        b.putInt(offset + RECORD_HEADER_SIZE + 8, format);
+        b.putInt(offset + RECORD_HEADER_SIZE + 12, camera);
+        trace.commit(offset, RECORD_HEADER_SIZE + 16, TYPE_IMAGE_AVAILABLE, source);
+    }
+
+    public static void sessionState(int source, String state) {
+        SessionTrace trace = sActive;
+        if (trace == null) return;
+        byte[] name = state.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER_SIZE + name.length;
+        int offset = trace.claim(length);
+        if (offset < 0) return;
+        ByteBuffer b = trace.mBuffer;
+        for (int i = 0; i < name.length; i++) {
+            b.put(offset + RECORD_HEADER_SIZE + i, name[i]);
+        }
+        trace.commit(offset, length, TYPE_SESSION_STATE, source);
+    }
+
+    /**
+     * Reserve space for a record.
+     *
+     * @return offset of the record, or -1 if the trace is full
+     */
+    private int claim(int length) {
+        int offset = mPosition.getAndAdd(length);
+        // Leave room for a zero length after the last record
+        if (offset < 0 || offset + length + 2 > mCapacity) {
+            mPosition.set(mCapacity);
+            mDropped.incrementAndGet();
+            return -1;
+        }
+        return offset;
+    }
+
+    private void commit(int offset, int length, byte type, int source) {
+        commit(offset, length, type, source, System.nanoTime());
+    }
+
+    private void commit(int offset, int length, byte type, int source, long time) {
+        mBuffer.put(offset + 2, type);
+        mBuffer.putInt(offset + 4, source);
+        mBuffer.putLong(offset + 8, time);
+        mBuffer.putShort(offset, (short) length);
+    }
+}
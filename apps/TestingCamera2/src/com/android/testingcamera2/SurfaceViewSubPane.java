@@ -41,6 +41,8 @@ public class SurfaceViewSubPane extends TargetSubPane implements SurfaceHolder.C
     private static final int NO_SIZE = -1;
     private final FixedAspectSurfaceView mFixedSurfaceView;
     private Surface mSurface;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
 
     private final Spinner mSizeSpinner;
     private Size[] mSizes;
@@ -146,6 +148,14 @@ public class SurfaceViewSubPane extends TargetSubPane implements SurfaceHolder.C
         return mSurface;
     }
 
+    @Override
+    public boolean isOutputSurfaceReady() {
+        if (mSurface == null || mCurrentSizeId == NO_SIZE) return false;
+        // Wait for the fixed size to take effect, so the camera sees the right buffer size
+        Size s = mSizes[mCurrentSizeId];
+        return mSurfaceWidth == s.getWidth() && mSurfaceHeight == s.getHeight();
+    }
+
     private final OnItemSelectedListener mSizeSpinnerListener = new OnItemSelectedListener() {
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
@@ -162,6 +172,9 @@ public class SurfaceViewSubPane extends TargetSubPane implements SurfaceHolder.C
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         mSurface = holder.getSurface();
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+        notifySurfaceReady();
     }
 
     @Override
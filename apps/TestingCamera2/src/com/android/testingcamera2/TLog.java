@@ -17,18 +17,59 @@
 package com.android.testingcamera2;
 
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import android.util.Log;
 
+/**
+ * Application log, written both to the system log and to the current {@link Logger}.
+ *
+ * <p>Logging calls only enqueue a record into a fixed-size, lock-free ring, so they can be
+ * made from camera callback threads without those threads contending on a monitor or
+ * waiting on logcat. Formatting and output happen on a single background drain thread,
+ * in the order records were enqueued. Format arguments are therefore read after the call
+ * returns, and should not be mutated by the caller afterwards. If the ring is full, the
+ * record is dropped and counted; the drain thread reports the number of dropped records
+ * when it catches up.</p>
+ */
 public class TLog {
 
-    private static Logger mLogger;
+    private static volatile Logger mLogger;
     private static final String TAG = "TestingCamera2";
 
-    synchronized static public void setLogger(Logger logger) {
+    private static final int RING_SIZE = 4096; // must be a power of two
+    private static final long DRAIN_IDLE_PARK_NS = 100 * 1000 * 1000; // 100 ms
+
+    private static final Record[] sRecords = new Record[RING_SIZE];
+    private static final AtomicLongArray sSequences = new AtomicLongArray(RING_SIZE);
+    private static final AtomicLong sTail = new AtomicLong();
+    private static final AtomicLong sDropped = new AtomicLong();
+    private static final Thread sDrainThread;
+    private static volatile boolean sDrainWaiting = false;
+
+    static {
+        for (int i = 0; i < RING_SIZE; i++) {
+            sRecords[i] = new Record();
+            sSequences.set(i, i);
+        }
+        sDrainThread = new Thread(new Drain(), "TLog");
+        sDrainThread.setDaemon(true);
+        sDrainThread.start();
+    }
+
+    static public void setLogger(Logger logger) {
         mLogger = logger;
     }
 
+    /**
+     * @return the total number of log records dropped because the ring was full
+     */
+    static public long getDroppedCount() {
+        return sDropped.get();
+    }
+
     /**
      * Log an informative message to the current log destination and to the system log.
      * Supports formatting in the style of String.format()
@@ -36,14 +77,8 @@ public class TLog {
      * @param text The text to print out, with optional formatting specifiers
      * @param args Arguments to fill in to the string
      */
-    synchronized static public void i(String text, Object... args) {
-        if (args.length > 0) {
-            text = String.format(Locale.US, text, args);
-        }
-        android.util.Log.i(TAG, text);
-        if (mLogger != null) {
-            mLogger.addToLog(text, false);
-        }
+    static public void i(String text, Object... args) {
+        enqueue(false, text, null, args);
     }
 
     /**
@@ -53,14 +88,8 @@ public class TLog {
      * @param text The text to print out, with optional formatting specifiers
      * @param args Arguments to fill in to the string
      */
-    synchronized static public void e(String text, Object... args) {
-        if (args.length > 0) {
-            text = String.format(Locale.US, text, args);
-        }
-        android.util.Log.e(TAG, text);
-        if (mLogger != null) {
-            mLogger.addToLog(text, true);
-        }
+    static public void e(String text, Object... args) {
+        enqueue(true, text, null, args);
     }
 
     /**
@@ -74,18 +103,138 @@ public class TLog {
      * @param e The throwable for the error
      * @param args Arguments to fill in to the string
      */
-    synchronized static public void e(String text, Throwable e, Object... args) {
-        text = String.format("%s\n%s", text, Log.getStackTraceString(e));
-        if (args.length > 0) {
-            text = String.format(Locale.US, text, args);
-        }
-        android.util.Log.e(TAG, text);
-        if (mLogger != null) {
-            mLogger.addToLog(text, true);
-        }
+    static public void e(String text, Throwable e, Object... args) {
+        enqueue(true, text, e, args);
     }
 
     public interface Logger {
         public void addToLog(String text, boolean error);
     }
-}
\ No newline at end of file
+
+    /**
+     * One slot in the ring. Fields are written by the producer that claimed the slot and
+     * published to the drain thread by the slot's sequence number.
+     */
+    private static class Record {
+        boolean mError;
+        String mText;
+        Throwable mThrowable;
+        Object[] mArgs;
+    }
+
+    /**
+     * Claim a slot with a CAS on the tail, fill it in, then publish it by advancing the
+     * slot's sequence number. A slot is free for position p when its sequence is p, and
+     * holds a record for p when its sequence is p + 1.
+     */
+    private static void enqueue(boolean error, String text, Throwable throwable,
+            Object[] args) {
+        long pos = sTail.get();
+        while (true) {
+            int index = (int) (pos & (RING_SIZE - 1));
+            long diff = sSequences.get(index) - pos;
+            if (diff == 0) {
+                if (sTail.compareAndSet(pos, pos + 1)) break;
+                pos = sTail.get();
+            } else if (diff < 0) {
+                // The drain thread hasn't freed this slot yet; the ring is full
+                sDropped.incrementAndGet();
+                return;
+            } else {
+                pos = sTail.get();
+            }
+        }
+        int index = (int) (pos & (RING_SIZE - 1));
+        Record record = sRecords[index];
+        record.mError = error;
+        record.mText = text;
+        record.mThrowable = throwable;
+        record.mArgs = args;
+        sSequences.set(index, pos + 1);
+        if (sDrainWaiting) {
+            LockSupport.unpark(sDrainThread);
+        }
+    }
+
+    private static class Drain implements Runnable {
+        private long mHead = 0;
+        private long mReportedDrops = 0;
+
+        @Override
+        public void run() {
+            while (true) {
+                reportDrops();
+                if (!drainOne()) {
+                    sDrainWaiting = true;
+                    // Recheck after advertising that we're waiting, so a record
+                    // published in between isn't missed
+                    if (!isEmpty()) {
+                        sDrainWaiting = false;
+                        continue;
+                    }
+                    LockSupport.parkNanos(DRAIN_IDLE_PARK_NS);
+                    sDrainWaiting = false;
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            int index = (int) (mHead & (RING_SIZE - 1));
+            return sSequences.get(index) != mHead + 1;
+        }
+
+        private boolean drainOne() {
+            int index = (int) (mHead & (RING_SIZE - 1));
+            if (sSequences.get(index) != mHead + 1) return false;
+            Record record = sRecords[index];
+            boolean error = record.mError;
+            String text = record.mText;
+            Throwable throwable = record.mThrowable;
+            Object[] args = record.mArgs;
+            record.mText = null;
+            record.mThrowable = null;
+            record.mArgs = null;
+            sSequences.set(index, mHead + RING_SIZE);
+            mHead++;
+
+            write(error, format(text, throwable, args));
+            return true;
+        }
+
+        private void reportDrops() {
+            long dropped = sDropped.get();
+            if (dropped != mReportedDrops) {
+                write(true, String.format(Locale.US, "Log overflow: %d messages dropped",
+                        dropped - mReportedDrops));
+                mReportedDrops = dropped;
+            }
+        }
+
+        private static String format(String text, Throwable throwable, Object[] args) {
+            if (throwable != null) {
+                text = String.format("%s\n%s", text, Log.getStackTraceString(throwable));
+            }
+            if (args != null && args.length > 0) {
+                try {
+                    text = String.format(Locale.US, text, args);
+                } catch (RuntimeException e) {
+                    // Don't let a bad format string take down the drain thread
+                    text = text + " (bad format: " + e + ")";
+                }
+            }
+            return text;
+        }
+
+        private static void write(boolean error, String text) {
+            if (error) {
+                android.util.Log.e(TAG, text);
+            } else {
+                android.util.Log.i(TAG, text);
+            }
+            Logger logger = mLogger;
+            if (logger != null) {
+                logger.addToLog(text, error);
+            }
+        }
+    }
+}
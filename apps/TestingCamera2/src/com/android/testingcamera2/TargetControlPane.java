@@ -45,6 +45,8 @@ public class TargetControlPane extends ControlPane {
 
     /** Attribute: Type of output (string), value must be one of OutputViewType.getXmlName() */
     private static final String OUTPUT_TYPE = "type";
+    /** Attribute: ID of the camera pane to aim the output at (integer) */
+    private static final String CAMERA_PANE_ID = "camera_pane";
 
     // End XML attributes
 
@@ -82,6 +84,9 @@ public class TargetControlPane extends ControlPane {
 
     private int mOrientation = 0;
 
+    /** Camera pane ID from the XML configuration, selected once that pane appears */
+    private int mPendingCameraPaneId = -1;
+
     /**
      * Constructor for tooling only
      */
@@ -116,10 +121,28 @@ public class TargetControlPane extends ControlPane {
             }
         }
 
+        String typeName = getAttributeString(configParser, OUTPUT_TYPE, null);
+        OutputViewType outputType = null;
+        if (typeName != null) {
+            for (OutputViewType type : OutputViewType.values()) {
+                if (OutputViewType.getXmlName(type).equals(typeName)) {
+                    outputType = type;
+                }
+            }
+            if (outputType == null) {
+                throw new XmlPullParserException("Unknown output type " + typeName);
+            }
+        }
+        mPendingCameraPaneId = getAttributeInt(configParser, CAMERA_PANE_ID, -1);
+
         configParser.next();
         configParser.require(XmlPullParser.END_TAG, XmlPullParser.NO_NAMESPACE, PANE_NAME);
 
         setUpUI(tc);
+
+        if (outputType != null) {
+            mOutputSpinner.setSelection(outputType.ordinal());
+        }
     }
 
     /**
@@ -139,6 +162,22 @@ public class TargetControlPane extends ControlPane {
         return isMyTarget ? mCurrentOutput.getOutputSurface() : null;
     }
 
+    /**
+     * Check whether this target is aimed at the given camera pane, but can't provide its
+     * Surface yet, for instance because its view hasn't been laid out.
+     *
+     * @param paneName ID of the camera pane to check
+     * @return true if the camera should wait for this target before configuring
+     */
+    public boolean isTargetPendingForCameraPane(String paneName) {
+        if (paneName == null) return false;
+
+        boolean isMyTarget =
+                paneName.equals(mCameraSpinner.getSelectedItem()) &&
+                mCameraConfigureToggle.isChecked();
+        return isMyTarget && (mCurrentOutput == null || !mCurrentOutput.isOutputSurfaceReady());
+    }
+
     public void notifyPaneEvent(ControlPane sourcePane, PaneTracker.PaneEvent event) {
         switch (event) {
         case NEW_CAMERA_SELECTED:
@@ -226,6 +265,14 @@ public class TargetControlPane extends ControlPane {
         }
     };
 
+    private final Runnable mSurfaceReadyListener = new Runnable() {
+        @Override
+        public void run() {
+            mPaneTracker.notifyOtherPanes(TargetControlPane.this,
+                    PaneTracker.PaneEvent.TARGET_SURFACE_READY);
+        }
+    };
+
     private OnItemSelectedListener mOutputSpinnerListener = new OnItemSelectedListener() {
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
@@ -236,6 +283,7 @@ public class TargetControlPane extends ControlPane {
                     OutputViewType.valueOf((String) mOutputSpinner.getSelectedItem());
             mCurrentOutput = createOutputView(outputType);
             if (mCurrentOutput != null) {
+                mCurrentOutput.setOnSurfaceReadyListener(mSurfaceReadyListener);
                 TargetControlPane.this.addView(mCurrentOutput);
                 mCurrentOutput.setUiOrientation(mOrientation);
                 updateSubPaneCamera();
@@ -261,6 +309,12 @@ public class TargetControlPane extends ControlPane {
                 newSelectionIndex = i;
             }
         }
+        for (int i = 0; i < cameraSpinnerItems.length; i++) {
+            if (mCameraPanes.get(i).getPaneId() == mPendingCameraPaneId) {
+                newSelectionIndex = i;
+                mPendingCameraPaneId = -1;
+            }
+        }
         mCameraSpinner.setAdapter(new ArrayAdapter<String>(getContext(), R.layout.spinner_item,
                 cameraSpinnerItems));
         mCameraSpinner.setSelection(newSelectionIndex);
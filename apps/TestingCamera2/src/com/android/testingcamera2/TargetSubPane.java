@@ -23,6 +23,8 @@ import android.widget.LinearLayout;
 
 public abstract class TargetSubPane extends LinearLayout {
 
+    private Runnable mSurfaceReadyListener;
+
     public TargetSubPane(Context context, AttributeSet attrs) {
         super(context, attrs);
         // TODO Auto-generated constructor stub
@@ -38,4 +40,25 @@ public abstract class TargetSubPane extends LinearLayout {
     public abstract void setUiOrientation(int orientation);
 
     public abstract Surface getOutputSurface();
+
+    /**
+     * Check whether getOutputSurface() can return a Surface of the selected size right now
+     */
+    public abstract boolean isOutputSurfaceReady();
+
+    /**
+     * Set a listener to run on the UI thread whenever the output surface becomes ready
+     */
+    public void setOnSurfaceReadyListener(Runnable listener) {
+        mSurfaceReadyListener = listener;
+    }
+
+    /**
+     * Subclasses call this whenever the output surface may have become ready
+     */
+    protected void notifySurfaceReady() {
+        if (mSurfaceReadyListener != null && isOutputSurfaceReady()) {
+            mSurfaceReadyListener.run();
+        }
+    }
 }
@@ -17,8 +17,12 @@
 package com.android.testingcamera2;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.res.Configuration;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
 import android.util.TypedValue;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -31,12 +35,29 @@ import android.widget.ScrollView;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class TestingCamera21 extends Activity implements CameraControlPane.InfoDisplayer {
 
+    // XML attributes of the configuration root
+
+    /** Attribute: Open and configure all cameras once the configuration is loaded (boolean) */
+    private static final String START_CAMERAS = "start_cameras";
+    /** Attribute: Log a camera throughput report at this interval, 0 for none (integer ms) */
+    private static final String THROUGHPUT_REPORT_MS = "throughput_report_ms";
+
+    // End XML attributes
+
+    /** Bundled configurations offered by Load config */
+    private static final int[] CONFIG_IDS = { R.xml.still_camera, R.xml.dual_camera };
+    private static final String[] CONFIG_NAMES = { "Still camera", "Dual camera streaming" };
+
+    private static final long DEFAULT_THROUGHPUT_REPORT_MS = 1000;
+
     private LinearLayout mMainList;
     private ScrollView mOutputViewScroller;
     private ScrollView mControlScroller;
@@ -52,6 +73,10 @@ public class TestingCamera21 extends Activity implements CameraControlPane.InfoD
     private CameraOps2 mCameraOps;
     private PaneTracker mPaneTracker;
 
+    private final Handler mHandler = new Handler();
+    private long mThroughputReportMs = 0;
+    private MenuItem mThroughputReportItem;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -142,6 +167,8 @@ public class TestingCamera21 extends Activity implements CameraControlPane.InfoD
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu to the action bar
         getMenuInflater().inflate(R.menu.testing_camera21, menu);
+        mThroughputReportItem = menu.findItem(R.id.action_throughput_report);
+        mThroughputReportItem.setChecked(mThroughputReportMs > 0);
         return true;
     }
 
@@ -173,6 +200,15 @@ public class TestingCamera21 extends Activity implements CameraControlPane.InfoD
         case R.id.action_save_config:
             TLog.e("Saving a configuration is not yet implemented");
             break;
+        case R.id.action_session_trace:
+            item.setChecked(toggleSessionTrace());
+            break;
+        case R.id.action_start_cameras:
+            startAllCameras();
+            break;
+        case R.id.action_throughput_report:
+            setThroughputReport(item.isChecked() ? 0 : DEFAULT_THROUGHPUT_REPORT_MS);
+            break;
         default:
             done = false;
             break;
@@ -184,6 +220,122 @@ public class TestingCamera21 extends Activity implements CameraControlPane.InfoD
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onDestroy() {
+        if (SessionTrace.isActive()) {
+            toggleSessionTrace();
+        }
+        setThroughputReport(0);
+        // Removing a camera pane closes its camera and quits its callback threads. Go through
+        // the lists in reverse, so cameras are closed before their targets go away.
+        for (int i = mPaneLayouts.size() - 1; i >= 0; i--) {
+            mPaneLayouts.get(i).removeAllPanes();
+        }
+        mCameraOps.close();
+        super.onDestroy();
+    }
+
+    /**
+     * Open and configure every camera pane's camera, so that several cameras stream at once.
+     * Each camera is configured once all the targets aimed at it have their surfaces ready.
+     * Request panes set to repeat_autostart start repeating once their camera is configured.
+     */
+    private void startAllCameras() {
+        List<CameraControlPane> cameras = mPaneTracker.getPanes(CameraControlPane.class);
+        if (cameras.size() == 0) {
+            TLog.e("No cameras to start");
+            return;
+        }
+        TLog.i("Starting %d cameras", cameras.size());
+        for (CameraControlPane camera : cameras) {
+            camera.startConcurrentRun();
+        }
+    }
+
+    /**
+     * Start or stop periodically logging every camera's frame rate, dropped frames and result
+     * latency, side by side.
+     *
+     * @param intervalMs report interval, or 0 to stop reporting
+     */
+    private void setThroughputReport(long intervalMs) {
+        mHandler.removeCallbacks(mThroughputReport);
+        mThroughputReportMs = intervalMs;
+        if (mThroughputReportItem != null) {
+            mThroughputReportItem.setChecked(intervalMs > 0);
+        }
+        if (intervalMs > 0) {
+            long now = System.nanoTime();
+            for (CameraControlPane camera : mPaneTracker.getPanes(CameraControlPane.class)) {
+                camera.getThroughputStats().nextInterval(now);
+            }
+            mHandler.postDelayed(mThroughputReport, intervalMs);
+        }
+    }
+
+    private final Runnable mThroughputReport = new Runnable() {
+        @Override
+        public void run() {
+            List<CameraControlPane> cameras = mPaneTracker.getPanes(CameraControlPane.class);
+            long now = System.nanoTime();
+            StringBuilder report = new StringBuilder(
+                    "Camera throughput:\n" +
+                    "pane       camera    fps  dropped (failed/skipped)  result p50/p95 ms\n");
+            for (CameraControlPane camera : cameras) {
+                CameraThroughputStats.Interval interval =
+                        camera.getThroughputStats().nextInterval(now);
+                CaptureLatencyTracker latency = camera.getLatencyTracker();
+                report.append(String.format(Locale.US,
+                        "%-10s %-6s %6.1f %8d (%d/%d) %17s/%s\n",
+                        camera.getPaneName(), camera.getCameraId(), interval.getFps(),
+                        interval.getDropped(), interval.failed, interval.skipped,
+                        formatMs(latency.getStartToResultPercentile(50)),
+                        formatMs(latency.getStartToResultPercentile(95))));
+            }
+            TLog.i(report.toString());
+            mHandler.postDelayed(this, mThroughputReportMs);
+        }
+    };
+
+    private static String formatMs(long ns) {
+        return (ns < 0) ? "-" : String.format(Locale.US, "%.1f", ns / 1e6);
+    }
+
+    /**
+     * Start or stop recording a session trace.
+     *
+     * @return true if a trace is now being recorded
+     */
+    private boolean toggleSessionTrace() {
+        if (SessionTrace.isActive()) {
+            long dropped = SessionTrace.stop();
+            if (dropped > 0) {
+                TLog.e("Session trace full, %d records dropped", dropped);
+            }
+            TLog.i("Session trace stopped");
+            return false;
+        }
+        if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            TLog.e("No external storage for session trace");
+            return false;
+        }
+        File traceDir = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DCIM), "TestingCamera2");
+        if (!traceDir.exists() && !traceDir.mkdirs()) {
+            TLog.e("Unable to create directory %s for session trace", traceDir);
+            return false;
+        }
+        File traceFile = new File(traceDir, "TRACE_" + System.currentTimeMillis() + ".bin");
+        try {
+            SessionTrace.start(traceFile, SessionTrace.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            TLog.e("Unable to start session trace in %s", e, traceFile);
+            return false;
+        }
+        TLog.i("Recording session trace to %s", traceFile);
+        return true;
+    }
+
     /**
      * Get shared camera controls
      */
@@ -199,12 +351,19 @@ public class TestingCamera21 extends Activity implements CameraControlPane.InfoD
     }
 
     /**
-     * Select which layout configuration to load, and then load it TODO:
-     * Implement selecting something besides the default
+     * Select which of the bundled layout configurations to load, and then load it
      */
     private void selectConfig() {
-        XmlPullParser config = getResources().getXml(R.xml.still_camera);
-        readConfig(config);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_load_config)
+                .setItems(CONFIG_NAMES, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        XmlPullParser config = getResources().getXml(CONFIG_IDS[which]);
+                        readConfig(config);
+                    }
+                })
+                .show();
     }
 
     /**
@@ -216,6 +375,8 @@ public class TestingCamera21 extends Activity implements CameraControlPane.InfoD
     private void readConfig(XmlPullParser configParser) {
         boolean inConfig = false;
         boolean gotConfig = false;
+        boolean startCameras = false;
+        int throughputReportMs = 0;
         try {
             while (configParser.getEventType() != XmlPullParser.END_DOCUMENT) {
                 int eventType = configParser.next();
@@ -224,6 +385,18 @@ public class TestingCamera21 extends Activity implements CameraControlPane.InfoD
                     if (!inConfig) {
                         configParser.require(XmlPullParser.START_TAG, XmlPullParser.NO_NAMESPACE,
                                 "testingcamera2_config");
+                        startCameras = Boolean.parseBoolean(
+                                configParser.getAttributeValue(null, START_CAMERAS));
+                        String reportMs =
+                                configParser.getAttributeValue(null, THROUGHPUT_REPORT_MS);
+                        if (reportMs != null) {
+                            try {
+                                throughputReportMs = Integer.parseInt(reportMs);
+                            } catch (NumberFormatException e) {
+                                throw new XmlPullParserException("Expected integer attribute",
+                                        configParser, e);
+                            }
+                        }
                         inConfig = true;
                     } else {
                         for (PaneLayout<?> paneLayout : mPaneLayouts) {
@@ -252,6 +425,11 @@ public class TestingCamera21 extends Activity implements CameraControlPane.InfoD
             for (PaneLayout<?> paneLayout : mPaneLayouts) {
                 paneLayout.activateConfig();
             }
+            setThroughputReport(throughputReportMs);
+            if (startCameras) {
+                // Each camera opens now, and configures once its targets' surfaces are ready
+                startAllCameras();
+            }
         } else {
             for (PaneLayout<?> paneLayout : mPaneLayouts) {
                 paneLayout.clearConfig();
@@ -128,11 +128,17 @@ public class TextureViewSubPane extends TargetSubPane implements TextureView.Sur
         return (mSurfaceTexture != null) ? new Surface(mSurfaceTexture) : null;
     }
 
+    @Override
+    public boolean isOutputSurfaceReady() {
+        return mSurfaceTexture != null && mCurrentSizeId != NO_SIZE;
+    }
+
     private final OnItemSelectedListener mSizeSpinnerListener = new OnItemSelectedListener() {
         @Override
         public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
             mCurrentSizeId = pos;
             updateSizes();
+            notifySurfaceReady();
         };
 
         @Override
@@ -146,6 +152,7 @@ public class TextureViewSubPane extends TargetSubPane implements TextureView.Sur
             final int height) {
         mSurfaceTexture = surface;
         updateSizes();
+        notifySurfaceReady();
     }
 
     @Override
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Writes the three planes of a YUV 4:2:0 image to a channel with as few copies and system
+ * calls as possible.
+ *
+ * <p>Planes whose rows are tightly packed are handed to the channel whole, and all such planes
+ * go out in a single gathering write. Padded rows are gathered in batches of views onto the
+ * source buffer, so no pixel data is copied. Only de-interleaving chroma for planar output
+ * touches individual bytes, and those rows are staged into one large buffer per write.</p>
+ *
+ * <p>YuvPlaneWriterBenchmark measures it against a per-row write loop. Not thread-safe.</p>
+ */
+public class YuvPlaneWriter {
+
+    /**
+     * Requested layout of the output file
+     */
+    public enum Layout {
+        /** Fully planar: Y plane, then U plane, then V plane (I420) */
+        PLANAR,
+        /**
+         * Y plane, then chroma left interleaved as the source stored it (NV12 or NV21).
+         * Falls back to PLANAR if the source chroma is not interleaved.
+         */
+        SEMI_PLANAR
+    }
+
+    /**
+     * Layout actually written by the last call to write()
+     */
+    public enum OutputFormat {
+        I420,
+        NV12,
+        NV21
+    }
+
+    /** Maximum number of buffers handed to a single gathering write */
+    private static final int GATHER_LIMIT = 64;
+    private static final int STAGING_SIZE = 256 * 1024;
+    /** Number of chroma rows checked when detecting the interleave order */
+    private static final int INTERLEAVE_CHECK_ROWS = 4;
+
+    private final Layout mLayout;
+    private OutputFormat mLastOutputFormat = OutputFormat.I420;
+
+    private final ByteBuffer[] mGather = new ByteBuffer[GATHER_LIMIT];
+    private int mGatherCount = 0;
+    private final ByteBuffer[] mRowViews = new ByteBuffer[GATHER_LIMIT];
+
+    private final byte[] mStaging = new byte[STAGING_SIZE];
+    private final ByteBuffer mStagingBuffer = ByteBuffer.wrap(mStaging);
+    private int mStagingCount = 0;
+    private byte[] mRow = new byte[0];
+
+    private long mWritten;
+
+    public YuvPlaneWriter(Layout layout) {
+        mLayout = layout;
+    }
+
+    public OutputFormat getLastOutputFormat() {
+        return mLastOutputFormat;
+    }
+
+    /**
+     * Write out one YUV 4:2:0 image. Plane buffers are read from position 0 to their limit;
+     * their positions and limits are modified.
+     *
+     * @param out the channel to write to
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param planes the Y, U and V planes
+     * @param rowStrides the row stride of each plane, in bytes
+     * @param pixelStrides the pixel stride of each plane, in bytes
+     * @return the number of bytes written
+     */
+    public long write(GatheringByteChannel out, int width, int height, ByteBuffer[] planes,
+            int[] rowStrides, int[] pixelStrides) throws IOException {
+        mWritten = 0;
+        mGatherCount = 0;
+        mStagingCount = 0;
+
+        int chromaW = width / 2;
+        int chromaH = height / 2;
+
+        queuePlane(out, planes[0], width, height, rowStrides[0]);
+
+        OutputFormat format = OutputFormat.I420;
+        if (mLayout == Layout.SEMI_PLANAR && pixelStrides[1] == 2 && pixelStrides[2] == 2 &&
+                rowStrides[1] == rowStrides[2]) {
+            if (isInterleaved(planes[1], planes[2], chromaW, chromaH, rowStrides[1])) {
+                format = OutputFormat.NV12;
+            } else if (isInterleaved(planes[2], planes[1], chromaW, chromaH, rowStrides[1])) {
+                format = OutputFormat.NV21;
+            }
+        }
+        mLastOutputFormat = format;
+
+        switch (format) {
+            case NV12:
+                queueInterleavedPlane(out, planes[1], planes[2], chromaW, chromaH, rowStrides[1]);
+                break;
+            case NV21:
+                queueInterleavedPlane(out, planes[2], planes[1], chromaW, chromaH, rowStrides[1]);
+                break;
+            case I420:
+                for (int plane = 1; plane < 3; plane++) {
+                    if (pixelStrides[plane] == 1) {
+                        queuePlane(out, planes[plane], chromaW, chromaH, rowStrides[plane]);
+                    } else {
+                        flushGather(out);
+                        writePackedPlane(out, planes[plane], chromaW, chromaH,
+                                rowStrides[plane], pixelStrides[plane]);
+                    }
+                }
+                break;
+        }
+        flushGather(out);
+        return mWritten;
+    }
+
+    /**
+     * Queue a plane with a pixel stride of one, as a single view if its rows are contiguous,
+     * and otherwise as one view per row.
+     */
+    private void queuePlane(GatheringByteChannel out, ByteBuffer plane, int w, int h,
+            int rowStride) throws IOException {
+        if (rowStride == w) {
+            ByteBuffer view = plane.duplicate();
+            view.limit(w * h);
+            view.position(0);
+            queue(out, view);
+            return;
+        }
+        flushGather(out);
+        fillRowViews(plane);
+        for (int y = 0, rowStart = 0; y < h; y++, rowStart += rowStride) {
+            ByteBuffer view = mRowViews[mGatherCount];
+            view.limit(rowStart + w);
+            view.position(rowStart);
+            queue(out, view);
+        }
+        flushGather(out);
+    }
+
+    /**
+     * Queue an interleaved chroma plane as-is. The source's last row usually stops one byte
+     * short, since the final sample belongs to the other plane; that byte is taken from
+     * the other plane instead.
+     */
+    private void queueInterleavedPlane(GatheringByteChannel out, ByteBuffer first,
+            ByteBuffer second, int chromaW, int chromaH, int rowStride) throws IOException {
+        int rowBytes = chromaW * 2;
+        int available = first.limit();
+        int lastRowStart = (chromaH - 1) * rowStride;
+        boolean shortLastRow = (available - lastRowStart) < rowBytes;
+        if (rowStride == rowBytes) {
+            ByteBuffer view = first.duplicate();
+            view.limit(shortLastRow ? available : rowBytes * chromaH);
+            view.position(0);
+            queue(out, view);
+        } else {
+            flushGather(out);
+            fillRowViews(first);
+            for (int y = 0, rowStart = 0; y < chromaH; y++, rowStart += rowStride) {
+                ByteBuffer view = mRowViews[mGatherCount];
+                view.limit(Math.min(rowStart + rowBytes, available));
+                view.position(rowStart);
+                queue(out, view);
+            }
+            flushGather(out);
+        }
+        if (shortLastRow) {
+            ByteBuffer last = second.duplicate();
+            int lastIdx = lastRowStart + rowBytes - 2;
+            last.limit(lastIdx + 1);
+            last.position(lastIdx);
+            queue(out, last);
+        }
+    }
+
+    /**
+     * De-interleave a plane with a pixel stride above one, staging packed rows so they go
+     * out in large writes.
+     */
+    private void writePackedPlane(GatheringByteChannel out, ByteBuffer plane, int w, int h,
+            int rowStride, int pixelStride) throws IOException {
+        int rowLength = (w - 1) * pixelStride + 1;
+        if (mRow.length < rowLength) {
+            mRow = new byte[rowLength];
+        }
+        final byte[] row = mRow;
+        final byte[] staging = mStaging;
+        ByteBuffer src = plane.duplicate();
+        for (int y = 0, rowStart = 0; y < h; y++, rowStart += rowStride) {
+            if (mStagingCount + w > staging.length) {
+                flushStaging(out);
+            }
+            src.limit(rowStart + rowLength);
+            src.position(rowStart);
+            src.get(row, 0, rowLength);
+            int dst = mStagingCount;
+            for (int i = 0; i < rowLength; i += pixelStride) {
+                staging[dst++] = row[i];
+            }
+            mStagingCount = dst;
+        }
+        flushStaging(out);
+    }
+
+    /**
+     * Check whether the second plane's samples sit in the odd bytes of the first plane's rows,
+     * sampling a few rows spread across the plane.
+     */
+    private static boolean isInterleaved(ByteBuffer first, ByteBuffer second, int chromaW,
+            int chromaH, int rowStride) {
+        int rowsToCheck = Math.min(INTERLEAVE_CHECK_ROWS, chromaH);
+        for (int r = 0; r < rowsToCheck; r++) {
+            int y = (rowsToCheck == 1) ? 0 : r * (chromaH - 1) / (rowsToCheck - 1);
+            int rowStart = y * rowStride;
+            // The last sample of the last row may be missing from the first plane
+            int samples = (y == chromaH - 1) ? chromaW - 1 : chromaW;
+            for (int x = 0; x < samples; x++) {
+                int idx = rowStart + 2 * x;
+                if (first.get(idx + 1) != second.get(idx)) return false;
+            }
+        }
+        return true;
+    }
+
+    private void fillRowViews(ByteBuffer plane) {
+        for (int i = 0; i < mRowViews.length; i++) {
+            mRowViews[i] = plane.duplicate();
+        }
+    }
+
+    private void queue(GatheringByteChannel out, ByteBuffer view) throws IOException {
+        mGather[mGatherCount++] = view;
+        if (mGatherCount == mGather.length) {
+            flushGather(out);
+        }
+    }
+
+    private void flushGather(GatheringByteChannel out) throws IOException {
+        if (mGatherCount == 0) return;
+        long remaining = 0;
+        for (int i = 0; i < mGatherCount; i++) {
+            remaining += mGather[i].remaining();
+        }
+        mWritten += remaining;
+        int first = 0;
+        while (remaining > 0) {
+            remaining -= out.write(mGather, first, mGatherCount - first);
+            while (first < mGatherCount && !mGather[first].hasRemaining()) {
+                first++;
+            }
+        }
+        for (int i = 0; i < mGatherCount; i++) {
+            mGather[i] = null;
+        }
+        mGatherCount = 0;
+    }
+
+    private void flushStaging(GatheringByteChannel out) throws IOException {
+        if (mStagingCount == 0) return;
+        mStagingBuffer.clear();
+        mStagingBuffer.limit(mStagingCount);
+        mWritten += mStagingCount;
+        while (mStagingBuffer.hasRemaining()) {
+            out.write(mStagingBuffer);
+        }
+        mStagingCount = 0;
+    }
+}
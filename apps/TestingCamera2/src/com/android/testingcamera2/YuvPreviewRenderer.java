@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+/**
+ * Downsamples YUV_420_888 images into a reused ARGB bitmap for display.
+ *
+ * <p>The destination bitmaps, pixel array and row scratch buffers are only reallocated when
+ * the output size changes, so steady-state rendering allocates nothing. Plane row and pixel
+ * strides are honored, so both planar and semi-planar chroma layouts render correctly.</p>
+ *
+ * <p>Two destination bitmaps are used in alternation, so one can stay on screen while the next
+ * frame is rendered on another thread. Not thread-safe; a returned bitmap is overwritten by
+ * the second call to render() after the one that returned it.</p>
+ */
+public class YuvPreviewRenderer {
+
+    private volatile boolean mColor = false;
+
+    private int mOutWidth = 0;
+    private int mOutHeight = 0;
+    private int[] mPixels;
+    private final Bitmap[] mBitmaps = new Bitmap[2];
+    private int mBitmapIdx = 0;
+
+    private byte[] mYRow = new byte[0];
+    private byte[] mURow = new byte[0];
+    private byte[] mVRow = new byte[0];
+
+    /**
+     * Select whether to render full color from the chroma planes, or just the luma plane
+     * as grayscale.
+     */
+    public void setColor(boolean color) {
+        mColor = color;
+    }
+
+    public boolean isColor() {
+        return mColor;
+    }
+
+    /**
+     * Render a YUV_420_888 image, downsampled by an integer factor in each dimension.
+     *
+     * @param img the image to render
+     * @param scaleFactor the downsampling factor; must be even and at least 2
+     * @return the pooled bitmap holding the rendered image
+     */
+    public Bitmap render(Image img, int scaleFactor) {
+        if (img.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException(
+                    String.format("Unexpected Image format: %d, expected ImageFormat.YUV_420_888",
+                            img.getFormat()));
+        }
+        if (scaleFactor < 2 || (scaleFactor & 1) != 0) {
+            throw new IllegalArgumentException("Scale factor must be even, was " + scaleFactor);
+        }
+        int w = img.getWidth() / scaleFactor;
+        int h = img.getHeight() / scaleFactor;
+        ensureOutput(w, h);
+
+        Image.Plane[] planes = img.getPlanes();
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        int yStep = scaleFactor * yPixelStride;
+        int yRowLength = (w - 1) * yStep + 1;
+        mYRow = ensureRow(mYRow, yRowLength);
+
+        if (!mColor) {
+            for (int y = 0, j = 0; y < h; y++) {
+                readRow(yBuffer, y * scaleFactor * yRowStride, mYRow, yRowLength);
+                final byte[] yRow = mYRow;
+                for (int x = 0, i = 0; x < w; x++, i += yStep, j++) {
+                    int yval = yRow[i] & 0xFF;
+                    mPixels[j] = 0xFF000000 | (yval << 16) | (yval << 8) | yval;
+                }
+            }
+        } else {
+            ByteBuffer uBuffer = planes[1].getBuffer();
+            ByteBuffer vBuffer = planes[2].getBuffer();
+            int cRowStride = planes[1].getRowStride();
+            int cPixelStride = planes[1].getPixelStride();
+            // Chroma is subsampled by 2 in each direction
+            int cStep = (scaleFactor / 2) * cPixelStride;
+            int cRowLength = (w - 1) * cStep + 1;
+            mURow = ensureRow(mURow, cRowLength);
+            mVRow = ensureRow(mVRow, cRowLength);
+
+            for (int y = 0, j = 0; y < h; y++) {
+                readRow(yBuffer, y * scaleFactor * yRowStride, mYRow, yRowLength);
+                int cRowStart = (y * scaleFactor / 2) * cRowStride;
+                readRow(uBuffer, cRowStart, mURow, cRowLength);
+                readRow(vBuffer, cRowStart, mVRow, cRowLength);
+                final byte[] yRow = mYRow;
+                final byte[] uRow = mURow;
+                final byte[] vRow = mVRow;
+                for (int x = 0, i = 0, c = 0; x < w; x++, i += yStep, c += cStep, j++) {
+                    mPixels[j] = yuvToArgb(yRow[i] & 0xFF, (uRow[c] & 0xFF) - 128,
+                            (vRow[c] & 0xFF) - 128);
+                }
+            }
+        }
+
+        mBitmapIdx ^= 1;
+        Bitmap bitmap = mBitmaps[mBitmapIdx];
+        bitmap.setPixels(mPixels, 0, w, 0, 0, w, h);
+        return bitmap;
+    }
+
+    /**
+     * Full-range BT.601 YCbCr to ARGB, in 8-bit fixed point
+     */
+    private static int yuvToArgb(int y, int u, int v) {
+        int r = y + ((359 * v) >> 8);
+        int g = y - ((88 * u + 183 * v) >> 8);
+        int b = y + ((454 * u) >> 8);
+        r = (r < 0) ? 0 : (r > 255) ? 255 : r;
+        g = (g < 0) ? 0 : (g > 255) ? 255 : g;
+        b = (b < 0) ? 0 : (b > 255) ? 255 : b;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private void ensureOutput(int w, int h) {
+        if (w == mOutWidth && h == mOutHeight && mPixels != null) return;
+        // The old bitmaps may still be on screen, so leave them to the GC instead of recycling
+        mOutWidth = w;
+        mOutHeight = h;
+        mPixels = new int[w * h];
+        for (int i = 0; i < mBitmaps.length; i++) {
+            mBitmaps[i] = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    private static byte[] ensureRow(byte[] row, int length) {
+        return (row.length >= length) ? row : new byte[length];
+    }
+
+    /**
+     * Bulk-read part of one row of a plane. The last row of a plane may be shorter than the
+     * row stride, so only the bytes actually sampled are read.
+     */
+    private static void readRow(ByteBuffer plane, int rowStart, byte[] row, int length) {
+        plane.limit(plane.capacity());
+        plane.position(rowStart);
+        plane.get(row, 0, length);
+    }
+}
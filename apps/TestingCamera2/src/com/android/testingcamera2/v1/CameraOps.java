@@ -40,7 +40,6 @@ import android.view.SurfaceHolder;
 import com.android.ex.camera2.blocking.BlockingCameraManager;
 import com.android.ex.camera2.blocking.BlockingCameraManager.BlockingOpenException;
 import com.android.ex.camera2.blocking.BlockingStateCallback;
-import com.android.ex.camera2.blocking.BlockingSessionCallback;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -68,7 +67,8 @@ public class CameraOps {
             new BlockingStateCallback();
 
     private CameraDevice mCamera;
-    private CameraCaptureSession mSession;
+    // Creates sessions and runs requests on them without blocking
+    private final CameraSessionManager mSessionManager;
 
     private ImageReader mCaptureReader;
     private CameraCharacteristics mCameraCharacteristics;
@@ -78,6 +78,8 @@ public class CameraOps {
 
     private CaptureRequest.Builder mPreviewRequestBuilder;
     private CaptureRequest.Builder mRecordingRequestBuilder;
+    // Frames of the current recording request, set on the thread controlling recording
+    private RecordingClip mRecordingClip;
     List<Surface> mOutputSurfaces = new ArrayList<Surface>(2);
     private Surface mPreviewSurface;
     // How many JPEG buffers do we want to hold on to at once
@@ -119,6 +121,7 @@ public class CameraOps {
         mOpsThread = new HandlerThread("CameraOpsThread");
         mOpsThread.start();
         mOpsHandler = new Handler(mOpsThread.getLooper());
+        mSessionManager = new CameraSessionManager(mOpsHandler);
 
         mRecordingStream = new CameraRecordingStream();
         mStatus = STATUS_OK;
@@ -162,6 +165,16 @@ public class CameraOps {
 
         if (mCamera == null) return;
 
+        // A warm recording encoder's surface would outlive the session it's part of
+        if (mRecordingStream.isKeepingEncoderWarm() && !mRecordingStream.isRecording()) {
+            mRecordingStream.onConfiguringOutputs(mOutputSurfaces, /* detach */true);
+            if (mRecordingRequestBuilder != null) {
+                mRecordingStream.onConfiguringRequest(mRecordingRequestBuilder, /* detach */true);
+            }
+            mRecordingStream.release();
+        }
+
+        mSessionManager.close();
         try {
             mCamera.close();
         } catch (Exception e) {
@@ -169,7 +182,6 @@ public class CameraOps {
         }
 
         mCamera = null;
-        mSession = null;
     }
 
     private void minimalOpenCamera() throws ApiFailureException {
@@ -184,6 +196,7 @@ public class CameraOps {
                 }
                 mCamera = mBlockingCameraManager.openCamera(devices[0],
                         mDeviceListener, mOpsHandler);
+                mSessionManager.setDevice(mCamera);
                 mCameraCharacteristics = mCameraManager.getCameraCharacteristics(mCamera.getId());
                 characteristics = mCameraCharacteristics;
             } catch (CameraAccessException e) {
@@ -206,10 +219,32 @@ public class CameraOps {
         mStatus = STATUS_OK;
     }
 
-    private void configureOutputs(List<Surface> outputs) throws CameraAccessException {
-        BlockingSessionCallback sessionListener = new BlockingSessionCallback();
-        mCamera.createCaptureSession(outputs, sessionListener, mOpsHandler);
-        mSession = sessionListener.waitAndGetSession(IDLE_WAIT_MS);
+    /**
+     * Switch to a session with the given outputs, without waiting for it; a no-op
+     * if those are the outputs already in use. Requests submitted afterwards go
+     * to that session once it's ready.
+     */
+    private void configureOutputs(List<Surface> outputs) {
+        mSessionManager.configure(outputs);
+    }
+
+    private void setRepeatingRequest(final CaptureRequest request) {
+        mSessionManager.submit(new CameraSessionManager.SessionOp() {
+            @Override
+            public void run(CameraCaptureSession session) throws CameraAccessException {
+                session.setRepeatingRequest(request, /*listener*/null, /*handler*/null);
+            }
+        });
+    }
+
+    private void setRepeatingRequest(final CaptureRequest request,
+            final CameraCaptureSession.CaptureCallback listener) {
+        mSessionManager.submit(new CameraSessionManager.SessionOp() {
+            @Override
+            public void run(CameraCaptureSession session) throws CameraAccessException {
+                session.setRepeatingRequest(request, listener, mOpsHandler);
+            }
+        });
     }
 
     /**
@@ -253,28 +288,29 @@ public class CameraOps {
 
         updateCaptureRequest(mPreviewRequestBuilder, controls);
 
-        try {
-            // Insert a one-time request if any triggers were set into the request
-            if (hasTriggers(mPreviewRequestBuilder)) {
-                mSession.capture(mPreviewRequestBuilder.build(), /*listener*/null, /*handler*/null);
-                removeTriggers(mPreviewRequestBuilder);
-
-                if (VERBOSE) {
-                    Log.v(TAG, "updatePreview - submitted extra one-shot capture with triggers");
-                }
-            } else {
-                if (VERBOSE) {
-                    Log.v(TAG, "updatePreview - no triggers, regular repeating request");
+        // Insert a one-time request if any triggers were set into the request
+        if (hasTriggers(mPreviewRequestBuilder)) {
+            final CaptureRequest triggerRequest = mPreviewRequestBuilder.build();
+            mSessionManager.submit(new CameraSessionManager.SessionOp() {
+                @Override
+                public void run(CameraCaptureSession session) throws CameraAccessException {
+                    session.capture(triggerRequest, /*listener*/null, /*handler*/null);
                 }
-            }
+            });
+            removeTriggers(mPreviewRequestBuilder);
 
-            // TODO: add capture result listener
-            mSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-                    /*listener*/null, /*handler*/null);
-        } catch (CameraAccessException e) {
-            Log.e(TAG, "Update camera preview failed");
+            if (VERBOSE) {
+                Log.v(TAG, "updatePreview - submitted extra one-shot capture with triggers");
+            }
+        } else {
+            if (VERBOSE) {
+                Log.v(TAG, "updatePreview - no triggers, regular repeating request");
+            }
         }
 
+        // TODO: add capture result listener
+        setRepeatingRequest(mPreviewRequestBuilder.build());
+
         if (VERBOSE) {
             Log.v(TAG, "updatePreview - end");
         }
@@ -348,13 +384,13 @@ public class CameraOps {
 
             mPreviewRequestBuilder.addTarget(mPreviewSurface);
 
-            mSession.setRepeatingRequest(mPreviewRequestBuilder.build(), null, null);
+            setRepeatingRequest(mPreviewRequestBuilder.build());
         } catch (CameraAccessException e) {
             throw new ApiFailureException("Error setting up minimal preview", e);
         }
     }
 
-    public void minimalJpegCapture(final CaptureCallback listener, CaptureResultListener l,
+    public void minimalJpegCapture(final CaptureCallback listener, final CaptureResultListener l,
             Handler h, CameraControls cameraControl) throws ApiFailureException {
         minimalOpenCamera();
 
@@ -413,13 +449,36 @@ public class CameraOps {
             };
             mCaptureReader.setOnImageAvailableListener(readerListener, h);
 
-            mSession.capture(captureBuilder.build(), l, mOpsHandler);
+            final CaptureRequest captureRequest = captureBuilder.build();
+            mSessionManager.submit(new CameraSessionManager.SessionOp() {
+                @Override
+                public void run(CameraCaptureSession session) throws CameraAccessException {
+                    session.capture(captureRequest, l, mOpsHandler);
+                }
+            });
         } catch (CameraAccessException e) {
             throw new ApiFailureException("Error in minimal JPEG capture", e);
         }
     }
 
-    public void startRecording(Context applicationContext, boolean useMediaCodec, int outputFormat)
+    /**
+     * @return a summary of the encoder statistics of the current MediaCodec
+     * recording, or the last one; null if there hasn't been one.
+     */
+    public String getRecordingStats() {
+        return mRecordingStream.getStatsSummary();
+    }
+
+    /**
+     * Split subsequent MediaCodec recordings into a ring of segment files; see
+     * {@link CameraRecordingStream#setSegmentLimits}. Zero limits turn it off.
+     */
+    public void setRecordingSegments(int seconds, int megabytes, int maxSegments) {
+        mRecordingStream.setSegmentLimits(seconds, megabytes, maxSegments);
+    }
+
+    public void startRecording(Context applicationContext, boolean useMediaCodec,
+            boolean asyncEncoding, boolean keepEncoderWarm, int outputFormat)
             throws ApiFailureException {
         minimalOpenCamera();
         Size recordingSize = getRecordingSize();
@@ -429,52 +488,97 @@ public class CameraOps {
                 mRecordingRequestBuilder =
                         mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
             }
-            // Setup output stream first
+            // Setup output stream first. A warm encoder's surface is added back unless
+            // the stream has to be reconfigured, which invalidates it.
+            if (mRecordingStream.isKeepingEncoderWarm()) {
+                mRecordingStream.onConfiguringOutputs(mOutputSurfaces, /* detach */true);
+            }
             mRecordingStream.configure(
                     applicationContext, recordingSize, useMediaCodec, mEncodingBitRate,
-                    orientationHint, outputFormat);
+                    orientationHint, outputFormat, asyncEncoding, keepEncoderWarm);
             mRecordingStream.onConfiguringOutputs(mOutputSurfaces, /* detach */false);
             mRecordingStream.onConfiguringRequest(mRecordingRequestBuilder, /* detach */false);
 
             // TODO: For preview, create preview stream class, and do the same thing like recording.
-            mOutputSurfaces.add(mPreviewSurface);
+            if (!mOutputSurfaces.contains(mPreviewSurface)) {
+                mOutputSurfaces.add(mPreviewSurface);
+            }
             mRecordingRequestBuilder.addTarget(mPreviewSurface);
 
-            // Start camera streaming and recording.
+            // Start camera streaming and recording. A warm encoder's surface may
+            // still be part of the current session, which is then kept.
             configureOutputs(mOutputSurfaces);
-            mSession.setRepeatingRequest(mRecordingRequestBuilder.build(), null, null);
             mRecordingStream.start();
+            mRecordingClip = new RecordingClip();
+            setRepeatingRequest(mRecordingRequestBuilder.build(), mRecordingClip);
         } catch (CameraAccessException e) {
             throw new ApiFailureException("Error start recording", e);
         }
     }
 
-    public void stopRecording(Context ctx) throws ApiFailureException {
-        try {
-            /**
-             * <p>
-             * Only stop camera recording stream.
-             * </p>
-             * <p>
-             * FIXME: There is a race condition to be fixed in CameraDevice.
-             * Basically, when stream closes, encoder and its surface is
-             * released, while it still takes some time for camera to finish the
-             * output to that surface. Then it cause camera in bad state.
-             * </p>
-             */
-            mRecordingStream.onConfiguringRequest(mRecordingRequestBuilder, /* detach */true);
-            mRecordingStream.onConfiguringOutputs(mOutputSurfaces, /* detach */true);
-
-            // Remove recording surface before calling RecordingStream.stop,
-            // since that invalidates the surface.
-            configureOutputs(mOutputSurfaces);
-
-            mRecordingStream.stop(ctx);
-
-            mSession.setRepeatingRequest(mRecordingRequestBuilder.build(), null, null);
-        } catch (CameraAccessException e) {
-            throw new ApiFailureException("Error stop recording", e);
+    public void stopRecording(final Context ctx) throws ApiFailureException {
+        /**
+         * <p>
+         * Only stop camera recording stream.
+         * </p>
+         * <p>
+         * FIXME: There is a race condition to be fixed in CameraDevice.
+         * Basically, when stream closes, encoder and its surface is
+         * released, while it still takes some time for camera to finish the
+         * output to that surface. Then it cause camera in bad state.
+         * </p>
+         */
+        mRecordingStream.onConfiguringRequest(mRecordingRequestBuilder, /* detach */true);
+        final RecordingClip clip = mRecordingClip;
+        mRecordingClip = null;
+        if (mRecordingStream.isKeepingEncoderWarm()) {
+            // The encoder and its surface outlive the clip, so only the request changes.
+            // The clip ends with the recording request's last frame, on the ops thread.
+            final CaptureRequest request = mRecordingRequestBuilder.build();
+            mSessionManager.submit(new CameraSessionManager.SessionOp() {
+                @Override
+                public void run(CameraCaptureSession session) throws CameraAccessException {
+                    if (clip != null) {
+                        clip.stopAfterLastFrame(ctx);
+                    }
+                    session.setRepeatingRequest(request, /*listener*/null, /*handler*/null);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    // Without a session the recording request's sequence ends all the same
+                    if (clip != null) {
+                        clip.stopAfterLastFrame(ctx);
+                    }
+                }
+            });
+            return;
         }
+        mRecordingStream.onConfiguringOutputs(mOutputSurfaces, /* detach */true);
+
+        // Remove recording surface before calling RecordingStream.stop,
+        // since that invalidates the surface. Creating the preview-only
+        // session closes the recording one, so the stream is stopped on the
+        // ops thread once the new session is ready, or has failed to
+        // configure; either way the camera is done with the surface.
+        configureOutputs(mOutputSurfaces);
+        final CaptureRequest request = mRecordingRequestBuilder.build();
+        final Runnable stopStream = new Runnable() {
+            @Override
+            public void run() {
+                mRecordingStream.stop(ctx, /*lastFrameTimestampNs*/-1);
+            }
+        };
+        mSessionManager.submit(new CameraSessionManager.SessionOp() {
+            @Override
+            public void run(CameraCaptureSession session) throws CameraAccessException {
+                try {
+                    session.setRepeatingRequest(request, /*listener*/null, /*handler*/null);
+                } finally {
+                    stopStream.run();
+                }
+            }
+        }, stopStream);
     }
 
     /**
@@ -482,11 +586,12 @@ public class CameraOps {
      */
     public void flush() throws ApiFailureException {
         minimalOpenCamera();
-        try {
-            mSession.abortCaptures();
-        } catch (CameraAccessException e) {
-            throw new ApiFailureException("Error flushing", e);
-        }
+        mSessionManager.submit(new CameraSessionManager.SessionOp() {
+            @Override
+            public void run(CameraCaptureSession session) throws CameraAccessException {
+                session.abortCaptures();
+            }
+        });
     }
 
     private int getOrientationHint() {
@@ -603,6 +708,54 @@ public class CameraOps {
         }
     }
 
+    /**
+     * Follows the frames of one recording request, so that a warm clip can end
+     * with the last of them once the request has been replaced. Callbacks and
+     * the stop request are all handled on the camera ops thread.
+     */
+    private class RecordingClip extends CameraCaptureSession.CaptureCallback {
+        private long mLastTimestamp = -1;
+        private boolean mSequenceDone = false;
+        private Context mStopContext;
+        private boolean mStopped = false;
+
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                long timestamp, long frameNumber) {
+            mLastTimestamp = timestamp;
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(CameraCaptureSession session, int sequenceId,
+                long frameNumber) {
+            mSequenceDone = true;
+            maybeStop();
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CameraCaptureSession session, int sequenceId) {
+            mSequenceDone = true;
+            maybeStop();
+        }
+
+        /**
+         * Stop the recording stream once the request's last frame is known.
+         */
+        void stopAfterLastFrame(Context ctx) {
+            mStopContext = ctx;
+            maybeStop();
+        }
+
+        private void maybeStop() {
+            if (mStopped || mStopContext == null || !mSequenceDone) return;
+            mStopped = true;
+            if (VERBOSE) {
+                Log.v(TAG, "Recording request done, last frame at " + mLastTimestamp);
+            }
+            mRecordingStream.stop(mStopContext, mLastTimestamp);
+        }
+    }
+
     public interface CaptureCallback {
         void onCaptureAvailable(Image capture);
     }
@@ -25,7 +25,10 @@ import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.media.MediaRecorder;
 import android.media.MediaScannerConnection;
+import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
@@ -36,11 +39,28 @@ import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Camera video recording class. It takes frames produced by camera and encoded
  * with either MediaCodec or MediaRecorder. MediaRecorder path is not
  * implemented yet.
+ * <p>
+ * MediaCodec output is drained either by a polling thread, or asynchronously
+ * through MediaCodec.Callback on a dedicated encoder thread, with muxer writes
+ * handed off to a {@link MuxerWriter}.
+ * </p>
+ * <p>
+ * In asynchronous mode the encoder can also be kept warm: stopping a clip then
+ * only finishes its output file, and the encoder and its input surface stay
+ * configured for the next clip, which goes into a muxer created in advance.
+ * </p>
+ * <p>
+ * Asynchronous mode can also split each clip into a ring of segment files, see
+ * {@link RecordingSegmenter}.
+ * </p>
  */
 public class CameraRecordingStream {
     private static final String TAG = "CameraRecordingStream";
@@ -51,6 +71,11 @@ public class CameraRecordingStream {
     private static final int FRAME_RATE = 30; // 30fps
     private static final int IFRAME_INTERVAL = 1; // 1 seconds between I-frames
     private static final int TIMEOUT_USEC = 10000; // Timeout value 10ms.
+    private static final long EOS_TIMEOUT_MS = 2000;
+    private static final long ENCODER_SETUP_TIMEOUT_MS = 2000;
+    private static final long REPORT_INTERVAL_NS = 1000000000L; // 1 second
+    // How long a warm clip waits for the encoder to output its last frame
+    private static final long WARM_DRAIN_TIMEOUT_MS = 2000;
     // Sync object to protect stream state access from multiple threads.
     private final Object mStateLock = new Object();
 
@@ -70,6 +95,48 @@ public class CameraRecordingStream {
     private MediaRecorder mMediaRecorder;
     private String mOutputFile;
 
+    // Asynchronous MediaCodec mode
+    private boolean mAsyncEncoding = false;
+    private HandlerThread mEncoderThread;
+    // Read on the encoder callback thread
+    private volatile MuxerWriter mMuxerWriter;
+    private CountDownLatch mEndOfStream;
+    private boolean mKeepEncoderWarm = false;
+    private boolean mMuxerInWriter = false;
+    // Whether encoder output belongs to the current clip; set while recording
+    private volatile boolean mAcceptingOutput = false;
+    private volatile boolean mAwaitingSyncFrame = false;
+    // Presentation time of the warm clip's last frame once it's known, and of the
+    // latest encoder output; the clip ends when the latter reaches the former.
+    private volatile long mClipEndUs = Long.MAX_VALUE;
+    private volatile long mLastOutputUs = Long.MIN_VALUE;
+    private volatile CountDownLatch mClipEnded;
+
+    // Segmented recording; limits set with setSegmentLimits take effect at configure
+    private int mPendingSegmentSeconds = 0;
+    private int mPendingSegmentMegabytes = 0;
+    private int mPendingMaxSegments = 0;
+    private int mSegmentSeconds = 0;
+    private int mSegmentMegabytes = 0;
+    private int mMaxSegments = 0;
+    private volatile RecordingSegmenter mSegmenter;
+
+    // Start-to-first-frame latency of the current clip
+    private long mClipRequestedNs;
+    private volatile boolean mAwaitingFirstFrame = false;
+
+    // Per-second output report, only touched on the thread draining the encoder
+    private long mReportStartNs;
+    private int mReportFrames;
+    private long mReportBytes;
+    private long mReportLatencySumUs;
+    private long mReportMaxLatencyUs;
+
+    // Per-frame statistics of the current or last MediaCodec clip
+    private volatile EncoderStats mStats;
+    // Writes the current clip's per-frame rows out as it goes
+    private volatile EncoderStatsWriter mStatsWriter;
+
     public CameraRecordingStream() {
     }
 
@@ -83,49 +150,72 @@ public class CameraRecordingStream {
      * @param bitRate Bit rate the encoder takes.
      * @param orientation Recording orientation in degree (0,90,180,270)
      * @param outputFormat Output file format as listed in {@link MediaMuxer.OutputFormat}
+     * @param asyncEncoding Drain the MediaCodec encoder through callbacks instead
+     * of a polling thread. Ignored for MediaRecorder.
+     * @param keepEncoderWarm Keep the encoder and its surface configured after
+     * stop, for the next clip. Only supported with asyncEncoding.
      */
     public synchronized void configure(
             Context ctx, Size size, boolean useMediaCodec, int bitRate, int orientation,
-            int outputFormat) {
+            int outputFormat, boolean asyncEncoding, boolean keepEncoderWarm) {
         if (getStreamState() == STREAM_STATE_RECORDING) {
             throw new IllegalStateException(
                     "Stream can only be configured when stream is in IDLE state");
         }
+        mClipRequestedNs = System.nanoTime();
+
+        if (keepEncoderWarm && !(useMediaCodec && asyncEncoding)) {
+            Log.w(TAG, "Keeping the encoder warm needs asynchronous MediaCodec encoding");
+            keepEncoderWarm = false;
+        }
 
+        int segmentSeconds = mPendingSegmentSeconds;
+        int segmentMegabytes = mPendingSegmentMegabytes;
+        if ((segmentSeconds > 0 || segmentMegabytes > 0) && !(useMediaCodec && asyncEncoding)) {
+            Log.w(TAG, "Segmented recording needs asynchronous MediaCodec encoding");
+            segmentSeconds = 0;
+            segmentMegabytes = 0;
+        }
+
+        // The muxer orientation is only applied at start, so it doesn't count as a change
         boolean isConfigChanged =
                 (!mStreamSize.equals(size)) ||
                 (mUseMediaCodec != useMediaCodec) ||
                 (mEncBitRate != bitRate) ||
-                (mOrientation != orientation);
+                (mOutputFormat != outputFormat) ||
+                (mAsyncEncoding != asyncEncoding) ||
+                (mKeepEncoderWarm != keepEncoderWarm) ||
+                (mSegmentSeconds != segmentSeconds) ||
+                (mSegmentMegabytes != segmentMegabytes) ||
+                (mMaxSegments != mPendingMaxSegments);
+
+        mOrientation = orientation;
+
+        if (getStreamState() == STREAM_STATE_CONFIGURED) {
+            if (mKeepEncoderWarm && !isConfigChanged) {
+                // Warm encoder from the previous clip, and its next muxer, are ready to go
+                if (VERBOSE) {
+                    Log.v(TAG, "reusing warm encoder for " + mOutputFile);
+                }
+                return;
+            }
+            // Release with the mode the encoder was created in, since its callback mode is
+            // fixed once it's configured.
+            release();
+        }
 
         mStreamSize = size;
         mUseMediaCodec = useMediaCodec;
         mEncBitRate = bitRate;
-        mOrientation = orientation;
         mOutputFormat = outputFormat;
+        mAsyncEncoding = asyncEncoding;
+        mKeepEncoderWarm = keepEncoderWarm;
+        mSegmentSeconds = segmentSeconds;
+        mSegmentMegabytes = segmentMegabytes;
+        mMaxSegments = mPendingMaxSegments;
 
         if (mUseMediaCodec) {
-            if (getStreamState() == STREAM_STATE_CONFIGURED) {
-                /**
-                 * Stream is already configured, need release encoder and muxer
-                 * first, then reconfigure only if configuration is changed.
-                 */
-                if (!isConfigChanged) {
-                    /**
-                     * TODO: this is only the skeleton, it is tricky to
-                     * implement because muxer need reconfigure always. But
-                     * muxer is closely coupled with MediaCodec for now because
-                     * muxer can only be started once format change callback is
-                     * sent from mediacodec. We need decouple MediaCodec and
-                     * Muxer for future.
-                     */
-                }
-                releaseEncoder();
-                releaseMuxer(ctx);
-                configureMediaCodecEncoder();
-            } else {
-                configureMediaCodecEncoder();
-            }
+            configureMediaCodecEncoder();
         } else {
             configureMediaRecorder();
         }
@@ -133,6 +223,73 @@ public class CameraRecordingStream {
         setStreamState(STREAM_STATE_CONFIGURED);
     }
 
+    /**
+     * Split MediaCodec recordings into segments, starting a new file on the
+     * first sync frame after the current one reaches either limit, and keeping
+     * only the newest segments. Takes effect at the next configure; only
+     * supported with asynchronous encoding.
+     *
+     * @param seconds segment duration limit, or 0 for none
+     * @param megabytes segment size limit, or 0 for none
+     * @param maxSegments how many recorded segments to keep on disk, including the one
+     * being written
+     */
+    public synchronized void setSegmentLimits(int seconds, int megabytes, int maxSegments) {
+        if (seconds < 0 || megabytes < 0 ||
+                ((seconds > 0 || megabytes > 0) && maxSegments < 1)) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "Invalid segment limits: %d s, %d MB, %d segments",
+                    seconds, megabytes, maxSegments));
+        }
+        mPendingSegmentSeconds = seconds;
+        mPendingSegmentMegabytes = megabytes;
+        mPendingMaxSegments = maxSegments;
+    }
+
+    private boolean isSegmenting() {
+        return mSegmentSeconds > 0 || mSegmentMegabytes > 0;
+    }
+
+    /**
+     * @return a one-line summary of the encoder statistics for the current
+     * MediaCodec clip, or the last one once stopped; null if there's none.
+     */
+    public String getStatsSummary() {
+        EncoderStats stats = mStats;
+        return (stats != null) ? stats.getSummary() : null;
+    }
+
+    /**
+     * @return whether the encoder and its surface stay configured when the
+     * stream stops, so the surface can stay in the capture session.
+     */
+    public synchronized boolean isKeepingEncoderWarm() {
+        return mKeepEncoderWarm && getStreamState() != STREAM_STATE_IDLE;
+    }
+
+    public synchronized boolean isRecording() {
+        return getStreamState() == STREAM_STATE_RECORDING;
+    }
+
+    /**
+     * Release a stream that's configured but not recording, for instance a warm
+     * encoder between clips. The stream's surface becomes invalid.
+     */
+    public synchronized void release() {
+        if (getStreamState() == STREAM_STATE_RECORDING) {
+            throw new IllegalStateException("Can't release a recording stream");
+        }
+        if (getStreamState() == STREAM_STATE_IDLE) return;
+
+        if (mUseMediaCodec) {
+            releaseEncoder();
+            discardMuxer();
+        } else {
+            releaseMediaRecorder();
+        }
+        setStreamState(STREAM_STATE_IDLE);
+    }
+
     /**
      * Add the stream output surface to the target output surface list.
      *
@@ -152,7 +309,10 @@ public class CameraRecordingStream {
         } else {
             // Can add surface only in CONFIGURED state.
             if (getStreamState() == STREAM_STATE_CONFIGURED) {
-                outputSurfaces.add(mRecordingSurface);
+                // A warm encoder's surface may still be in the list from the last clip
+                if (!outputSurfaces.contains(mRecordingSurface)) {
+                    outputSurfaces.add(mRecordingSurface);
+                }
             } else {
                 Log.w(TAG, "Can only add surface when recording stream is in CONFIGURED state");
             }
@@ -201,7 +361,36 @@ public class CameraRecordingStream {
 
         setStreamState(STREAM_STATE_RECORDING);
         if (mUseMediaCodec) {
-            startMediaCodecRecording();
+            mAwaitingFirstFrame = true;
+            mStats = new EncoderStats(mEncBitRate, FRAME_RATE);
+            File statsFile;
+            if (mAsyncEncoding) {
+                if (isSegmenting()) {
+                    mSegmenter = createSegmenter();
+                    mSegmenter.start();
+                    statsFile = new File(mSegmenter.getDirectory(), "encoder_stats.csv");
+                } else {
+                    mMuxer.setOrientationHint(mOrientation);
+                    mMuxerWriter.setMuxer(mMuxer);
+                    mMuxerInWriter = true;
+                    statsFile = getStatsFile(mOutputFile);
+                }
+                // A warm encoder is mid-stream, so the clip has to open with a sync frame
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                mEncoder.setParameters(params);
+                mStatsWriter = new EncoderStatsWriter(mStats, statsFile);
+                mClipEndUs = Long.MAX_VALUE;
+                mLastOutputUs = Long.MIN_VALUE;
+                mClipEnded = new CountDownLatch(1);
+                mAwaitingSyncFrame = true;
+                mAcceptingOutput = true;
+            } else {
+                mMuxer.setOrientationHint(mOrientation);
+                statsFile = getStatsFile(mOutputFile);
+                mStatsWriter = new EncoderStatsWriter(mStats, statsFile);
+                startMediaCodecRecording();
+            }
         } else {
             mMediaRecorder.start();
         }
@@ -214,33 +403,54 @@ public class CameraRecordingStream {
      * to avoid sending buffers to a stopped encoder.
      * </p>
      * <p>
-     * TODO: We have to release encoder and muxer for MediaCodec mode because
-     * encoder is closely coupled with muxer, and muxser can not be reused
-     * across different recording session(by design, you can not reset/restart
-     * it). To save the subsequent start recording time, we need avoid releasing
-     * encoder for future.
+     * Muxers can't be restarted, so each clip needs a new one. Unless the
+     * encoder is kept warm, it's released along with the muxer; a warm encoder
+     * stays configured and the stream returns to the CONFIGURED state, with the
+     * next clip's muxer already created.
+     * </p>
+     * <p>
+     * A warm clip ends with the frame whose sensor timestamp is
+     * lastFrameTimestampNs, so the camera should have stopped targeting the
+     * stream by then; this waits for that frame to come out of the encoder.
+     * Stopping can take as long as encoding does, so don't call this from the
+     * UI thread.
      * </p>
      * @param ctx Application context.
+     * @param lastFrameTimestampNs Sensor timestamp of the last frame the camera
+     * sent to the stream's surface, or a negative value if it sent none. Only
+     * used if the encoder is kept warm.
      */
-    public synchronized void stop(Context ctx) {
+    public synchronized void stop(Context ctx, long lastFrameTimestampNs) {
         if (getStreamState() != STREAM_STATE_RECORDING) {
             Log.w(TAG, "Recording stream is not started yet");
             return;
         }
 
+        if (mKeepEncoderWarm) {
+            stopWarmClip(ctx, lastFrameTimestampNs);
+            finishStats();
+            setStreamState(STREAM_STATE_CONFIGURED);
+            return;
+        }
+
         setStreamState(STREAM_STATE_IDLE);
         Log.e(TAG, "setting camera to idle");
         if (mUseMediaCodec) {
-            // Wait until recording thread stop
-            try {
-                mRecordingThread.join();
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Stop recording failed", e);
+            if (mAsyncEncoding) {
+                awaitAsyncEndOfStream();
+            } else {
+                // Wait until recording thread stop
+                try {
+                    mRecordingThread.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Stop recording failed", e);
+                }
+                // Drain encoder
+                doMediaCodecEncoding(/* notifyEndOfStream */true);
             }
-            // Drain encoder
-            doMediaCodecEncoding(/* notifyEndOfStream */true);
             releaseEncoder();
             releaseMuxer(ctx);
+            finishStats();
         } else {
             try {
                 mMediaRecorder.stop();
@@ -302,6 +512,7 @@ public class CameraRecordingStream {
         if (VERBOSE) {
             Log.v(TAG, "releasing encoder");
         }
+        mAcceptingOutput = false;
         if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
@@ -310,6 +521,10 @@ public class CameraRecordingStream {
             }
             mEncoder = null;
         }
+        if (mEncoderThread != null) {
+            mEncoderThread.quitSafely();
+            mEncoderThread = null;
+        }
     }
 
     private void releaseMuxer(Context ctx) {
@@ -317,7 +532,23 @@ public class CameraRecordingStream {
             Log.v(TAG, "releasing muxer");
         }
 
-        if (mMuxer != null) {
+        if (mMuxerWriter != null) {
+            // Stops and releases mMuxer once all queued samples are written
+            mMuxerWriter.quit();
+            mMuxerWriter = null;
+            if (mSegmenter != null) {
+                mSegmenter.finish();
+                mSegmenter = null;
+                return;
+            }
+            if (!mMuxerInWriter) {
+                discardMuxer();
+                return;
+            }
+            mMuxer = null;
+            mMuxerInWriter = false;
+            MediaScannerConnection.scanFile(ctx, new String [] { mOutputFile }, null, null);
+        } else if (mMuxer != null) {
             mMuxer.stop();
             mMuxer.release();
             mMuxer = null;
@@ -325,6 +556,24 @@ public class CameraRecordingStream {
         }
     }
 
+    /**
+     * Release a muxer that was never started, and delete its empty file.
+     */
+    private void discardMuxer() {
+        if (mMuxerWriter != null) {
+            mMuxerWriter.quit();
+            mMuxerWriter = null;
+        }
+        if (mMuxer != null && !mMuxerInWriter) {
+            mMuxer.release();
+            if (!new File(mOutputFile).delete()) {
+                Log.w(TAG, "Failed to delete unused output file " + mOutputFile);
+            }
+        }
+        mMuxer = null;
+        mMuxerInWriter = false;
+    }
+
     private void releaseMediaRecorder() {
         if (VERBOSE) {
             Log.v(TAG, "releasing media recorder");
@@ -368,6 +617,26 @@ public class CameraRecordingStream {
     }
 
     private String getOutputMediaFileName() {
+        File mediaStorageDir = getOutputMediaDir();
+        if (mediaStorageDir == null) {
+            return null;
+        }
+
+        // Create a media file name
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        String mediaFileName = mediaStorageDir.getPath() + File.separator +
+                "VID_" + timeStamp + getOutputExtension();
+        // Back-to-back clips can start within the same second
+        for (int i = 1; new File(mediaFileName).exists(); i++) {
+            mediaFileName = mediaStorageDir.getPath() + File.separator +
+                    "VID_" + timeStamp + "_" + i + getOutputExtension();
+        }
+
+        Log.v(TAG, "Recording file name: " + mediaFileName);
+        return mediaFileName;
+    }
+
+    private File getOutputMediaDir() {
         String state = Environment.getExternalStorageState();
         // Check if external storage is mounted
         if (!Environment.MEDIA_MOUNTED.equals(state)) {
@@ -385,14 +654,40 @@ public class CameraRecordingStream {
                 return null;
             }
         }
+        return mediaStorageDir;
+    }
 
-        // Create a media file name
+    /**
+     * Creates the segmenter for one clip, writing into a new directory next to
+     * the regular recordings. Each MP4 segment is pre-allocated with room for
+     * the smaller of its size limit and its duration limit, plus one I-frame
+     * interval, at 1.5x the configured bitrate.
+     */
+    private RecordingSegmenter createSegmenter() {
+        File mediaStorageDir = getOutputMediaDir();
+        if (mediaStorageDir == null) {
+            throw new IllegalStateException("Failed to get video output directory");
+        }
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        String mediaFileName = mediaStorageDir.getPath() + File.separator +
-                "VID_" + timeStamp + getOutputExtension();
+        File segmentDir = new File(mediaStorageDir, "VID_" + timeStamp + "_segments");
+        for (int i = 1; segmentDir.exists(); i++) {
+            segmentDir = new File(mediaStorageDir, "VID_" + timeStamp + "_" + i + "_segments");
+        }
 
-        Log.v(TAG, "Recording file name: " + mediaFileName);
-        return mediaFileName;
+        long bytesPerSecond = mEncBitRate / 8 * 3 / 2;
+        long maxBytes = mSegmentMegabytes * 1000000L;
+        long preallocateBytes = Long.MAX_VALUE;
+        if (maxBytes > 0) {
+            preallocateBytes = maxBytes + bytesPerSecond * IFRAME_INTERVAL;
+        }
+        if (mSegmentSeconds > 0) {
+            preallocateBytes = Math.min(preallocateBytes,
+                    bytesPerSecond * (mSegmentSeconds + IFRAME_INTERVAL));
+        }
+
+        return new RecordingSegmenter(mMuxerWriter, segmentDir, getOutputExtension(),
+                mOutputFormat, mOrientation, mSegmentSeconds * 1000000L, maxBytes,
+                mMaxSegments, preallocateBytes);
     }
 
     /**
@@ -416,34 +711,99 @@ public class CameraRecordingStream {
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         Log.i(TAG, "configure video encoding format: " + format);
 
-        // Create/configure a MediaCodec encoder.
+        mReportStartNs = 0;
+        mReportFrames = 0;
+        mReportBytes = 0;
+        mReportLatencySumUs = 0;
+        mReportMaxLatencyUs = 0;
+        if (mAsyncEncoding) {
+            // The callbacks write into the writer as soon as the encoder starts
+            mMuxerWriter = new MuxerWriter("MuxerWriter");
+            mEndOfStream = new CountDownLatch(1);
+            // Codec callbacks are delivered on the looper of the thread that creates the
+            // codec, so create and start it on the callback thread.
+            mEncoderThread = new HandlerThread("EncoderCallbacks");
+            mEncoderThread.start();
+            startEncoderOnThread(format);
+        } else {
+            startEncoder(format);
+        }
+
+        // Segments get their muxers from the segmenter at start
+        if (!isSegmenting()) {
+            prepareMuxer();
+        }
+    }
+
+    /**
+     * Create, configure and start mEncoder, and create mRecordingSurface. In
+     * asynchronous mode, runs on mEncoderThread.
+     */
+    private void startEncoder(MediaFormat format) {
         try {
             mEncoder = MediaCodec.createEncoderByType(getOutputMime());
         } catch (IOException ioe) {
             throw new IllegalStateException(
                     "failed to create " + getOutputMime() + " encoder", ioe);
         }
+        if (mAsyncEncoding) {
+            // The callback has to be set before configure()
+            mEncoder.setCallback(mEncoderCallback);
+        }
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mRecordingSurface = mEncoder.createInputSurface();
         mEncoder.start();
+    }
+
+    /**
+     * Run startEncoder on mEncoderThread, and wait for it to finish.
+     */
+    private void startEncoderOnThread(final MediaFormat format) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final RuntimeException[] failure = new RuntimeException[1];
+        new Handler(mEncoderThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    startEncoder(format);
+                } catch (RuntimeException e) {
+                    failure[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            if (!done.await(ENCODER_SETUP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Timed out setting up the encoder");
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted setting up the encoder", e);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
 
+    /**
+     * Creates the MediaMuxer for the next clip. We can't add the video track
+     * and start() the muxer until the encoder starts and notifies the new
+     * media format, and the orientation is only set at start.
+     */
+    private void prepareMuxer() {
         String outputFileName = getOutputMediaFileName();
         if (outputFileName == null) {
             throw new IllegalStateException("Failed to get video output file");
         }
 
-        /**
-         * Create a MediaMuxer. We can't add the video track and start() the
-         * muxer until the encoder starts and notifies the new media format.
-         */
         try {
             mOutputFile = outputFileName;
             mMuxer = new MediaMuxer(mOutputFile, mOutputFormat);
-            mMuxer.setOrientationHint(mOrientation);
         } catch (IOException ioe) {
             throw new IllegalStateException("MediaMuxer creation failed", ioe);
         }
         mMuxerStarted = false;
+        mMuxerInWriter = false;
     }
 
     private void configureMediaRecorder() {
@@ -576,6 +936,11 @@ public class CameraRecordingStream {
                     encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
                     mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    long now = System.nanoTime();
+                    if (mAwaitingFirstFrame) {
+                        onFirstClipFrame(now);
+                    }
+                    reportOutput(now, mBufferInfo);
                     if (VERBOSE) {
                         Log.v(TAG, "sent " + mBufferInfo.size + " bytes to muxer");
                     }
@@ -597,4 +962,231 @@ public class CameraRecordingStream {
             }
         } // End of while(notDone)
     }
+
+    /**
+     * Signal end of stream to an asynchronous encoder, and wait for the
+     * callbacks to drain its remaining output.
+     */
+    private void awaitAsyncEndOfStream() {
+        mEncoder.signalEndOfInputStream();
+        try {
+            if (!mEndOfStream.await(EOS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Timed out waiting for encoder end of stream");
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Stop recording failed", e);
+        }
+    }
+
+    /**
+     * Record an output frame in the clip's statistics, and log output frame
+     * rate, bitrate and encoder latency once per second.
+     * <p>
+     * Latency is measured from the frame's presentation time, which for camera
+     * input surfaces is the sensor timestamp, to the time the encoded frame is
+     * delivered. It's only meaningful when the camera's timestamps are on the
+     * System.nanoTime() clock.
+     * </p>
+     */
+    private void reportOutput(long nowNs, MediaCodec.BufferInfo info) {
+        if (mReportStartNs == 0) {
+            mReportStartNs = nowNs;
+        }
+        long latencyUs = nowNs / 1000 - info.presentationTimeUs;
+        EncoderStats stats = mStats;
+        if (stats != null) {
+            stats.onFrame(info.presentationTimeUs, info.size,
+                    (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0, latencyUs);
+        }
+        mReportFrames++;
+        mReportBytes += info.size;
+        mReportLatencySumUs += latencyUs;
+        mReportMaxLatencyUs = Math.max(mReportMaxLatencyUs, latencyUs);
+
+        long elapsedNs = nowNs - mReportStartNs;
+        if (elapsedNs < REPORT_INTERVAL_NS) return;
+
+        Log.i(TAG, String.format(Locale.US,
+                "encoder output: %.1f fps, %.2f Mbps, latency avg %.1f ms max %.1f ms, " +
+                "%d samples pending write",
+                mReportFrames * 1e9 / elapsedNs,
+                mReportBytes * 8 * 1e3 / elapsedNs,
+                mReportLatencySumUs / 1000.0 / mReportFrames,
+                mReportMaxLatencyUs / 1000.0,
+                (mMuxerWriter != null) ? mMuxerWriter.getPendingSamples() : 0));
+        EncoderStatsWriter statsWriter = mStatsWriter;
+        if (statsWriter != null) {
+            statsWriter.flush();
+        }
+        mReportStartNs = nowNs;
+        mReportFrames = 0;
+        mReportBytes = 0;
+        mReportLatencySumUs = 0;
+        mReportMaxLatencyUs = 0;
+    }
+
+    /**
+     * Drains the encoder in asynchronous mode. Runs on mEncoderThread; output
+     * buffers are copied into the muxer writer and returned to the codec
+     * straight away.
+     */
+    private final MediaCodec.Callback mEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Input comes from the camera through the input surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            long now = System.nanoTime();
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                /**
+                 * The codec config data is part of the output format the
+                 * muxer got in onOutputFormatChanged. Ignore it.
+                 */
+                if (VERBOSE) {
+                    Log.v(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+                }
+                info.size = 0;
+            }
+            if (info.size != 0) {
+                boolean isSyncFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+                if (!mAcceptingOutput) {
+                    // Straggler from a finished warm clip, or a frame before the next one
+                    if (VERBOSE) {
+                        Log.v(TAG, "dropping frame at " + info.presentationTimeUs +
+                                " us outside of a clip");
+                    }
+                    info.size = 0;
+                } else if (mAwaitingSyncFrame && !isSyncFrame) {
+                    if (VERBOSE) {
+                        Log.v(TAG, "dropping frame at " + info.presentationTimeUs +
+                                " us while waiting for a sync frame");
+                    }
+                    info.size = 0;
+                } else {
+                    mAwaitingSyncFrame = false;
+                }
+            }
+            if (info.size != 0) {
+                ByteBuffer encodedData = codec.getOutputBuffer(index);
+                if (encodedData == null) {
+                    throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+                }
+                RecordingSegmenter segmenter = mSegmenter;
+                if (segmenter != null) {
+                    segmenter.onSample(info);
+                }
+                mMuxerWriter.writeSample(encodedData, info);
+                if (mAwaitingFirstFrame) {
+                    onFirstClipFrame(now);
+                }
+                reportOutput(now, info);
+            }
+            codec.releaseOutputBuffer(index, false);
+
+            if (mAcceptingOutput && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mLastOutputUs = info.presentationTimeUs;
+                if (info.presentationTimeUs >= mClipEndUs) {
+                    // That was the last frame of a warm clip
+                    mAcceptingOutput = false;
+                    mClipEnded.countDown();
+                }
+            }
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) {
+                    Log.v(TAG, "end of stream reached");
+                }
+                mEndOfStream.countDown();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error: " + e.getDiagnosticInfo(), e);
+            // Don't leave stop() waiting for output that won't come
+            mEndOfStream.countDown();
+            CountDownLatch clipEnded = mClipEnded;
+            if (clipEnded != null) {
+                clipEnded.countDown();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            mMuxerWriter.setFormat(format);
+        }
+    };
+
+    /**
+     * Finish a clip without stopping the encoder. Once the encoder outputs the
+     * clip's last frame, the camera's sensor timestamp for which is its
+     * presentation time, the clip's muxer is finished, and the next clip's
+     * muxer is created.
+     */
+    private void stopWarmClip(Context ctx, long lastFrameTimestampNs) {
+        if (lastFrameTimestampNs >= 0) {
+            long clipEndUs = lastFrameTimestampNs / 1000;
+            mClipEndUs = clipEndUs;
+            // The encoder callback may have gone past it before it was set
+            if (mLastOutputUs >= clipEndUs) {
+                mClipEnded.countDown();
+            }
+            try {
+                if (!mClipEnded.await(WARM_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Timed out waiting for the clip's last frame at " + clipEndUs +
+                            " us; later frames will be dropped");
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Stop recording failed", e);
+            }
+        }
+        mAcceptingOutput = false;
+
+        mMuxerWriter.finish();
+        if (mSegmenter != null) {
+            mSegmenter.finish();
+            mSegmenter = null;
+            return;
+        }
+        mMuxer = null;
+        mMuxerInWriter = false;
+        MediaScannerConnection.scanFile(ctx, new String [] { mOutputFile }, null, null);
+
+        prepareMuxer();
+    }
+
+    /**
+     * Log the time from the clip being configured to its first frame reaching
+     * the muxer.
+     */
+    private void onFirstClipFrame(long nowNs) {
+        mAwaitingFirstFrame = false;
+        Log.i(TAG, String.format(Locale.US, "start-to-first-frame latency: %.1f ms%s",
+                (nowNs - mClipRequestedNs) / 1e6, mKeepEncoderWarm ? " (warm encoder)" : ""));
+    }
+
+    private static File getStatsFile(String outputFile) {
+        int extension = outputFile.lastIndexOf('.');
+        String base = (extension > 0) ? outputFile.substring(0, extension) : outputFile;
+        return new File(base + "_stats.csv");
+    }
+
+    /**
+     * Log the finished clip's statistics summary, and have the rest of its
+     * per-frame statistics written out in the background.
+     */
+    private void finishStats() {
+        EncoderStats stats = mStats;
+        if (stats != null) {
+            Log.i(TAG, "Clip encoder stats: " + stats.getSummary());
+        }
+        EncoderStatsWriter statsWriter = mStatsWriter;
+        mStatsWriter = null;
+        if (statsWriter != null) {
+            statsWriter.finish();
+        }
+    }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Manages capture sessions for one camera device without blocking.
+ * <p>
+ * Each {@link #configure} call compares the requested outputs with the most
+ * recently requested set; if they're the same, the current session is kept,
+ * otherwise a new session is created in the background. Session operations
+ * passed to {@link #submit} are bound to the configuration requested most
+ * recently before them, and run once that session is ready, in submission
+ * order; operations for a session that's already ready run straight away.
+ * </p>
+ * <p>
+ * Sessions are created one at a time, in the order requested, so operations
+ * for an earlier configuration still run on their own session even if a later
+ * configuration has already been requested. Operations for a session that
+ * fails to configure are dropped, and so are operations submitted while no
+ * session is configured; an operation can come with a callback that's run on
+ * the handler's thread if that happens. Operations still pending when the
+ * device changes or closes are discarded without it.
+ * </p>
+ * <p>
+ * All state is kept on the handler's thread; configure and submit can be
+ * called from any thread, and never wait.
+ * </p>
+ */
+public class CameraSessionManager {
+    private static final String TAG = "CameraSessionManager";
+    private static final boolean VERBOSE = Log.isLoggable(TAG, Log.VERBOSE);
+
+    /**
+     * Work to do with a configured session, run on the handler's thread
+     */
+    public interface SessionOp {
+        void run(CameraCaptureSession session) throws CameraAccessException;
+    }
+
+    private static class Configuration {
+        final int generation;
+        final List<Surface> outputs;
+        final long requestTimeMs;
+
+        Configuration(int generation, List<Surface> outputs) {
+            this.generation = generation;
+            this.outputs = outputs;
+            this.requestTimeMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static class PendingOp {
+        final int generation;
+        final SessionOp op;
+        final Runnable onDropped;
+
+        PendingOp(int generation, SessionOp op, Runnable onDropped) {
+            this.generation = generation;
+            this.op = op;
+            this.onDropped = onDropped;
+        }
+    }
+
+    private final Handler mHandler;
+
+    // Only touched on the handler's thread
+    private CameraDevice mDevice;
+    private CameraCaptureSession mSession;
+    private int mSessionGeneration = -1;
+    private Configuration mCreating;
+    private final ArrayDeque<Configuration> mQueuedConfigurations = new ArrayDeque<>();
+    private final ArrayDeque<PendingOp> mPendingOps = new ArrayDeque<>();
+    private Set<Surface> mRequestedOutputs;
+    private int mRequestedGeneration = -1;
+
+    /**
+     * @param handler handler for session callbacks and operations
+     */
+    public CameraSessionManager(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Use a newly opened device. Any state for the previous device is dropped.
+     */
+    public void setDevice(final CameraDevice device) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reset();
+                mDevice = device;
+            }
+        });
+    }
+
+    /**
+     * Forget the device, which the caller is closing, and drop all pending work.
+     */
+    public void close() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reset();
+            }
+        });
+    }
+
+    /**
+     * Request a session with the given outputs. Keeps the current session if
+     * it already has exactly these outputs.
+     */
+    public void configure(List<Surface> outputs) {
+        final List<Surface> outputsCopy = new ArrayList<Surface>(outputs);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Set<Surface> outputSet = new HashSet<Surface>(outputsCopy);
+                if (outputSet.equals(mRequestedOutputs)) {
+                    if (VERBOSE) {
+                        Log.v(TAG, "Outputs unchanged, keeping session " + mRequestedGeneration);
+                    }
+                    return;
+                }
+                mRequestedOutputs = outputSet;
+                mRequestedGeneration++;
+                mQueuedConfigurations.add(new Configuration(mRequestedGeneration, outputsCopy));
+                maybeCreateNextSession();
+            }
+        });
+    }
+
+    /**
+     * Run an operation on the most recently requested session, once it's ready.
+     */
+    public void submit(SessionOp op) {
+        submit(op, /*onDropped*/null);
+    }
+
+    /**
+     * Run an operation on the most recently requested session, once it's ready,
+     * or run onDropped instead if that session fails to configure.
+     *
+     * @param onDropped run on the handler's thread if the operation is dropped;
+     * may be null
+     */
+    public void submit(final SessionOp op, final Runnable onDropped) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRequestedOutputs == null) {
+                    Log.e(TAG, "No session configured, dropping session operation");
+                    if (onDropped != null) {
+                        onDropped.run();
+                    }
+                    return;
+                }
+                if (mSession != null && mSessionGeneration == mRequestedGeneration) {
+                    runOp(op, mSession);
+                } else {
+                    mPendingOps.add(new PendingOp(mRequestedGeneration, op, onDropped));
+                }
+            }
+        });
+    }
+
+    private void maybeCreateNextSession() {
+        while (mCreating == null && !mQueuedConfigurations.isEmpty()) {
+            final Configuration config = mQueuedConfigurations.poll();
+            if (mDevice == null) {
+                Log.e(TAG, "No camera device to create session " + config.generation);
+                dropOps(config.generation);
+                continue;
+            }
+            try {
+                mDevice.createCaptureSession(config.outputs,
+                        new SessionCallback(config), mHandler);
+                mCreating = config;
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.e(TAG, "Failed to create session " + config.generation + ": " + e);
+                onSessionFailed(config);
+            }
+        }
+    }
+
+    private class SessionCallback extends CameraCaptureSession.StateCallback {
+        private final Configuration mConfig;
+
+        SessionCallback(Configuration config) {
+            mConfig = config;
+        }
+
+        @Override
+        public void onConfigured(CameraCaptureSession session) {
+            if (mCreating != mConfig) {
+                // Device changed while this session was being created
+                session.close();
+                return;
+            }
+            Log.i(TAG, String.format("Session %d with %d outputs ready in %d ms",
+                    mConfig.generation, mConfig.outputs.size(),
+                    SystemClock.elapsedRealtime() - mConfig.requestTimeMs));
+            mCreating = null;
+            mSession = session;
+            mSessionGeneration = mConfig.generation;
+
+            Iterator<PendingOp> ops = mPendingOps.iterator();
+            while (ops.hasNext()) {
+                PendingOp pending = ops.next();
+                if (pending.generation == mConfig.generation) {
+                    ops.remove();
+                    runOp(pending.op, session);
+                }
+            }
+            maybeCreateNextSession();
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession session) {
+            if (mCreating != mConfig) return;
+            Log.e(TAG, "Failed to configure session " + mConfig.generation);
+            mCreating = null;
+            // The previous session was closed when this one was created
+            mSession = null;
+            onSessionFailed(mConfig);
+            maybeCreateNextSession();
+        }
+
+        @Override
+        public void onClosed(CameraCaptureSession session) {
+            if (session == mSession) {
+                if (VERBOSE) {
+                    Log.v(TAG, "Session " + mSessionGeneration + " closed");
+                }
+                mSession = null;
+                // A closed session can't be kept, so the same outputs need a new one
+                if (mSessionGeneration == mRequestedGeneration && mCreating == null) {
+                    mRequestedOutputs = null;
+                }
+            }
+        }
+    }
+
+    private void onSessionFailed(Configuration config) {
+        dropOps(config.generation);
+        if (config.generation == mRequestedGeneration) {
+            mRequestedOutputs = null;
+        }
+    }
+
+    private void dropOps(int generation) {
+        Iterator<PendingOp> ops = mPendingOps.iterator();
+        while (ops.hasNext()) {
+            PendingOp pending = ops.next();
+            if (pending.generation == generation) {
+                ops.remove();
+                Log.w(TAG, "Dropping operation for session " + generation);
+                if (pending.onDropped != null) {
+                    pending.onDropped.run();
+                }
+            }
+        }
+    }
+
+    private void runOp(SessionOp op, CameraCaptureSession session) {
+        try {
+            op.run(session);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Session operation failed: " + e);
+        }
+    }
+
+    private void reset() {
+        mDevice = null;
+        mSession = null;
+        mCreating = null;
+        mQueuedConfigurations.clear();
+        mPendingOps.clear();
+        mRequestedOutputs = null;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Per-frame statistics for one recorded clip: encoded size, presentation
+ * timestamp gaps, and encoder latency, with running totals for the achieved
+ * bitrate and the number of dropped frames.
+ * <p>
+ * A frame counts as dropped when the presentation timestamps of two consecutive
+ * encoded frames are further apart than the expected frame interval allows.
+ * For camera input the presentation timestamps are the sensor timestamps, so
+ * this catches frames lost anywhere between the sensor and the encoder output.
+ * The expected interval comes from the configured frame rate, so a camera that
+ * lowers its frame rate, for instance in low light, shows up as drops too.
+ * </p>
+ * <p>
+ * Only the last HISTORY_SIZE frames are kept individually, so memory stays
+ * bounded however long the clip runs; the totals cover the whole clip. Per-frame
+ * rows should be drained with {@link #writeNewCsvRows} often enough that the
+ * history doesn't wrap around before they're written, or the oldest rows are
+ * skipped.
+ * </p>
+ * <p>
+ * All methods are thread-safe.
+ * </p>
+ */
+public class EncoderStats {
+
+    /** A gap counts as dropped frames once it exceeds this many frame intervals */
+    private static final double DROP_THRESHOLD = 1.5;
+    private static final long RECENT_WINDOW_US = 1000000; // 1 second
+    /** Frames kept individually; about two minutes at 30 fps */
+    private static final int HISTORY_SIZE = 4096;
+
+    private final int mConfiguredBitRate;
+    private final long mFrameIntervalUs;
+
+    // Per-frame records for the last HISTORY_SIZE frames, indexed by frame % HISTORY_SIZE
+    private final long[] mPtsUs = new long[HISTORY_SIZE];
+    private final long[] mGapUs = new long[HISTORY_SIZE];
+    private final int[] mSizes = new int[HISTORY_SIZE];
+    private final long[] mLatencyUs = new long[HISTORY_SIZE];
+    private final int[] mDroppedBefore = new int[HISTORY_SIZE];
+    private final boolean[] mKeyFrames = new boolean[HISTORY_SIZE];
+
+    // Totals
+    private int mFrames = 0;
+    private long mFirstPtsUs = 0;
+    private long mLastPtsUs = 0;
+    private int mKeyFrameCount = 0;
+    private int mDropped = 0;
+    private long mBytes = 0;
+    private int mMaxSize = 0;
+    private long mLatencySumUs = 0;
+    private long mMaxLatencyUs = 0;
+    private long mMaxGapUs = 0;
+
+    // CSV output progress
+    private int mCsvNextFrame = 0;
+    private boolean mCsvHeaderWritten = false;
+
+    /**
+     * @param configuredBitRate the bitrate the encoder was configured with, in bits/s
+     * @param frameRate the frame rate the encoder was configured with
+     */
+    public EncoderStats(int configuredBitRate, int frameRate) {
+        mConfiguredBitRate = configuredBitRate;
+        mFrameIntervalUs = 1000000L / frameRate;
+    }
+
+    /**
+     * An encoded frame came out of the encoder.
+     *
+     * @param ptsUs the frame's presentation timestamp
+     * @param size encoded size in bytes
+     * @param keyFrame whether the frame is a sync frame
+     * @param latencyUs time from presentation timestamp to encoder output
+     */
+    public synchronized void onFrame(long ptsUs, int size, boolean keyFrame, long latencyUs) {
+        long gap = 0;
+        int dropped = 0;
+        if (mFrames > 0) {
+            gap = ptsUs - mLastPtsUs;
+            mMaxGapUs = Math.max(mMaxGapUs, gap);
+            if (gap > mFrameIntervalUs * DROP_THRESHOLD) {
+                dropped = (int) Math.round((double) gap / mFrameIntervalUs) - 1;
+            }
+        } else {
+            mFirstPtsUs = ptsUs;
+        }
+        mLastPtsUs = ptsUs;
+
+        int i = mFrames % HISTORY_SIZE;
+        mPtsUs[i] = ptsUs;
+        mGapUs[i] = gap;
+        mSizes[i] = size;
+        mLatencyUs[i] = latencyUs;
+        mDroppedBefore[i] = dropped;
+        mKeyFrames[i] = keyFrame;
+        mFrames++;
+
+        if (keyFrame) mKeyFrameCount++;
+        mDropped += dropped;
+        mBytes += size;
+        mMaxSize = Math.max(mMaxSize, size);
+        mLatencySumUs += latencyUs;
+        mMaxLatencyUs = Math.max(mMaxLatencyUs, latencyUs);
+    }
+
+    /**
+     * @return bits/s over the whole clip, counting the last frame as lasting
+     * one frame interval; 0 before the first frame.
+     */
+    public synchronized double getAchievedBitRate() {
+        if (mFrames == 0) return 0;
+        long durationUs = mLastPtsUs - mFirstPtsUs + mFrameIntervalUs;
+        return mBytes * 8 * 1e6 / durationUs;
+    }
+
+    /**
+     * @return bits/s over the last second of frames
+     */
+    public synchronized double getRecentBitRate() {
+        if (mFrames == 0) return 0;
+        long windowStart = mLastPtsUs - RECENT_WINDOW_US;
+        int oldest = Math.max(0, mFrames - HISTORY_SIZE);
+        int first = mFrames - 1;
+        while (first > oldest && mPtsUs[(first - 1) % HISTORY_SIZE] > windowStart) {
+            first--;
+        }
+        long bytes = 0;
+        for (int frame = first; frame < mFrames; frame++) {
+            bytes += mSizes[frame % HISTORY_SIZE];
+        }
+        long durationUs = mLastPtsUs - mPtsUs[first % HISTORY_SIZE] + mFrameIntervalUs;
+        return bytes * 8 * 1e6 / durationUs;
+    }
+
+    /**
+     * One-line summary of the clip so far
+     */
+    public synchronized String getSummary() {
+        if (mFrames == 0) {
+            return String.format(Locale.US, "no frames yet, configured %.2f Mbps",
+                    mConfiguredBitRate / 1e6);
+        }
+        double achieved = getAchievedBitRate();
+        return String.format(Locale.US,
+                "%d frames (%d sync), %d dropped, max gap %.1f ms; " +
+                "%.2f Mbps of %.2f configured (%.0f%%), last 1s %.2f Mbps; " +
+                "frame size avg %.1f KB max %.1f KB; latency avg %.1f ms max %.1f ms",
+                mFrames, mKeyFrameCount, mDropped, mMaxGapUs / 1000.0,
+                achieved / 1e6, mConfiguredBitRate / 1e6,
+                (mConfiguredBitRate > 0) ? achieved * 100 / mConfiguredBitRate : 0,
+                getRecentBitRate() / 1e6,
+                mBytes / 1000.0 / mFrames, mMaxSize / 1000.0,
+                mLatencySumUs / 1000.0 / mFrames, mMaxLatencyUs / 1000.0);
+    }
+
+    /**
+     * Write one CSV row for each frame recorded since the last call, preceded by
+     * a header row on the first call. Rows that have already left the history
+     * are skipped, which shows up as a jump in the frame column. The rows are
+     * copied out under the lock and written outside it, so a slow writer
+     * doesn't hold up {@link #onFrame}.
+     */
+    public void writeNewCsvRows(Writer out) throws IOException {
+        boolean writeHeader;
+        int first;
+        int count;
+        long[] ptsUs;
+        long[] gapUs;
+        int[] dropped;
+        int[] sizes;
+        boolean[] keyFrames;
+        long[] latencyUs;
+        synchronized (this) {
+            writeHeader = !mCsvHeaderWritten;
+            mCsvHeaderWritten = true;
+            first = Math.max(mCsvNextFrame, mFrames - HISTORY_SIZE);
+            count = mFrames - first;
+            mCsvNextFrame = mFrames;
+            ptsUs = new long[count];
+            gapUs = new long[count];
+            dropped = new int[count];
+            sizes = new int[count];
+            keyFrames = new boolean[count];
+            latencyUs = new long[count];
+            for (int j = 0; j < count; j++) {
+                int i = (first + j) % HISTORY_SIZE;
+                ptsUs[j] = mPtsUs[i];
+                gapUs[j] = mGapUs[i];
+                dropped[j] = mDroppedBefore[i];
+                sizes[j] = mSizes[i];
+                keyFrames[j] = mKeyFrames[i];
+                latencyUs[j] = mLatencyUs[i];
+            }
+        }
+
+        if (writeHeader) {
+            out.write("frame,pts_us,gap_us,dropped_before,size_bytes,sync_frame,latency_us\n");
+        }
+        StringBuilder row = new StringBuilder();
+        for (int j = 0; j < count; j++) {
+            row.setLength(0);
+            row.append(first + j).append(',')
+                    .append(ptsUs[j]).append(',')
+                    .append(gapUs[j]).append(',')
+                    .append(dropped[j]).append(',')
+                    .append(sizes[j]).append(',')
+                    .append(keyFrames[j] ? 1 : 0).append(',')
+                    .append(latencyUs[j]).append('\n');
+            out.append(row);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streams one clip's per-frame {@link EncoderStats} rows into a CSV file on a
+ * dedicated thread, so neither the encoder nor the caller stopping the clip
+ * waits on the file I/O.
+ */
+public class EncoderStatsWriter {
+    private static final String TAG = "EncoderStatsWriter";
+
+    private final EncoderStats mStats;
+    private final File mFile;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Only touched on the writer thread
+    private Writer mOut;
+    private boolean mFailed = false;
+
+    /**
+     * @param stats the clip's statistics
+     * @param file CSV file to write, replacing any existing one
+     */
+    public EncoderStatsWriter(EncoderStats stats, File file) {
+        mStats = stats;
+        mFile = file;
+        mThread = new HandlerThread("EncoderStatsWriter");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Append the rows recorded since the last flush, without blocking the caller.
+     */
+    public void flush() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeNewRows();
+            }
+        });
+    }
+
+    /**
+     * Append the remaining rows, close the file and stop the writer thread,
+     * without blocking the caller. The writer can't be used again.
+     */
+    public void finish() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeNewRows();
+                if (mOut == null) return;
+                try {
+                    mOut.close();
+                    Log.i(TAG, "Wrote encoder stats to " + mFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write encoder stats to " + mFile + ": " + e);
+                }
+                mOut = null;
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    private void writeNewRows() {
+        if (mFailed) return;
+        try {
+            if (mOut == null) {
+                mOut = new BufferedWriter(new FileWriter(mFile));
+            }
+            mStats.writeNewCsvRows(mOut);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write encoder stats to " + mFile + ": " + e);
+            mFailed = true;
+        }
+    }
+}
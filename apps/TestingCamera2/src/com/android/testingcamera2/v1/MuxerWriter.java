@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes encoded video samples into a MediaMuxer on a dedicated thread.
+ *
+ * <p>The encoder hands over each sample as soon as it's produced; the sample is copied out of
+ * the codec's output buffer so the buffer can go straight back to the codec, and the muxer
+ * write (which is file I/O) happens later on the writer thread. Copies come from a small pool
+ * of buffers all sized for the largest sample seen so far, so neither a steady stream nor its
+ * periodic sync frames allocate per frame. At most MAX_PENDING_SAMPLES samples are queued at
+ * once; if the muxer falls further behind than that, writeSample blocks the encoder until a
+ * write completes.</p>
+ *
+ * <p>The track format is remembered, so a muxer set after the encoder has reported its output
+ * format is started immediately. This lets the output move to a new muxer partway through the
+ * encoder's stream, as long as the first sample written to it is a sync frame.</p>
+ */
+public class MuxerWriter {
+    private static final String TAG = "MuxerWriter";
+    private static final boolean VERBOSE = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private static final int MAX_PENDING_SAMPLES = 16;
+    private static final long FINISH_TIMEOUT_MS = 5000;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+    // Guarded by mFreeBuffers
+    private int mBufferSize = 0;
+    private final Semaphore mPendingSlots = new Semaphore(MAX_PENDING_SAMPLES);
+
+    // Only touched on the writer thread
+    private MediaMuxer mMuxer;
+    private MediaFormat mFormat;
+    private int mTrackIndex = -1;
+    private boolean mMuxerStarted = false;
+
+    /**
+     * @param name used to name the writer thread
+     */
+    public MuxerWriter(String name) {
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Write subsequent samples into the given muxer. Any previous muxer must have been
+     * finished first.
+     */
+    public void setMuxer(final MediaMuxer muxer) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mMuxer != null) {
+                    throw new IllegalStateException("Previous muxer was not finished");
+                }
+                mMuxer = muxer;
+                maybeStartMuxer();
+            }
+        });
+    }
+
+    /**
+     * Finish the current muxer once the samples already queued are written, and
+     * write subsequent samples into the next one, without blocking the caller.
+     *
+     * @param next muxer to switch to
+     * @param onPreviousFinished run on the writer thread once the previous
+     * muxer has been stopped and released; may be null
+     */
+    public void switchMuxer(final MediaMuxer next, final Runnable onPreviousFinished) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseMuxer();
+                mMuxer = next;
+                maybeStartMuxer();
+                if (onPreviousFinished != null) {
+                    onPreviousFinished.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * The encoder's output format is known; the muxer can start once it has one.
+     */
+    public void setFormat(final MediaFormat format) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFormat != null) {
+                    throw new IllegalStateException("format changed twice");
+                }
+                if (VERBOSE) {
+                    Log.v(TAG, "encoder output format changed: " + format);
+                }
+                mFormat = format;
+                maybeStartMuxer();
+            }
+        });
+    }
+
+    /**
+     * Queue one encoded sample for writing. The sample's data is copied before returning, so
+     * the caller can release the buffer right away. Blocks while MAX_PENDING_SAMPLES samples
+     * are already queued.
+     *
+     * @param data encoded data, positioned as described by info
+     * @param info the sample's size, offset, timestamp and flags
+     */
+    public void writeSample(ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (!mPendingSlots.tryAcquire()) {
+            Log.w(TAG, "Muxer writes are falling behind, holding the encoder");
+            mPendingSlots.acquireUninterruptibly();
+        }
+        final ByteBuffer copy = obtainBuffer(info.size);
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        copy.put(data);
+        copy.flip();
+
+        final MediaCodec.BufferInfo copyInfo = new MediaCodec.BufferInfo();
+        copyInfo.set(0, info.size, info.presentationTimeUs, info.flags);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!mMuxerStarted) {
+                        Log.w(TAG, "Dropping sample at " + copyInfo.presentationTimeUs +
+                                " us, muxer hasn't started");
+                    } else {
+                        mMuxer.writeSampleData(mTrackIndex, copy, copyInfo);
+                        if (VERBOSE) {
+                            Log.v(TAG, "sent " + copyInfo.size + " bytes to muxer");
+                        }
+                    }
+                } finally {
+                    recycleBuffer(copy);
+                    mPendingSlots.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return samples queued but not yet written
+     */
+    public int getPendingSamples() {
+        return MAX_PENDING_SAMPLES - mPendingSlots.availablePermits();
+    }
+
+    /**
+     * Write out all queued samples, then stop and release the current muxer. Blocks until
+     * that's done.
+     */
+    public void finish() {
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    releaseMuxer();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        awaitWriter(done);
+    }
+
+    /**
+     * Finish the current muxer and stop the writer thread. The writer can't be used again.
+     */
+    public void quit() {
+        finish();
+        mThread.quitSafely();
+    }
+
+    private void maybeStartMuxer() {
+        if (mMuxer == null || mFormat == null || mMuxerStarted) return;
+        mTrackIndex = mMuxer.addTrack(mFormat);
+        mMuxer.start();
+        mMuxerStarted = true;
+    }
+
+    private void releaseMuxer() {
+        if (mMuxer == null) return;
+        if (VERBOSE) {
+            Log.v(TAG, "releasing muxer");
+        }
+        try {
+            if (mMuxerStarted) {
+                mMuxer.stop();
+            }
+        } catch (IllegalStateException e) {
+            // Happens if no samples were written
+            Log.e(TAG, "Failed to stop muxer: " + e);
+        }
+        mMuxer.release();
+        mMuxer = null;
+        mMuxerStarted = false;
+    }
+
+    private void awaitWriter(CountDownLatch done) {
+        try {
+            if (!done.await(FINISH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Timed out waiting for muxer writes to finish");
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted waiting for muxer writes", e);
+        }
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        int bufferSize;
+        synchronized (mFreeBuffers) {
+            if (size > mBufferSize) {
+                // Leave some headroom, so slightly larger sync frames don't regrow the pool
+                mBufferSize = size + size / 4;
+                mFreeBuffers.clear();
+            }
+            ByteBuffer buffer = mFreeBuffers.poll();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+            bufferSize = mBufferSize;
+        }
+        return ByteBuffer.allocateDirect(Math.max(bufferSize, 1));
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        synchronized (mFreeBuffers) {
+            // Buffers from before the pool last grew are left to the GC
+            if (buffer.capacity() >= mBufferSize && mFreeBuffers.size() < MAX_PENDING_SAMPLES) {
+                mFreeBuffers.add(buffer);
+            }
+        }
+    }
+}
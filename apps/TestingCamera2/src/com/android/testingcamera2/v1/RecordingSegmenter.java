@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Splits one recording into a series of segment files, starting a new segment
+ * on the first sync frame after the current one reaches its duration or size
+ * limit. The encoder keeps running across segments; only the muxer is switched,
+ * through the {@link MuxerWriter}.
+ * <p>
+ * Only the newest segments are kept on disk: once the finished segments and
+ * the one being written add up to more than maxSegments, the oldest finished
+ * segment is deleted. The next segment's file
+ * is created, and for MP4 pre-allocated, ahead of time on the writer thread,
+ * then trimmed to its real length once it's finished.
+ * </p>
+ * <p>
+ * Segments aren't added to the media store, since they're deleted again as
+ * recording goes on.
+ * </p>
+ */
+public class RecordingSegmenter {
+    private static final String TAG = "RecordingSegmenter";
+    private static final boolean VERBOSE = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private static class Segment {
+        final File file;
+        final MediaMuxer muxer;
+
+        Segment(File file, MediaMuxer muxer) {
+            this.file = file;
+            this.muxer = muxer;
+        }
+    }
+
+    private final MuxerWriter mWriter;
+    private final File mDir;
+    private final String mExtension;
+    private final int mOutputFormat;
+    private final int mOrientation;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final int mMaxSegments;
+    private final long mPreallocateBytes;
+
+    private final ArrayDeque<File> mFinished = new ArrayDeque<>();
+    private Segment mCurrent;
+    private Segment mNext;
+    private int mSegmentsOpened = 0;
+
+    // Only touched on the encoder thread
+    private long mSegmentStartUs = -1;
+    private long mSegmentBytes = 0;
+
+    /**
+     * @param writer writer the segments' muxers are handed to
+     * @param dir directory to write segments into; created if needed
+     * @param extension file extension for segments, including the '.'
+     * @param outputFormat muxer output format as listed in {@link MediaMuxer.OutputFormat}
+     * @param orientation orientation hint for each segment, in degrees
+     * @param maxDurationUs segment duration limit, or 0 for none
+     * @param maxBytes segment size limit, or 0 for none
+     * @param maxSegments most recorded segments to keep on disk, including the one
+     * being written; the next segment, prepared ahead of time, is on disk too
+     * @param preallocateBytes how much space to reserve for each MP4 segment, or 0
+     */
+    public RecordingSegmenter(MuxerWriter writer, File dir, String extension, int outputFormat,
+            int orientation, long maxDurationUs, long maxBytes, int maxSegments,
+            long preallocateBytes) {
+        if (maxDurationUs <= 0 && maxBytes <= 0) {
+            throw new IllegalArgumentException("Segments need a duration or size limit");
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("Need to keep at least one segment");
+        }
+        mWriter = writer;
+        mDir = dir;
+        mExtension = extension;
+        mOutputFormat = outputFormat;
+        mOrientation = orientation;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+        mMaxSegments = maxSegments;
+        // Trailing pre-allocated space can only be trimmed off MP4 files
+        mPreallocateBytes = (outputFormat == MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4) ?
+                preallocateBytes : 0;
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    /**
+     * Open the first segment and hand it to the writer, and prepare the second.
+     */
+    public synchronized void start() {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IllegalStateException("Failed to create segment directory " + mDir);
+        }
+        mCurrent = openSegment();
+        mWriter.setMuxer(mCurrent.muxer);
+        mNext = openSegment();
+        Log.i(TAG, "Recording segments into " + mDir);
+    }
+
+    /**
+     * Called on the encoder thread for each sample, before it's queued for
+     * writing. Switches the writer to the next segment if this sample should
+     * start one.
+     */
+    public void onSample(MediaCodec.BufferInfo info) {
+        if (mSegmentStartUs < 0) {
+            mSegmentStartUs = info.presentationTimeUs;
+        }
+        boolean isSyncFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        long durationUs = info.presentationTimeUs - mSegmentStartUs;
+        boolean full = (mMaxDurationUs > 0 && durationUs >= mMaxDurationUs) ||
+                (mMaxBytes > 0 && mSegmentBytes >= mMaxBytes);
+        if (full && isSyncFrame && switchSegment(durationUs, mSegmentBytes)) {
+            mSegmentStartUs = info.presentationTimeUs;
+            mSegmentBytes = 0;
+        }
+        mSegmentBytes += info.size;
+    }
+
+    /**
+     * Finish up once the writer has finished the last segment's muxer: trim the
+     * last segment, and delete the unused prepared one.
+     */
+    public synchronized void finish() {
+        if (mCurrent != null) {
+            finishSegment(mCurrent, mMaxSegments);
+            mCurrent = null;
+        }
+        if (mNext != null) {
+            mNext.muxer.release();
+            if (!mNext.file.delete()) {
+                Log.w(TAG, "Failed to delete unused segment " + mNext.file);
+            }
+            mNext = null;
+        }
+        Log.i(TAG, String.format(Locale.US, "Recorded %d segments, kept %d in %s",
+                mSegmentsOpened - 1, mFinished.size(), mDir));
+    }
+
+    private synchronized boolean switchSegment(long durationUs, long bytes) {
+        if (mNext == null) {
+            // Still being prepared on the writer thread; try again at the next sync frame
+            Log.w(TAG, "Next segment isn't ready, extending " + mCurrent.file.getName());
+            return false;
+        }
+        Log.i(TAG, String.format(Locale.US, "Finished segment %s: %.2f s, %.2f MB",
+                mCurrent.file.getName(), durationUs / 1e6, bytes / 1e6));
+
+        final Segment previous = mCurrent;
+        mCurrent = mNext;
+        mNext = null;
+        mWriter.switchMuxer(mCurrent.muxer, new Runnable() {
+            @Override
+            public void run() {
+                // On the writer thread, once the previous muxer is finished
+                synchronized (RecordingSegmenter.this) {
+                    // Leave room for the segment now being written
+                    finishSegment(previous, mMaxSegments - 1);
+                    if (mCurrent != null) {
+                        mNext = openSegment();
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    private Segment openSegment() {
+        File file = new File(mDir, String.format(Locale.US, "seg_%04d%s",
+                mSegmentsOpened++, mExtension));
+        try {
+            if (mPreallocateBytes > 0) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    Os.posix_fallocate(raf.getFD(), 0, mPreallocateBytes);
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "Can't pre-allocate " + file + ": " + e);
+                }
+            }
+            // The muxer opens the path without truncating it, so the allocation is kept
+            MediaMuxer muxer = new MediaMuxer(file.getPath(), mOutputFormat);
+            muxer.setOrientationHint(mOrientation);
+            if (VERBOSE) {
+                Log.v(TAG, "Prepared segment " + file);
+            }
+            return new Segment(file, muxer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to create segment " + file, e);
+        }
+    }
+
+    /**
+     * Trim a segment whose muxer has been released, and delete the oldest
+     * finished segments until at most maxFinished are left.
+     */
+    private void finishSegment(Segment segment, int maxFinished) {
+        if (mPreallocateBytes > 0) {
+            trimMp4(segment.file);
+        }
+        mFinished.add(segment.file);
+        while (mFinished.size() > maxFinished) {
+            File oldest = mFinished.poll();
+            if (!oldest.delete()) {
+                Log.w(TAG, "Failed to delete old segment " + oldest);
+            } else if (VERBOSE) {
+                Log.v(TAG, "Deleted old segment " + oldest);
+            }
+        }
+    }
+
+    /**
+     * Cut the file at the end of its last complete top-level MP4 box, dropping
+     * unused pre-allocated space.
+     */
+    private static void trimMp4(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            long end = 0;
+            while (end + 8 <= length) {
+                raf.seek(end);
+                long size = raf.readInt() & 0xffffffffL;
+                int type = raf.readInt();
+                if (type == 0) break; // Zero-filled, never written
+                if (size == 1) {
+                    if (end + 16 > length) break;
+                    size = raf.readLong();
+                } else if (size == 0) {
+                    // Box extends to the end of the file
+                    size = length - end;
+                }
+                if (size < 8 || end + size > length) break;
+                end += size;
+            }
+            if (end < length) {
+                raf.setLength(end);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to trim " + file + ": " + e);
+        }
+    }
+}
@@ -79,6 +79,11 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
     private static final int MIN_SENSITIVITY = 100;
     private static final int MAX_SENSITIVITY = 1600;
     private static final int ORIENTATION_UNINITIALIZED = -1;
+    // Segmented recording limits
+    private static final int SEGMENT_SECONDS = 10;
+    private static final int SEGMENT_MEGABYTES = 50;
+    private static final int MAX_SEGMENTS = 6;
+    private static final long RECORDING_STATS_INTERVAL_MS = 500;
 
     private int mLastOrientation = ORIENTATION_UNINITIALIZED;
     private OrientationEventListener mOrientationEventListener;
@@ -92,6 +97,10 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
     private ToggleButton mFocusLockToggle;
     private Spinner mFocusModeSpinner;
     private CheckBox mUseMediaCodecCheckBox;
+    private CheckBox mAsyncEncoderCheckBox;
+    private CheckBox mWarmEncoderCheckBox;
+    private CheckBox mSegmentedCheckBox;
+    private TextView mRecordingStatsView;
 
     private SeekBar mSensitivityBar;
     private SeekBar mExposureBar;
@@ -112,6 +121,9 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
 
     Handler mMainHandler;
     boolean mUseMediaCodec;
+    boolean mAsyncEncoder = true;
+    boolean mWarmEncoder;
+    boolean mSegmentedRecording;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -139,6 +151,18 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
 
         mRecordingToggle = (ToggleButton) findViewById(R.id.start_recording);
         mRecordingToggle.setOnClickListener(mRecordingToggleListener);
+        mRecordingStatsView = (TextView) findViewById(R.id.recording_stats_label);
+        mWarmEncoderCheckBox = (CheckBox) findViewById(R.id.keep_encoder_warm);
+        mWarmEncoderCheckBox.setOnCheckedChangeListener(mWarmEncoderListener);
+        mWarmEncoderCheckBox.setChecked(mWarmEncoder);
+        mSegmentedCheckBox = (CheckBox) findViewById(R.id.segmented_recording);
+        mSegmentedCheckBox.setOnCheckedChangeListener(mSegmentedListener);
+        mSegmentedCheckBox.setChecked(mSegmentedRecording);
+        mAsyncEncoderCheckBox = (CheckBox) findViewById(R.id.use_async_encoder);
+        mAsyncEncoderCheckBox.setOnCheckedChangeListener(mAsyncEncoderListener);
+        mAsyncEncoderCheckBox.setChecked(mAsyncEncoder);
+        mAsyncEncoderCheckBox.setEnabled(mUseMediaCodec);
+        updateAsyncEncoderOptionsEnabled();
         mUseMediaCodecCheckBox = (CheckBox) findViewById(R.id.use_media_codec);
         mUseMediaCodecCheckBox.setOnCheckedChangeListener(mUseMediaCodecListener);
         mUseMediaCodecCheckBox.setChecked(mUseMediaCodec);
@@ -221,6 +245,8 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
 
     @Override
     protected void onDestroy() {
+        mMainHandler.removeCallbacks(mRecordingStatsUpdater);
+        mMainHandler.removeCallbacks(mFinalRecordingStatsUpdater);
         mOrientationEventListener.disable();
         super.onDestroy();
     }
@@ -607,27 +633,70 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
         public void onClick(View v) {
             if (mRecordingToggle.isChecked()) {
                 try {
-                    Log.i(TAG, "start recording, useMediaCodec = " + mUseMediaCodec);
+                    Log.i(TAG, "start recording, useMediaCodec = " + mUseMediaCodec +
+                            ", asyncEncoder = " + mAsyncEncoder +
+                            ", warmEncoder = " + mWarmEncoder +
+                            ", segmented = " + mSegmentedRecording);
                     RadioGroup fmt = getRadioFmt();
                     fmt.setActivated(false);
+                    if (mSegmentedRecording) {
+                        mCameraOps.setRecordingSegments(SEGMENT_SECONDS, SEGMENT_MEGABYTES,
+                                MAX_SEGMENTS);
+                    } else {
+                        mCameraOps.setRecordingSegments(0, 0, 0);
+                    }
                     mCameraOps.startRecording(
                             /* applicationContext */ TestingCamera2.this,
                             /* useMediaCodec */ mUseMediaCodec,
+                            /* asyncEncoding */ mAsyncEncoder,
+                            /* keepEncoderWarm */ mWarmEncoder,
                             /* outputFormat */ getOutputFormat());
+                    mMainHandler.removeCallbacks(mFinalRecordingStatsUpdater);
+                    mMainHandler.post(mRecordingStatsUpdater);
                 } catch (ApiFailureException e) {
                     logException("Failed to start recording", e);
                 }
             } else {
                 try {
+                    mMainHandler.removeCallbacks(mRecordingStatsUpdater);
                     mCameraOps.stopRecording(TestingCamera2.this);
                     getRadioFmt().setActivated(true);
                 } catch (ApiFailureException e) {
                     logException("Failed to stop recording", e);
                 }
+                // The clip finishes on the camera ops thread; show its final numbers after that
+                updateRecordingStats();
+                mMainHandler.postDelayed(mFinalRecordingStatsUpdater,
+                        RECORDING_STATS_INTERVAL_MS);
             }
         }
     };
 
+    /**
+     * Refreshes the encoder statistics while recording
+     */
+    private final Runnable mRecordingStatsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateRecordingStats();
+            mMainHandler.postDelayed(this, RECORDING_STATS_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable mFinalRecordingStatsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateRecordingStats();
+        }
+    };
+
+    private void updateRecordingStats() {
+        String stats = mCameraOps.getRecordingStats();
+        if (stats != null) {
+            mRecordingStatsView.setText(getString(R.string.recording_stats_prompt) + stats);
+        }
+    }
+
     private final View.OnClickListener mFocusLockToggleListener =
             new View.OnClickListener() {
         @Override
@@ -661,9 +730,46 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
         @Override
         public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
             mUseMediaCodec = isChecked;
+            mAsyncEncoderCheckBox.setEnabled(isChecked);
+            updateAsyncEncoderOptionsEnabled();
+        }
+    };
+
+    private final CompoundButton.OnCheckedChangeListener mAsyncEncoderListener =
+            new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            mAsyncEncoder = isChecked;
+            updateAsyncEncoderOptionsEnabled();
+        }
+    };
+
+    private final CompoundButton.OnCheckedChangeListener mWarmEncoderListener =
+            new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            mWarmEncoder = isChecked;
+        }
+    };
+
+    private final CompoundButton.OnCheckedChangeListener mSegmentedListener =
+            new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            mSegmentedRecording = isChecked;
         }
     };
 
+    /**
+     * Warm encoders and segmented recording are only supported with asynchronous
+     * MediaCodec encoding
+     */
+    private void updateAsyncEncoderOptionsEnabled() {
+        boolean enabled = mUseMediaCodec && mAsyncEncoder;
+        mWarmEncoderCheckBox.setEnabled(enabled);
+        mSegmentedCheckBox.setEnabled(enabled);
+    }
+
     private final CameraOps.Listener mCameraOpsListener = new CameraOps.Listener() {
         @Override
         public void onCameraOpened(String cameraId, CameraCharacteristics characteristics) {
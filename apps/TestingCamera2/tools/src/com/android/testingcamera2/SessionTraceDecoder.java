@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Offline decoder for trace files written by {@link SessionTrace}.
+ *
+ * <p>Prints session state changes, then one line per completed frame with its pipeline
+ * latencies, then a per-stream summary. Latencies are in ms:</p>
+ * <ul>
+ *   <li>submit: from capture() or captureBurst() to the capture result, for single captures
+ *       and bursts only</li>
+ *   <li>result: from the start of exposure (the sensor timestamp) to the capture result</li>
+ *   <li>s&lt;N&gt;: from the start of exposure to the image arriving at ImageReader stream N</li>
+ * </ul>
+ * <p>The sensor timestamp-based latencies assume the device's sensor timestamps use the same
+ * monotonic clock as System.nanoTime(), as nearly all do.</p>
+ *
+ * <p>Usage: SessionTraceDecoder trace-file</p>
+ */
+public class SessionTraceDecoder {
+
+    /** Identifies a frame by camera and sensor timestamp, ordered by timestamp */
+    private static class FrameKey implements Comparable<FrameKey> {
+        final int source;
+        final long sensorTimestamp;
+
+        FrameKey(int source, long sensorTimestamp) {
+            this.source = source;
+            this.sensorTimestamp = sensorTimestamp;
+        }
+
+        @Override
+        public int compareTo(FrameKey other) {
+            if (sensorTimestamp != other.sensorTimestamp) {
+                return (sensorTimestamp < other.sensorTimestamp) ? -1 : 1;
+            }
+            return Integer.compare(source, other.source);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FrameKey)) return false;
+            FrameKey other = (FrameKey) o;
+            return source == other.source && sensorTimestamp == other.sensorTimestamp;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * source + Long.hashCode(sensorTimestamp);
+        }
+    }
+
+    private static class Frame {
+        int source;
+        long frameNumber;
+        long sensorTimestamp;
+        long resultTime;
+        long submitTime = -1;
+        final Map<Integer, Long> imageTimes = new TreeMap<Integer, Long>();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: SessionTraceDecoder trace-file");
+            System.exit(1);
+        }
+        ByteBuffer trace;
+        try (RandomAccessFile file = new RandomAccessFile(args[0], "r")) {
+            trace = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        if (trace.capacity() < SessionTrace.HEADER_SIZE ||
+                trace.getLong(0) != SessionTrace.MAGIC) {
+            throw new IOException("Not a session trace: " + args[0]);
+        }
+        int version = trace.getInt(8);
+        if (version != SessionTrace.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        System.out.println(String.format(Locale.US, "# Trace started at %tc",
+                trace.getLong(12)));
+
+        long startTime = -1;
+        // Submit times of single captures and bursts, by source and sequence id; kept for
+        // every frame of the sequence
+        Map<Long, Long> submits = new HashMap<Long, Long>();
+        // Frames by camera and sensor timestamp; images are joined to them after reading
+        // everything, since an image can arrive before its capture result. Synchronized
+        // cameras can share timestamps, so the camera is part of the key.
+        Map<FrameKey, Frame> frames = new TreeMap<FrameKey, Frame>();
+        List<long[]> images = new ArrayList<long[]>();
+        List<Integer> streams = new ArrayList<Integer>();
+        int records = 0;
+
+        int offset = SessionTrace.HEADER_SIZE;
+        while (offset + SessionTrace.RECORD_HEADER_SIZE <= trace.capacity()) {
+            int length = trace.getShort(offset) & 0xFFFF;
+            if (length == 0) break;
+            byte type = trace.get(offset + 2);
+            int source = trace.getInt(offset + 4);
+            long time = trace.getLong(offset + 8);
+            int payload = offset + SessionTrace.RECORD_HEADER_SIZE;
+            if (startTime == -1) startTime = time;
+            records++;
+
+            switch (type) {
+                case SessionTrace.TYPE_SUBMIT: {
+                    int sequenceId = trace.getInt(payload);
+                    boolean repeating = trace.get(payload + 4) != 0;
+                    if (!repeating) {
+                        submits.put(key(source, sequenceId), time);
+                    }
+                    break;
+                }
+                case SessionTrace.TYPE_CAPTURE_COMPLETED: {
+                    Frame frame = new Frame();
+                    frame.source = source;
+                    int sequenceId = trace.getInt(payload);
+                    frame.frameNumber = trace.getLong(payload + 4);
+                    frame.sensorTimestamp = trace.getLong(payload + 12);
+                    frame.resultTime = time;
+                    Long submitTime = submits.get(key(source, sequenceId));
+                    if (submitTime != null) frame.submitTime = submitTime;
+                    frames.put(new FrameKey(source, frame.sensorTimestamp), frame);
+                    break;
+                }
+                case SessionTrace.TYPE_IMAGE_AVAILABLE:
+                    images.add(new long[] { source, trace.getLong(payload), time,
+                            trace.getInt(payload + 12) });
+                    if (!streams.contains(source)) streams.add(source);
+                    break;
+                case SessionTrace.TYPE_SESSION_STATE: {
+                    byte[] name = new byte[length - SessionTrace.RECORD_HEADER_SIZE];
+                    for (int i = 0; i < name.length; i++) {
+                        name[i] = trace.get(payload + i);
+                    }
+                    System.out.println(String.format(Locale.US,
+                            "# %10.3f ms camera %d session %s", (time - startTime) / 1e6,
+                            source, new String(name, StandardCharsets.UTF_8)));
+                    break;
+                }
+                default:
+                    System.out.println("# Skipping unknown record type " + type);
+                    break;
+            }
+            offset += length;
+        }
+
+        int unmatchedImages = 0;
+        for (long[] image : images) {
+            Frame frame = frames.get(new FrameKey((int) image[3], image[1]));
+            if (frame == null) {
+                unmatchedImages++;
+            } else {
+                frame.imageTimes.put((int) image[0], image[2]);
+            }
+        }
+
+        StringBuilder header = new StringBuilder(
+                "# camera frame sensor_timestamp submit result");
+        for (int stream : streams) {
+            header.append(" s").append(stream);
+        }
+        System.out.println(header);
+
+        List<Double> submitLatencies = new ArrayList<Double>();
+        List<Double> resultLatencies = new ArrayList<Double>();
+        Map<Integer, List<Double>> streamLatencies = new TreeMap<Integer, List<Double>>();
+        for (int stream : streams) {
+            streamLatencies.put(stream, new ArrayList<Double>());
+        }
+        for (Frame frame : frames.values()) {
+            StringBuilder line = new StringBuilder(String.format(Locale.US, "%d %d %d",
+                    frame.source, frame.frameNumber, frame.sensorTimestamp));
+            if (frame.submitTime != -1) {
+                double submit = (frame.resultTime - frame.submitTime) / 1e6;
+                submitLatencies.add(submit);
+                line.append(String.format(Locale.US, " %.3f", submit));
+            } else {
+                line.append(" -");
+            }
+            double result = (frame.resultTime - frame.sensorTimestamp) / 1e6;
+            resultLatencies.add(result);
+            line.append(String.format(Locale.US, " %.3f", result));
+            for (int stream : streams) {
+                Long imageTime = frame.imageTimes.get(stream);
+                if (imageTime == null) {
+                    line.append(" -");
+                } else {
+                    double latency = (imageTime - frame.sensorTimestamp) / 1e6;
+                    streamLatencies.get(stream).add(latency);
+                    line.append(String.format(Locale.US, " %.3f", latency));
+                }
+            }
+            System.out.println(line);
+        }
+
+        System.out.println(String.format(Locale.US,
+                "# %d records, %d frames, %d images without a capture result", records,
+                frames.size(), unmatchedImages));
+        summarize("submit", submitLatencies);
+        summarize("result", resultLatencies);
+        for (Map.Entry<Integer, List<Double>> stream : streamLatencies.entrySet()) {
+            summarize("s" + stream.getKey(), stream.getValue());
+        }
+    }
+
+    private static long key(int source, int sequenceId) {
+        return ((long) source << 32) | (sequenceId & 0xFFFFFFFFL);
+    }
+
+    private static void summarize(String name, List<Double> values) {
+        if (values.isEmpty()) return;
+        double[] sorted = new double[values.size()];
+        double total = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+            total += sorted[i];
+        }
+        Arrays.sort(sorted);
+        System.out.println(String.format(Locale.US,
+                "# %-8s n=%d mean=%.3f p50=%.3f p95=%.3f p99=%.3f max=%.3f ms", name,
+                sorted.length, total / sorted.length, percentile(sorted, 50),
+                percentile(sorted, 95), percentile(sorted, 99), sorted[sorted.length - 1]));
+    }
+
+    private static double percentile(double[] sorted, double percentile) {
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}